@@ -0,0 +1,56 @@
+package com.rayyan.tesseract.dev;
+
+import com.mojang.brigadier.arguments.StringArgumentType;
+import com.rayyan.tesseract.jobs.BuildJobManager;
+import com.rayyan.tesseract.jobs.PlacementBenchmark;
+import com.rayyan.tesseract.selection.SelectionManager;
+import net.fabricmc.api.ModInitializer;
+import net.fabricmc.fabric.api.command.v1.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.text.Text;
+
+import java.util.UUID;
+
+import static net.minecraft.server.command.CommandManager.argument;
+import static net.minecraft.server.command.CommandManager.literal;
+
+/**
+ * Dev-only tools, loaded by {@code ./gradlew runBenchmarkServer} and never shipped in the mod jar. Adds
+ * {@code /tesseract bench <legacy|immediate|deferred>} for ops; see {@link PlacementBenchmark}.
+ */
+public class TesseractDev implements ModInitializer {
+	@Override
+	public void onInitialize() {
+		CommandRegistrationCallback.EVENT.register((dispatcher, dedicated) -> {
+			dispatcher.register(literal("tesseract")
+				.then(literal("bench")
+					.requires(source -> source.hasPermissionLevel(2))
+					.then(argument("mode", StringArgumentType.word())
+						.executes(context -> startBenchmark(context.getSource(), context.getSource().getPlayer(), StringArgumentType.getString(context, "mode")))
+					)
+				)
+			);
+		});
+
+		ServerTickEvents.END_SERVER_TICK.register(PlacementBenchmark::tick);
+	}
+
+	private static int startBenchmark(ServerCommandSource source, ServerPlayerEntity player, String mode) {
+		if (player == null) {
+			source.sendFeedback(Text.of("Error: player not found."), false);
+			return 0;
+		}
+		UUID jobId = BuildJobManager.start(player.getUuid());
+		if (jobId == null) {
+			source.sendFeedback(Text.of("You already have " + BuildJobManager.MAX_JOBS_PER_PLAYER + " builds in progress. Wait for one to finish or /tesseract cancel."), false);
+			return 0;
+		}
+		if (!PlacementBenchmark.start(player, jobId, SelectionManager.getBuildSelection(player.getUuid()), mode)) {
+			BuildJobManager.discard(jobId);
+			return 0;
+		}
+		return 1;
+	}
+}
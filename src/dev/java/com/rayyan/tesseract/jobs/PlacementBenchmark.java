@@ -0,0 +1,205 @@
+package com.rayyan.tesseract.jobs;
+
+import com.rayyan.tesseract.TesseractMod;
+import com.rayyan.tesseract.selection.Selection;
+import net.minecraft.entity.ItemEntity;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.text.Text;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Box;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Places a fixed 32x32x32 plan with a chosen {@link SectionBatchPlacer.Mode} so the modes can be compared
+ * on the same server and terrain. Dev-only: it ships in the dev source set, not in the mod.
+ *
+ * The plan repeats four layers: a stone brick floor, a layer of fences and glass panes with torches
+ * standing on the floor, a layer of stairs, and a plank ceiling. Fences, panes and stairs reshape
+ * whenever a neighbor changes, so it costs about what a real build does. A run places on its own each
+ * tick, within the same MSPT-derived budget builds get, and is journaled like a build: run it,
+ * {@code /tesseract undo}, then run it again in another mode and compare the per-tick figures reported at
+ * the end.
+ *
+ * The torches make it a check of {@link PlacementOrder} too. Item entities in the footprint are counted
+ * before and after, and a run that leaves any new ones behind (a torch placed before its floor, say) is
+ * reported as failed and ends the job as failed.
+ */
+public final class PlacementBenchmark {
+	private static final int SIZE = 32;
+	// Only touched on the server thread.
+	private static final List<Run> RUNS = new ArrayList<>();
+
+	private PlacementBenchmark() {}
+
+	/**
+	 * Starts a benchmark run at the player's build selection as job {@code jobId}. The footprint must
+	 * already be loaded. Returns false (after telling the player why) if nothing was started.
+	 */
+	public static boolean start(ServerPlayerEntity player, UUID jobId, Selection selection, String modeName) {
+		SectionBatchPlacer.Mode mode = SectionBatchPlacer.Mode.parse(modeName, null);
+		if (mode == null) {
+			player.sendMessage(Text.of("Error: unknown placement mode " + modeName + " (legacy, immediate or deferred)."), false);
+			return false;
+		}
+		BlockPos origin = selection == null || !selection.isComplete() ? null : selection.getMin();
+		if (origin == null) {
+			player.sendMessage(Text.of("Error: you haven't selected a region yet. Select two corners first."), false);
+			return false;
+		}
+		ServerWorld world = (ServerWorld) player.getWorld();
+		CompiledPlan plan = plan();
+		long[] ops = plan.opsBySection(origin);
+		if (!ChunkPreloader.forOps(world, origin, ops).isReady()) {
+			player.sendMessage(Text.of("Error: the benchmark region is not fully loaded. Move closer and try again."), false);
+			return false;
+		}
+		if (BuildJobManager.claimPlan(jobId, world, origin, plan) != null) {
+			player.sendMessage(Text.of("Error: the benchmark region overlaps another build in progress."), false);
+			return false;
+		}
+		BuildJobManager.advance(jobId, BuildJobManager.State.PLACING);
+		RUNS.add(new Run(jobId, player.getUuid(), world, origin, plan, ops, mode));
+		player.sendMessage(Text.of("Benchmark (" + mode.name().toLowerCase() + ") started: " + ops.length + " blocks."), false);
+		return true;
+	}
+
+	/**
+	 * Places for every run within this tick's budget. Call at the end of each server tick.
+	 */
+	public static void tick(MinecraftServer server) {
+		if (RUNS.isEmpty()) {
+			return;
+		}
+		long deadline = System.nanoTime() + BuildScheduler.budgetNanos(server);
+		for (Iterator<Run> it = RUNS.iterator(); it.hasNext(); ) {
+			Run run = it.next();
+			if (run.tick(server, deadline)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Item entities in the benchmark's footprint, grown by one block on each side.
+	 */
+	private static int countItems(ServerWorld world, BlockPos origin) {
+		Box box = new Box(origin.getX() - 1, origin.getY() - 1, origin.getZ() - 1, origin.getX() + SIZE + 1, origin.getY() + SIZE + 1, origin.getZ() + SIZE + 1);
+		return world.getEntitiesByClass(ItemEntity.class, box, entity -> true).size();
+	}
+
+	private static CompiledPlan plan() {
+		CompiledPlan.Builder builder = new CompiledPlan.Builder(SIZE * SIZE * SIZE);
+		for (int y = 0; y < SIZE; y++) {
+			for (int z = 0; z < SIZE; z++) {
+				for (int x = 0; x < SIZE; x++) {
+					builder.add(x, y, z, blockAt(x, y, z));
+				}
+			}
+		}
+		return builder.build(null);
+	}
+
+	private static String blockAt(int x, int y, int z) {
+		switch (y & 3) {
+			case 0:
+				return "minecraft:stone_bricks";
+			case 1:
+				if ((x & 3) == 1 && (z & 3) == 1) {
+					return "minecraft:torch";
+				}
+				return ((x + z) & 1) == 0 ? "minecraft:oak_fence" : "minecraft:glass_pane";
+			case 2:
+				return "minecraft:oak_stairs";
+			default:
+				return "minecraft:oak_planks";
+		}
+	}
+
+	private static final class Run {
+		private final UUID jobId;
+		private final UUID playerId;
+		private final ServerWorld world;
+		private final BlockPos origin;
+		private final CompiledPlan plan;
+		private final long[] ops;
+		private final SectionBatchPlacer placer;
+		private final UndoJournal journal;
+		private final int itemsBefore;
+		private final BlockPos.Mutable cursor = new BlockPos.Mutable();
+		private int index;
+
+		private Run(UUID jobId, UUID playerId, ServerWorld world, BlockPos origin, CompiledPlan plan, long[] ops, SectionBatchPlacer.Mode mode) {
+			this.jobId = jobId;
+			this.playerId = playerId;
+			this.world = world;
+			this.origin = origin;
+			this.plan = plan;
+			this.ops = ops;
+			this.placer = new SectionBatchPlacer(world, mode);
+			this.journal = UndoJournal.create(world, ops.length);
+			this.placer.setJournal(journal);
+			this.itemsBefore = countItems(world, origin);
+		}
+
+		/**
+		 * Places until {@code deadline}. Returns true once the run has ended, whichever way.
+		 */
+		private boolean tick(MinecraftServer server, long deadline) {
+			ServerPlayerEntity player = server.getPlayerManager().getPlayer(playerId);
+			if (player == null || BuildJobManager.token(jobId).isCancelled()) {
+				end();
+				BuildJobManager.cancel(jobId);
+				return true;
+			}
+			while (index < ops.length && System.nanoTime() < deadline) {
+				long op = ops[index];
+				BlockPos pos = cursor.set(origin.getX() + CompiledPlan.unpackX(op), origin.getY() + CompiledPlan.unpackY(op), origin.getZ() + CompiledPlan.unpackZ(op));
+				if (!placer.place(pos, plan.state(op))) {
+					player.sendMessage(Text.of("Error: benchmark halted, chunk not loaded near " + pos.getX() + " " + pos.getY() + " " + pos.getZ()), false);
+					end();
+					BuildJobManager.fail(jobId);
+					return true;
+				}
+				index++;
+			}
+			placer.flush();
+			placer.endTick();
+			if (index < ops.length) {
+				return false;
+			}
+			int drops = Math.max(0, countItems(world, origin) - itemsBefore);
+			String report = report(drops);
+			player.sendMessage(Text.of(report), false);
+			end();
+			if (drops > 0) {
+				TesseractMod.LOGGER.warn("{}", report);
+				BuildJobManager.fail(jobId);
+			} else {
+				TesseractMod.LOGGER.info("{}", report);
+				BuildJobManager.finish(jobId);
+			}
+			return true;
+		}
+
+		private void end() {
+			placer.flush();
+			UndoManager.recordFinished(playerId, jobId, journal, UndoManager.Kind.BUILD);
+		}
+
+		private String report(int drops) {
+			long nanos = Math.max(1L, placer.getPlaceNanos());
+			return (drops > 0 ? "Benchmark FAILED (" : "Benchmark (") + placer.getMode().name().toLowerCase() + "): "
+				+ placer.getPlaced() + " blocks in " + placer.getTicks() + " ticks, "
+				+ String.format("%.2f", nanos / 1_000_000.0 / Math.max(1, placer.getTicks())) + "ms mean / "
+				+ String.format("%.2f", placer.getMaxTickNanos() / 1_000_000.0) + "ms max per tick, "
+				+ String.format("%.1f", placer.getPlaced() / (nanos / 1_000_000.0)) + " blocks/ms, "
+				+ drops + " item drops.";
+		}
+	}
+}
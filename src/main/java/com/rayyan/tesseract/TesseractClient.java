@@ -28,6 +28,8 @@ public class TesseractClient implements ClientModInitializer {
 	private static final float CONTEXT_B = 1.0f;
 	private static final float OUTLINE_A = 1.0f;
 	private static final float OUTLINE_Y_OFFSET = 0.01f;
+	// Large builds go up to 256x256; past that the selection is too big to build anyway.
+	private static final long MAX_OUTLINE_FOOTPRINT = 256L * 256L;
 
 	@Override
 	public void onInitializeClient() {
@@ -103,7 +105,7 @@ public class TesseractClient implements ClientModInitializer {
 			max.getY() - min.getY() + 1,
 			max.getZ() - min.getZ() + 1
 		);
-		if ((long) size.getX() * (long) size.getZ() > 4096) {
+		if ((long) size.getX() * (long) size.getZ() > MAX_OUTLINE_FOOTPRINT) {
 			return;
 		}
 
@@ -4,7 +4,9 @@ import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v1.CommandRegistrationCallback;
 import net.fabricmc.fabric.api.event.player.AttackBlockCallback;
 import net.fabricmc.fabric.api.event.player.UseBlockCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
 import net.minecraft.network.PacketByteBuf;
 import net.minecraft.server.command.ServerCommandSource;
@@ -18,9 +20,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rayyan.tesseract.gumloop.GumloopClient;
-import com.rayyan.tesseract.gumloop.GumloopProgressManager;
 import com.rayyan.tesseract.jobs.BuildJobManager;
+import com.rayyan.tesseract.jobs.BuildProgress;
 import com.rayyan.tesseract.jobs.BuildQueueManager;
+import com.rayyan.tesseract.jobs.UndoManager;
+import com.rayyan.tesseract.metrics.Metrics;
+import com.rayyan.tesseract.metrics.MetricsServer;
+import com.rayyan.tesseract.metrics.TesseractEvents;
 import com.rayyan.tesseract.network.SelectionNetworking;
 import com.rayyan.tesseract.paste.PlanPasteClient;
 import com.rayyan.tesseract.selection.Selection;
@@ -43,6 +49,8 @@ public class TesseractMod implements ModInitializer {
 	private static final Item BUILD_WAND = Items.WOODEN_AXE;
 	private static final Item CONTEXT_WAND = Items.GOLDEN_AXE;
 	private static final int MAX_REGION_SIZE = 32;
+	// Selections past MAX_REGION_SIZE are drafted as 32^3 tiles, up to this size per side.
+	private static final int MAX_LARGE_REGION_SIZE = 256;
 	private static final int DEFAULT_BUILD_HEIGHT = 12;
 	private static final String DEMO_CABIN_PROMPT = "Small cozy oak cabin with a peaked roof and a stone foundation";
 	private static final String DEMO_GATE_PROMPT = "Gothic stone gate entrance with torches and a central arch";
@@ -63,7 +71,7 @@ public class TesseractMod implements ModInitializer {
 				})
 				.then(literal("help")
 					.executes(context -> {
-						sendMessage(context.getSource(), "Commands: /tesseract build <prompt>, /tesseract paste <url>, /tesseract clear, /tesseract context clear");
+						sendMessage(context.getSource(), "Commands: /tesseract build <prompt>, /tesseract paste <url>, /tesseract undo, /tesseract redo, /tesseract cancel, /tesseract clear, /tesseract context clear");
 						return 1;
 					})
 				)
@@ -105,6 +113,26 @@ public class TesseractMod implements ModInitializer {
 						})
 					)
 				)
+				.then(literal("undo")
+					.executes(context -> startUndo(context.getSource(), context.getSource().getPlayer(), false))
+				)
+				.then(literal("redo")
+					.executes(context -> startUndo(context.getSource(), context.getSource().getPlayer(), true))
+				)
+				.then(literal("cancel")
+					.executes(context -> cancelBuild(context.getSource(), context.getSource().getPlayer()))
+				)
+				.then(literal("stats")
+					.requires(source -> source.hasPermissionLevel(2))
+					.executes(context -> showStats(context.getSource()))
+					.then(literal("reset")
+						.executes(context -> {
+							Metrics.reset();
+							sendMessage(context.getSource(), "Tesseract stats reset.");
+							return 1;
+						})
+					)
+				)
 				.then(literal("demo")
 					.then(literal("cabin")
 						.executes(context -> startBuild(context.getSource(), context.getSource().getPlayer(), DEMO_CABIN_PROMPT))
@@ -116,10 +144,21 @@ public class TesseractMod implements ModInitializer {
 			);
 		});
 
+		GumloopClient.registerMetrics();
+		Metrics.gauge("tesseract_regions_claimed", "Regions claimed by builds in progress.", BuildJobManager::claimedRegions);
+
+		ServerLifecycleEvents.SERVER_STARTED.register(BuildQueueManager::resumeCheckpoints);
+		ServerLifecycleEvents.SERVER_STARTED.register(server -> MetricsServer.start());
+		ServerLifecycleEvents.SERVER_STOPPING.register(server -> BuildQueueManager.suspendAll());
+		ServerLifecycleEvents.SERVER_STOPPED.register(server -> MetricsServer.stop());
+		// Nobody is left to see their builds: stop their requests, polls and placement straight away.
+		ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> BuildJobManager.cancelAll(handler.player.getUuid()));
+
 		ServerTickEvents.END_SERVER_TICK.register(server -> {
-			BuildJobManager.tick();
+			BuildJobManager.tick(server);
 			BuildQueueManager.tick(server);
-			GumloopProgressManager.tick(server);
+			BuildProgress.tick(server);
+			UndoManager.tick(server);
 		});
 
 		AttackBlockCallback.EVENT.register((player, world, hand, pos, direction) -> {
@@ -171,10 +210,6 @@ public class TesseractMod implements ModInitializer {
 			sendMessage(source, "Error: player not found.");
 			return 0;
 		}
-		if (BuildJobManager.isInProgress(player.getUuid())) {
-			sendMessage(source, "Build already in progress. Please wait.");
-			return 0;
-		}
 		Selection selection = SelectionManager.getBuildSelection(player.getUuid());
 		if (selection == null || !selection.isComplete()) {
 			sendMessage(source, "Error: you haven't selected a region yet. Select two corners first.");
@@ -185,12 +220,20 @@ public class TesseractMod implements ModInitializer {
 			sendMessage(source, "Error: invalid selection.");
 			return 0;
 		}
-		if (size.getX() > MAX_REGION_SIZE || size.getY() > MAX_REGION_SIZE || size.getZ() > MAX_REGION_SIZE) {
-			sendMessage(source, "Error: selected region is too large (max 32x32x32).");
+		if (size.getX() > MAX_LARGE_REGION_SIZE || size.getY() > MAX_LARGE_REGION_SIZE || size.getZ() > MAX_LARGE_REGION_SIZE) {
+			sendMessage(source, "Error: selected region is too large (max " + MAX_LARGE_REGION_SIZE + "x" + MAX_LARGE_REGION_SIZE + "x" + MAX_LARGE_REGION_SIZE + ").");
+			return 0;
+		}
+		boolean large = size.getX() > MAX_REGION_SIZE || size.getY() > MAX_REGION_SIZE || size.getZ() > MAX_REGION_SIZE;
+		UUID jobId = startJob(source, player);
+		if (jobId == null) {
+			return 0;
+		}
+		if (!claimRegion(source, player, jobId, selection.getMin(), GumloopClient.effectiveBuildSize(selection))) {
+			BuildJobManager.discard(jobId);
 			return 0;
 		}
 
-		BuildJobManager.start(player.getUuid());
 		sendMessage(source, "Tesseract drafting: \"" + prompt + "\"");
 		int effectiveHeight = (size != null && size.getY() <= 1) ? DEFAULT_BUILD_HEIGHT : size.getY();
 		sendMessage(source, "Selection footprint: " + size.getX() + "x" + size.getZ() + " (height " + effectiveHeight + ")");
@@ -199,7 +242,11 @@ public class TesseractMod implements ModInitializer {
 		if (contextSelection != null && contextSelection.isComplete()) {
 			sendMessage(source, "Context attached (cyan selection).");
 		}
-		GumloopClient.sendBuildRequest(player, selection, contextSelection, prompt);
+		if (large) {
+			GumloopClient.sendTiledBuildRequest(player, jobId, selection, contextSelection, prompt);
+		} else {
+			GumloopClient.sendBuildRequest(player, jobId, selection, contextSelection, prompt);
+		}
 		return 1;
 	}
 
@@ -208,10 +255,6 @@ public class TesseractMod implements ModInitializer {
 			sendMessage(source, "Error: player not found.");
 			return 0;
 		}
-		if (BuildJobManager.isInProgress(player.getUuid())) {
-			sendMessage(source, "Build already in progress. Please wait.");
-			return 0;
-		}
 		Selection selection = SelectionManager.getBuildSelection(player.getUuid());
 		if (selection == null || !selection.isComplete()) {
 			sendMessage(source, "Error: you haven't selected a region yet. Select two corners first.");
@@ -226,9 +269,86 @@ public class TesseractMod implements ModInitializer {
 			sendMessage(source, "Error: selected region is too large (max 32x32x32).");
 			return 0;
 		}
-		BuildJobManager.start(player.getUuid());
+		UUID jobId = startJob(source, player);
+		if (jobId == null) {
+			return 0;
+		}
+		if (!claimRegion(source, player, jobId, selection.getMin(), GumloopClient.effectiveBuildSize(selection))) {
+			BuildJobManager.discard(jobId);
+			return 0;
+		}
 		sendMessage(source, "Tesseract paste: " + sourceUrl);
-		PlanPasteClient.fetchAndBuild(player, selection, sourceUrl);
+		PlanPasteClient.fetchAndBuild(player, jobId, selection, sourceUrl);
+		return 1;
+	}
+
+	private static int startUndo(ServerCommandSource source, ServerPlayerEntity player, boolean redo) {
+		if (player == null) {
+			sendMessage(source, "Error: player not found.");
+			return 0;
+		}
+		UUID jobId = startJob(source, player);
+		if (jobId == null) {
+			return 0;
+		}
+		boolean started = redo ? UndoManager.redo(player, jobId) : UndoManager.undo(player, jobId);
+		if (!started) {
+			BuildJobManager.discard(jobId);
+			return 0;
+		}
+		return 1;
+	}
+
+	private static int cancelBuild(ServerCommandSource source, ServerPlayerEntity player) {
+		if (player == null) {
+			sendMessage(source, "Error: player not found.");
+			return 0;
+		}
+		int cancelled = BuildJobManager.cancelAll(player.getUuid());
+		if (cancelled == 0) {
+			sendMessage(source, "No build in progress.");
+			return 0;
+		}
+		sendMessage(source, cancelled == 1 ? "Build cancelled." : cancelled + " builds cancelled.");
+		return cancelled;
+	}
+
+	/**
+	 * Starts a job for the player. Tells them and returns null if they already have as many in progress as
+	 * they may.
+	 */
+	private static UUID startJob(ServerCommandSource source, ServerPlayerEntity player) {
+		UUID jobId = BuildJobManager.start(player.getUuid());
+		if (jobId == null) {
+			sendMessage(source, "You already have " + BuildJobManager.MAX_JOBS_PER_PLAYER + " builds in progress. Wait for one to finish or /tesseract cancel.");
+		}
+		return jobId;
+	}
+
+	/**
+	 * Claims the region the job's build will write to. Tells the player and returns false if another build,
+	 * theirs or someone else's, already claims part of it.
+	 */
+	private static boolean claimRegion(ServerCommandSource source, ServerPlayerEntity player, UUID jobId, BlockPos min, BlockPos size) {
+		BlockPos max = min.add(size.getX() - 1, size.getY() - 1, size.getZ() - 1);
+		UUID holder = BuildJobManager.claim(jobId, player.getWorld(), min, max);
+		if (holder == null) {
+			return true;
+		}
+		if (holder.equals(player.getUuid())) {
+			sendMessage(source, "Error: the selected region overlaps another of your builds in progress. Pick another region or wait for it to finish.");
+			return false;
+		}
+		ServerPlayerEntity other = player.getServer() == null ? null : player.getServer().getPlayerManager().getPlayer(holder);
+		String who = other == null ? "another player" : other.getName().getString();
+		sendMessage(source, "Error: the selected region overlaps a build in progress by " + who + ". Pick another region or wait for it to finish.");
+		return false;
+	}
+
+	private static int showStats(ServerCommandSource source) {
+		for (String line : Metrics.summary()) {
+			sendMessage(source, line);
+		}
 		return 1;
 	}
 
@@ -280,8 +400,18 @@ public class TesseractMod implements ModInitializer {
 			? SelectionManager.getBuildSelection(player.getUuid())
 			: SelectionManager.getContextSelection(player.getUuid());
 
+		TesseractEvents.SelectionSync event = new TesseractEvents.SelectionSync();
+		event.begin();
 		PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer());
 		SelectionNetworking.writeSelection(buf, isBuild, selection);
+		int bytes = buf.readableBytes();
 		ServerPlayNetworking.send(player, SelectionNetworking.SELECTION_UPDATE, buf);
+		event.end();
+		if (event.shouldCommit()) {
+			event.player = player.getUuid().toString();
+			event.build = isBuild;
+			event.bytes = bytes;
+			event.commit();
+		}
 	}
 }
@@ -0,0 +1,102 @@
+package com.rayyan.tesseract.gumloop;
+
+import com.rayyan.tesseract.gumloop.GumloopPayload.PackedBlocks;
+import net.minecraft.util.math.BlockPos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Wire encodings for the Gumloop request: the packed context grid and the optional gzip body.
+ *
+ * The legacy context repeats {@code {"x":..,"y":..,"z":..,"block":"minecraft:..."}} for every block. The
+ * packed form names each block id once and run-length encodes a dense grid, so air and long walls or
+ * floors collapse into a few numbers.
+ */
+final class ContextEncoder {
+	static final String ORDER_YZX = "yzx";
+
+	private ContextEncoder() {}
+
+	/**
+	 * Packs every palette block in the snapshot into a grid of {@code size}. There is no block cap: the grid
+	 * is bounded by the sections the snapshot may hold, and the run-length form grows with the number of
+	 * runs, not blocks. Runs on a plan worker.
+	 */
+	static PackedBlocks pack(ContextSnapshot snapshot, BlockPos size) {
+		int w = size.getX();
+		int h = size.getY();
+		int l = size.getZ();
+		short[] cells = new short[w * h * l];
+		int[] heightmap = new int[w * l];
+		Map<String, Integer> paletteIndex = new HashMap<>();
+		List<String> palette = new ArrayList<>();
+		int[] legacyBytes = {2};
+		int count = snapshot.scan(Integer.MAX_VALUE, (x, y, z, blockId) -> {
+			Integer index = paletteIndex.get(blockId);
+			if (index == null) {
+				palette.add(blockId);
+				index = palette.size();
+				paletteIndex.put(blockId, index);
+			}
+			cells[(y * l + z) * w + x] = index.shortValue();
+			int column = z * w + x;
+			heightmap[column] = Math.max(heightmap[column], y + 1);
+			// {"x":..,"y":..,"z":..,"block":".."} and its separating comma.
+			legacyBytes[0] += 28 + digits(x) + digits(y) + digits(z) + blockId.length();
+		});
+
+		PackedBlocks packed = new PackedBlocks();
+		packed.order = ORDER_YZX;
+		packed.palette = palette;
+		packed.count = count;
+		packed.runs = runLength(cells);
+		packed.heightmap = heightmap;
+		packed.legacyBytes = count == 0 ? 2 : legacyBytes[0] - 1;
+		return packed;
+	}
+
+	private static int digits(int value) {
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10) {
+			digits++;
+		}
+		return digits;
+	}
+
+	private static int[] runLength(short[] cells) {
+		int[] runs = new int[16];
+		int size = 0;
+		int i = 0;
+		while (i < cells.length) {
+			short value = cells[i];
+			int start = i;
+			while (i < cells.length && cells[i] == value) {
+				i++;
+			}
+			if (size + 2 > runs.length) {
+				runs = Arrays.copyOf(runs, runs.length * 2);
+			}
+			runs[size++] = value;
+			runs[size++] = i - start;
+		}
+		return Arrays.copyOf(runs, size);
+	}
+
+	static byte[] gzip(byte[] body) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+			gzip.write(body);
+		} catch (IOException ex) {
+			// ByteArrayOutputStream never throws.
+			throw new IllegalStateException(ex);
+		}
+		return out.toByteArray();
+	}
+}
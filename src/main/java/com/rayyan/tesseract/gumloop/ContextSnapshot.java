@@ -0,0 +1,157 @@
+package com.rayyan.tesseract.gumloop;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.registry.Registry;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.PalettedContainer;
+import net.minecraft.world.chunk.WorldChunk;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A copy of the chunk sections under a context selection, taken on the server thread and scanned on a worker.
+ *
+ * {@link #capture} only copies each section's block-state container, which is cheap. It skips sections
+ * that are empty (all air), sections in unloaded chunks (capture never loads chunks) and sections whose
+ * palette holds no allowed block. The per-block scan in {@link #scan} then runs on the copies, away from
+ * the tick.
+ */
+final class ContextSnapshot {
+	private final BlockPos min;
+	private final BlockPos max;
+	private final Map<Block, String> allowed;
+	private final List<SectionCopy> sections;
+	private final int sectionsSkipped;
+
+	private ContextSnapshot(BlockPos min, BlockPos max, Map<Block, String> allowed, List<SectionCopy> sections, int sectionsSkipped) {
+		this.min = min;
+		this.max = max;
+		this.allowed = allowed;
+		this.sections = sections;
+		this.sectionsSkipped = sectionsSkipped;
+	}
+
+	/**
+	 * Copies the sections overlapping {@code min..max}. Must run on the server thread. Returns null if the
+	 * box would cover more than {@code maxSections} sections.
+	 */
+	static ContextSnapshot capture(ServerWorld world, BlockPos min, BlockPos max, List<String> palette, int maxSections) {
+		int minSx = ChunkSectionPos.getSectionCoord(min.getX());
+		int minSy = ChunkSectionPos.getSectionCoord(Math.max(min.getY(), world.getBottomY()));
+		int minSz = ChunkSectionPos.getSectionCoord(min.getZ());
+		int maxSx = ChunkSectionPos.getSectionCoord(max.getX());
+		int maxSy = ChunkSectionPos.getSectionCoord(Math.min(max.getY(), world.getTopY() - 1));
+		int maxSz = ChunkSectionPos.getSectionCoord(max.getZ());
+		long total = (long) (maxSx - minSx + 1) * (maxSy - minSy + 1) * (maxSz - minSz + 1);
+		if (total > maxSections) {
+			return null;
+		}
+		Map<Block, String> allowed = allowedBlocks(palette);
+		List<SectionCopy> sections = new ArrayList<>();
+		int skipped = 0;
+		for (int sx = minSx; sx <= maxSx; sx++) {
+			for (int sz = minSz; sz <= maxSz; sz++) {
+				WorldChunk chunk = world.getChunkManager().getWorldChunk(sx, sz);
+				for (int sy = minSy; sy <= maxSy; sy++) {
+					if (chunk == null) {
+						skipped++;
+						continue;
+					}
+					ChunkSection section = chunk.getSection(chunk.sectionCoordToIndex(sy));
+					if (section == null || section.isEmpty()) {
+						skipped++;
+						continue;
+					}
+					PalettedContainer<BlockState> states = section.getBlockStateContainer();
+					// Only looks at the section palette, not at the 4096 entries.
+					if (!states.hasAny(state -> allowed.containsKey(state.getBlock()))) {
+						skipped++;
+						continue;
+					}
+					sections.add(new SectionCopy(sx, sy, sz, states.copy()));
+				}
+			}
+		}
+		return new ContextSnapshot(min, max, allowed, sections, skipped);
+	}
+
+	int sectionCount() {
+		return sections.size();
+	}
+
+	int sectionsSkipped() {
+		return sectionsSkipped;
+	}
+
+	/**
+	 * Visits every allowed block in the copied sections, relative to the selection minimum, stopping after
+	 * {@code limit} blocks. Safe to call from any thread.
+	 */
+	int scan(int limit, BlockVisitor visitor) {
+		int found = 0;
+		for (SectionCopy section : sections) {
+			int baseX = section.x << 4;
+			int baseY = section.y << 4;
+			int baseZ = section.z << 4;
+			int fromX = Math.max(min.getX(), baseX) - baseX;
+			int fromY = Math.max(min.getY(), baseY) - baseY;
+			int fromZ = Math.max(min.getZ(), baseZ) - baseZ;
+			int toX = Math.min(max.getX(), baseX + 15) - baseX;
+			int toY = Math.min(max.getY(), baseY + 15) - baseY;
+			int toZ = Math.min(max.getZ(), baseZ + 15) - baseZ;
+			for (int lx = fromX; lx <= toX; lx++) {
+				for (int ly = fromY; ly <= toY; ly++) {
+					for (int lz = fromZ; lz <= toZ; lz++) {
+						String blockId = allowed.get(section.states.get(lx, ly, lz).getBlock());
+						if (blockId == null) {
+							continue;
+						}
+						if (found >= limit) {
+							return found;
+						}
+						visitor.accept(baseX + lx - min.getX(), baseY + ly - min.getY(), baseZ + lz - min.getZ(), blockId);
+						found++;
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	private static Map<Block, String> allowedBlocks(List<String> palette) {
+		Map<Block, String> allowed = new IdentityHashMap<>();
+		for (String id : palette) {
+			Identifier identifier = Identifier.tryParse(id);
+			if (identifier != null) {
+				allowed.put(Registry.BLOCK.get(identifier), id);
+			}
+		}
+		return allowed;
+	}
+
+	interface BlockVisitor {
+		void accept(int x, int y, int z, String blockId);
+	}
+
+	private static final class SectionCopy {
+		private final int x;
+		private final int y;
+		private final int z;
+		private final PalettedContainer<BlockState> states;
+
+		private SectionCopy(int x, int y, int z, PalettedContainer<BlockState> states) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.states = states;
+		}
+	}
+}
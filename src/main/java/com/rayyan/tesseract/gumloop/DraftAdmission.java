@@ -0,0 +1,305 @@
+package com.rayyan.tesseract.gumloop;
+
+import com.rayyan.tesseract.TesseractMod;
+import com.rayyan.tesseract.jobs.BuildJobManager;
+import com.rayyan.tesseract.jobs.CancelToken;
+import com.rayyan.tesseract.jobs.CompiledPlan;
+import com.rayyan.tesseract.metrics.Metrics;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.text.Text;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Admission control in front of Gumloop: how many drafts run at once, and who goes next.
+ *
+ * At most {@link #MAX_RUNNING} drafts talk to Gumloop at a time. A large build is admitted as one draft and
+ * takes a further slot for each extra tile it has in flight, but only while nobody is waiting. Further
+ * drafts wait in one first-come, first-served queue of at most {@link #MAX_WAITING}, and every waiting
+ * player is told their place in line whenever it changes. Past that the request is turned away straight
+ * away rather than left to time out. Each player also has a token bucket of {@link #BURST} drafts that
+ * refills one every {@link #REFILL_MS}, so nobody can fill the queue on their own. A bucket that has
+ * refilled is no different from a new one, so it is dropped, and only players who drafted recently have one.
+ *
+ * A draft holds its slot until its plan or error is delivered, or its job's {@link CancelToken} is
+ * cancelled, whichever comes first. Time spent waiting is logged on its own, so Gumloop's latency figures
+ * start at admission.
+ */
+final class DraftAdmission {
+	private static final int MAX_RUNNING = intEnv("GUMLOOP_MAX_CONCURRENT", 4);
+	private static final int MAX_WAITING = intEnv("GUMLOOP_MAX_QUEUE", 16);
+	private static final int BURST = intEnv("GUMLOOP_PLAYER_BURST", 3);
+	private static final long REFILL_MS = intEnv("GUMLOOP_PLAYER_REFILL_SECONDS", 30) * 1000L;
+
+	private static final Object LOCK = new Object();
+	// Guarded by LOCK.
+	private static final ArrayDeque<Ticket> WAITING = new ArrayDeque<>();
+	private static final Map<UUID, Bucket> BUCKETS = new HashMap<>();
+	private static int running;
+
+	private DraftAdmission() {}
+
+	/**
+	 * Starts the draft now if a slot is free, or queues it. {@code start} runs on the server thread once the
+	 * draft is admitted, and must see that {@link Ticket#release} is called when the draft is over. Returns
+	 * false, after telling the player why, if the draft was turned away. Call on the server thread.
+	 */
+	static boolean submit(ServerPlayerEntity player, UUID jobId, String requestId, CancelToken token, Consumer<Ticket> start) {
+		Ticket ticket = new Ticket(player, jobId, requestId, token, start);
+		int position;
+		synchronized (LOCK) {
+			boolean queue = running >= MAX_RUNNING;
+			if (queue && WAITING.size() >= MAX_WAITING) {
+				TesseractMod.LOGGER.warn("Gumloop {} -> shed: {} running, {} waiting.", requestId, running, WAITING.size());
+				player.sendMessage(Text.of("Tesseract is busy right now (" + WAITING.size() + " builds waiting). Try again shortly."), false);
+				return false;
+			}
+			long now = System.currentTimeMillis();
+			dropFullBuckets(now);
+			long waitMs = bucket(player.getUuid()).take(now);
+			if (waitMs > 0) {
+				player.sendMessage(Text.of("You're drafting too often. Try again in " + (waitMs + 999) / 1000 + "s."), false);
+				return false;
+			}
+			if (!queue) {
+				running++;
+				position = 0;
+			} else {
+				WAITING.addLast(ticket);
+				position = WAITING.size();
+				ticket.position = position;
+			}
+		}
+		token.onCancel(ticket::cancel);
+		if (position == 0) {
+			ticket.admit();
+			return true;
+		}
+		BuildJobManager.advance(jobId, BuildJobManager.State.QUEUED);
+		TesseractMod.LOGGER.info("Gumloop {} -> queued at position {}.", requestId, position);
+		player.sendMessage(Text.of("Tesseract is busy: you're #" + position + " in line."), false);
+		return true;
+	}
+
+	/**
+	 * Takes one more slot for a draft that is already admitted, if one is free and nobody is waiting for it.
+	 * A true result must be matched by a call to {@link #releaseExtra}.
+	 */
+	static boolean tryAcquireExtra() {
+		synchronized (LOCK) {
+			if (running >= MAX_RUNNING || !WAITING.isEmpty()) {
+				return false;
+			}
+			running++;
+			return true;
+		}
+	}
+
+	/**
+	 * Gives back a slot taken with {@link #tryAcquireExtra}.
+	 */
+	static void releaseExtra() {
+		next(true);
+	}
+
+	static int running() {
+		synchronized (LOCK) {
+			return running;
+		}
+	}
+
+	static int waiting() {
+		synchronized (LOCK) {
+			return WAITING.size();
+		}
+	}
+
+	private static Bucket bucket(UUID playerId) {
+		return BUCKETS.computeIfAbsent(playerId, id -> new Bucket());
+	}
+
+	/**
+	 * Forgets every bucket that has refilled to {@link #BURST}. Call with LOCK held.
+	 */
+	private static void dropFullBuckets(long now) {
+		for (Iterator<Bucket> it = BUCKETS.values().iterator(); it.hasNext(); ) {
+			if (it.next().isFull(now)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Frees a slot and admits whoever is next, then tells everyone still waiting where they now stand.
+	 */
+	private static void next(boolean freeSlot) {
+		List<Ticket> admitted = new ArrayList<>(1);
+		List<Ticket> moved = new ArrayList<>();
+		synchronized (LOCK) {
+			if (freeSlot) {
+				running--;
+			}
+			while (running < MAX_RUNNING && !WAITING.isEmpty()) {
+				Ticket ticket = WAITING.pollFirst();
+				running++;
+				admitted.add(ticket);
+			}
+			int position = 0;
+			for (Ticket ticket : WAITING) {
+				position++;
+				if (ticket.position != position) {
+					ticket.position = position;
+					moved.add(ticket);
+				}
+			}
+		}
+		for (Ticket ticket : admitted) {
+			ticket.runOnServer(ticket::admit);
+		}
+		for (Ticket ticket : moved) {
+			int position = ticket.position;
+			ticket.runOnServer(() -> ticket.player.sendMessage(Text.of("Still waiting: you're #" + position + " in line."), false));
+		}
+	}
+
+	private static int intEnv(String name, int fallback) {
+		String value = System.getenv(name);
+		if (value != null) {
+			try {
+				return Math.max(1, Integer.parseInt(value.trim()));
+			} catch (NumberFormatException ex) {
+				TesseractMod.LOGGER.warn("Ignoring invalid {}={}", name, value);
+			}
+		}
+		return fallback;
+	}
+
+	/**
+	 * One draft's place in admission: waiting, running, or done.
+	 */
+	static final class Ticket {
+		private final ServerPlayerEntity player;
+		private final UUID jobId;
+		private final String requestId;
+		private final CancelToken token;
+		private final Consumer<Ticket> start;
+		private final long queuedAt = System.nanoTime();
+		private final AtomicBoolean released = new AtomicBoolean();
+		// Place in line while waiting; 0 for a draft admitted straight away.
+		private volatile int position;
+
+		private Ticket(ServerPlayerEntity player, UUID jobId, String requestId, CancelToken token, Consumer<Ticket> start) {
+			this.player = player;
+			this.jobId = jobId;
+			this.requestId = requestId;
+			this.token = token;
+			this.start = start;
+		}
+
+		/**
+		 * Gives the slot back. Safe to call more than once and from any thread.
+		 */
+		void release() {
+			if (released.compareAndSet(false, true)) {
+				next(true);
+			}
+		}
+
+		/**
+		 * Wraps a sink so the slot is given back as soon as the plan or error is delivered.
+		 */
+		GumloopClient.PlanSink releasing(GumloopClient.PlanSink sink) {
+			return new GumloopClient.PlanSink() {
+				@Override
+				public void onPlan(CompiledPlan plan) {
+					release();
+					sink.onPlan(plan);
+				}
+
+				@Override
+				public void onError(String message) {
+					release();
+					sink.onError(message);
+				}
+
+				@Override
+				public void onStage(BuildJobManager.State stage) {
+					sink.onStage(stage);
+				}
+			};
+		}
+
+		private void admit() {
+			if (token.isCancelled()) {
+				release();
+				return;
+			}
+			Metrics.QUEUE_WAIT.recordSince(queuedAt);
+			long waitedMs = (System.nanoTime() - queuedAt) / 1_000_000L;
+			if (position > 0) {
+				TesseractMod.LOGGER.info("Gumloop {} -> admitted after {}ms in queue.", requestId, waitedMs);
+				player.sendMessage(Text.of("Your turn: drafting now (waited " + waitedMs / 1000L + "s)."), false);
+				BuildJobManager.advance(jobId, BuildJobManager.State.DRAFTING);
+			}
+			try {
+				start.accept(this);
+			} catch (RuntimeException ex) {
+				TesseractMod.LOGGER.error("Gumloop {} -> failed to start draft", requestId, ex);
+				release();
+				BuildJobManager.fail(jobId);
+			}
+		}
+
+		private void cancel() {
+			boolean wasWaiting;
+			synchronized (LOCK) {
+				wasWaiting = WAITING.remove(this);
+			}
+			if (wasWaiting) {
+				released.set(true);
+				next(false);
+			} else {
+				release();
+			}
+		}
+
+		private void runOnServer(Runnable task) {
+			if (player.getServer() != null) {
+				player.getServer().execute(task);
+			}
+		}
+	}
+
+	/**
+	 * A player's draft allowance: up to {@link #BURST} at once, refilled one per {@link #REFILL_MS}.
+	 */
+	private static final class Bucket {
+		private double tokens = BURST;
+		private long updatedAt = System.currentTimeMillis();
+
+		/**
+		 * Takes one draft. Returns 0 if it was available, otherwise how long until it will be.
+		 */
+		private long take(long now) {
+			tokens = Math.min(BURST, tokens + (now - updatedAt) / (double) REFILL_MS);
+			updatedAt = now;
+			if (tokens >= 1.0) {
+				tokens -= 1.0;
+				return 0L;
+			}
+			return (long) Math.ceil((1.0 - tokens) * REFILL_MS);
+		}
+
+		private boolean isFull(long now) {
+			return tokens + (now - updatedAt) / (double) REFILL_MS >= BURST;
+		}
+	}
+}
@@ -1,292 +1,496 @@
 package com.rayyan.tesseract.gumloop;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSyntaxException;
 import com.rayyan.tesseract.TesseractMod;
 import com.rayyan.tesseract.gumloop.GumloopPayload.BlockOp;
 import com.rayyan.tesseract.gumloop.GumloopPayload.Context;
 import com.rayyan.tesseract.gumloop.GumloopPayload.Origin;
 import com.rayyan.tesseract.gumloop.GumloopPayload.Request;
 import com.rayyan.tesseract.gumloop.GumloopPayload.Size;
+import com.rayyan.tesseract.jobs.BuildJobManager;
+import com.rayyan.tesseract.jobs.BuildProgress;
+import com.rayyan.tesseract.jobs.CancelToken;
 import com.rayyan.tesseract.jobs.BuildQueueManager;
+import com.rayyan.tesseract.jobs.CompiledPlan;
+import com.rayyan.tesseract.metrics.Metrics;
+import com.rayyan.tesseract.metrics.TesseractEvents;
 import com.rayyan.tesseract.selection.Selection;
-import net.minecraft.block.BlockState;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.text.Text;
 import net.minecraft.util.math.BlockPos;
-import net.minecraft.util.registry.Registry;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URLDecoder;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 
 public final class GumloopClient {
-	private static final int MAX_CONTEXT_BLOCKS = 500;
+	private static final int MAX_CONTEXT_SECTIONS = 512;
+	private static final int MAX_CONTEXT_BLOCKS = maxContextBlocks();
 	private static final int MAX_BLOCKS = 600;
 	private static final int DEFAULT_BUILD_HEIGHT = 12;
 	private static final int LOG_BODY_PREVIEW = 240;
-	private static final int POLL_INTERVAL_MS = 1000;
-	private static final int MAX_POLL_ATTEMPTS = 120;
+	private static final long RUN_TIMEOUT_MS = 120_000L;
+	// Overridable so polls can be pointed at a local stub server.
+	private static final String API_BASE = apiBase();
+	private static final int CONTEXT_FORMAT = contextFormat();
+	// Off by default: the webhook endpoint has to accept Content-Encoding: gzip request bodies.
+	private static final boolean GZIP_REQUESTS = Boolean.parseBoolean(System.getenv("GUMLOOP_GZIP_REQUESTS"));
 	private static final Gson GSON = new Gson();
-	private static final HttpClient CLIENT = HttpClient.newHttpClient();
+	private static volatile PollConfig cachedPollConfig;
 
 	private GumloopClient() {}
 
-	public static void sendBuildRequest(ServerPlayerEntity player, Selection buildSelection, Selection contextSelection, String prompt) {
+	/**
+	 * Drafts a build for job {@code jobId} through Gumloop once {@link DraftAdmission} lets it in. Call on the
+	 * server thread.
+	 */
+	public static void sendBuildRequest(ServerPlayerEntity player, UUID jobId, Selection buildSelection, Selection contextSelection, String prompt) {
 		String webhook = System.getenv("GUMLOOP_WEBHOOK_URL");
 		if (webhook == null || webhook.isBlank()) {
 			player.sendMessage(Text.of("Error: GUMLOOP_WEBHOOK_URL is not set."), false);
+			BuildJobManager.fail(jobId);
 			return;
 		}
+		String requestId = "req-" + System.currentTimeMillis() + "-" + jobId.toString().substring(0, 8);
+		BuildJobManager.setRequestId(jobId, requestId);
+		CancelToken token = BuildJobManager.token(jobId);
+		boolean accepted = DraftAdmission.submit(player, jobId, requestId, token,
+			ticket -> startDraft(player, jobId, buildSelection, contextSelection, prompt, webhook, requestId, token, ticket));
+		if (!accepted) {
+			BuildJobManager.fail(jobId);
+		}
+	}
 
-		String requestId = "req-" + System.currentTimeMillis() + "-" + player.getUuid().toString().substring(0, 8);
+	private static void startDraft(ServerPlayerEntity player, UUID jobId, Selection buildSelection, Selection contextSelection, String prompt, String webhook, String requestId, CancelToken token, DraftAdmission.Ticket ticket) {
+		// Gumloop latency is measured from admission; time in the queue is logged by DraftAdmission.
 		long startNanos = System.nanoTime();
-		Request request = buildRequest(player, buildSelection, contextSelection, prompt);
-		String json = GSON.toJson(request);
-		GumloopProgressManager.startDrafting(player, requestId);
-		TesseractMod.LOGGER.info("Gumloop {} -> sending request (size={}, contextBlocks={}, hasScreenshot={})",
+		BlockPos size = effectiveBuildSize(buildSelection);
+		Origin origin = toOrigin(buildSelection.getMin());
+		// Only the section copies are taken here; scanning and JSON encoding happen on a plan worker.
+		// 1.18.2: ServerPlayerEntity#getWorld() returns a ServerWorld on the server.
+		ContextSnapshot snapshot = snapshotContext((ServerWorld) player.getWorld(), contextSelection, requestId);
+		BuildProgress.startDrafting(player, jobId, requestId);
+
+		PlanSink sink = ticket.releasing(buildSink(player, jobId, buildSelection, requestId, token));
+		CompletableFuture.runAsync(() -> {
+			if (token.isCancelled()) {
+				return;
+			}
+			long buildStart = System.nanoTime();
+			Request request = buildRequest(prompt, origin, size, buildContext(contextSelection, snapshot, requestId));
+			Metrics.REQUEST_BUILD.recordSince(buildStart);
+			draft(requestId, webhook, request, size, snapshot, startNanos, token, sink);
+		}, PlanWorkers.executor()).whenComplete((ignored, error) -> {
+			if (error != null && !token.isCancelled()) {
+				TesseractMod.LOGGER.error("Gumloop {} -> failed to prepare request", requestId, error);
+				sink.onError("Error: Gumloop request failed (request " + requestId + ").");
+			}
+		});
+	}
+
+	/**
+	 * Adds the gauges for Gumloop's queues and caches to {@link Metrics}. Call once, at startup.
+	 */
+	public static void registerMetrics() {
+		Metrics.gauge("tesseract_drafts_running", "Drafts admitted and talking to Gumloop.", DraftAdmission::running);
+		Metrics.gauge("tesseract_drafts_waiting", "Drafts waiting for admission.", DraftAdmission::waiting);
+		Metrics.gauge("tesseract_runs_polling", "Gumloop runs being polled.", RunPoller::pendingRuns);
+		Metrics.gauge("tesseract_requests_in_flight", "Distinct plan requests in flight.", SingleFlight::inFlight);
+		Metrics.gauge("tesseract_requests_coalesced", "Plan requests answered by an identical one in flight.", SingleFlight::coalesced);
+		Metrics.gauge("tesseract_plan_cache_hits", "Plans served from the plan cache.", PlanCache::hits);
+		Metrics.gauge("tesseract_plan_cache_misses", "Plans that had to be fetched or drafted.", PlanCache::misses);
+	}
+
+	/**
+	 * Drafts a selection larger than one request may cover as a grid of tiles (see {@link TiledBuild}).
+	 */
+	public static void sendTiledBuildRequest(ServerPlayerEntity player, UUID jobId, Selection buildSelection, Selection contextSelection, String prompt) {
+		String webhook = System.getenv("GUMLOOP_WEBHOOK_URL");
+		if (webhook == null || webhook.isBlank()) {
+			player.sendMessage(Text.of("Error: GUMLOOP_WEBHOOK_URL is not set."), false);
+			BuildJobManager.fail(jobId);
+			return;
+		}
+		String requestId = "req-" + System.currentTimeMillis() + "-" + jobId.toString().substring(0, 8);
+		BuildJobManager.setRequestId(jobId, requestId);
+		// The grid is admitted as one draft; TiledBuild takes a further slot for each extra tile in flight.
+		boolean accepted = DraftAdmission.submit(player, jobId, requestId, BuildJobManager.token(jobId), ticket -> {
+			BlockPos size = effectiveBuildSize(buildSelection);
+			// 1.18.2: ServerPlayerEntity#getWorld() returns a ServerWorld on the server.
+			ServerWorld world = (ServerWorld) player.getWorld();
+			ContextSnapshot snapshot = snapshotContext(world, contextSelection, requestId);
+			BuildProgress.startDrafting(player, jobId, requestId);
+			TiledBuild.start(player, jobId, world, buildSelection.getMin(), size, prompt, contextSelection, snapshot, webhook, requestId, ticket);
+		});
+		if (!accepted) {
+			BuildJobManager.fail(jobId);
+		}
+	}
+
+	/**
+	 * Where a drafted plan goes: the build that asked for it, or one tile of a large build. Called on a plan
+	 * worker.
+	 */
+	interface PlanSink {
+		void onPlan(CompiledPlan plan);
+
+		void onError(String message);
+
+		/**
+		 * The request moved on to polling or validating.
+		 */
+		default void onStage(BuildJobManager.State stage) {}
+	}
+
+	private static PlanSink buildSink(ServerPlayerEntity player, UUID jobId, Selection buildSelection, String requestId, CancelToken token) {
+		return new PlanSink() {
+			@Override
+			public void onPlan(CompiledPlan plan) {
+				startBuildOnServer(player, jobId, buildSelection, requestId, token, plan);
+			}
+
+			@Override
+			public void onError(String message) {
+				failOnServer(player, jobId, message);
+			}
+
+			@Override
+			public void onStage(BuildJobManager.State stage) {
+				BuildJobManager.advance(jobId, stage);
+			}
+		};
+	}
+
+	/**
+	 * Answers the request from the plan cache, from an identical request already in flight, or by sending
+	 * it. Runs on a plan worker. Once {@code token} is cancelled the sink hears nothing more; the request,
+	 * its polls and its body are abandoned once no other caller is waiting on them.
+	 */
+	static void draft(String requestId, String webhook, Request request, BlockPos size, ContextSnapshot snapshot, long startNanos, CancelToken token, PlanSink sink) {
+		String cacheKey = cacheKey(webhook, request);
+		PlanCache.Entry cached = PlanCache.get(cacheKey);
+		if (cached != null) {
+			TesseractMod.LOGGER.info("Gumloop {} -> plan cache hit ({} ops), skipping request.", requestId, cached.plan.size());
+			sink.onPlan(cached.plan);
+			return;
+		}
+		SingleFlight.join(cacheKey, requestId, token, flightToken -> {
+			CompletableFuture<PlanValidationResult> result = new CompletableFuture<>();
+			sendPlanRequest(resultSink(result, sink, token), flightToken, requestId, webhook, request, GSON.toJson(request), size, snapshot, cacheKey, startNanos);
+			return result;
+		}).whenComplete((result, error) -> {
+			if (token.isCancelled()) {
+				return;
+			}
+			if (error != null) {
+				TesseractMod.LOGGER.error("Gumloop {} -> request failed: {}", requestId, error.toString());
+				sink.onError("Error: Gumloop request failed (request " + requestId + ").");
+			} else if (result.error != null) {
+				sink.onError(result.error);
+			} else {
+				sink.onPlan(result.plan);
+			}
+		});
+	}
+
+	/**
+	 * The plan cache and in-flight key for a request sent to {@code webhook}. A plan is relative to its
+	 * build's origin, so the origin is left out and the context's origin is made relative to it: the same
+	 * prompt, size and surroundings share a plan wherever they are built. The key is built from a JSON copy
+	 * of the request, which is left as it was. Gson writes fields in declaration order, so equal requests
+	 * give equal keys. The webhook is part of the key, since another flow may answer the same request
+	 * differently.
+	 */
+	private static String cacheKey(String webhook, Request request) {
+		JsonObject canonical = GSON.toJsonTree(request).getAsJsonObject();
+		canonical.remove("origin");
+		if (request.origin != null && request.context != null && request.context.origin != null) {
+			Origin relative = new Origin();
+			relative.x = request.context.origin.x - request.origin.x;
+			relative.y = request.context.origin.y - request.origin.y;
+			relative.z = request.context.origin.z - request.origin.z;
+			canonical.getAsJsonObject("context").add("origin", GSON.toJsonTree(relative));
+		}
+		return PlanCache.key("gumloop", webhook + "\n" + GSON.toJson(canonical));
+	}
+
+	/**
+	 * Completes {@code result} with the shared request's plan or error. Stage changes still go to the sink of
+	 * the caller that sent it until that caller's own {@code token} is cancelled; the request may run on for
+	 * the callers that joined it, and they stay drafting until the plan arrives.
+	 */
+	private static PlanSink resultSink(CompletableFuture<PlanValidationResult> result, PlanSink sink, CancelToken token) {
+		return new PlanSink() {
+			@Override
+			public void onPlan(CompiledPlan plan) {
+				result.complete(PlanValidationResult.success(plan));
+			}
+
+			@Override
+			public void onError(String message) {
+				result.complete(PlanValidationResult.error(message));
+			}
+
+			@Override
+			public void onStage(BuildJobManager.State stage) {
+				if (!token.isCancelled()) {
+					sink.onStage(stage);
+				}
+			}
+		};
+	}
+
+	private static void sendPlanRequest(PlanSink sink, CancelToken token, String requestId, String webhook, Request request, String requestJson, BlockPos size, ContextSnapshot snapshot, String cacheKey, long startNanos) {
+		byte[] json = requestJson.getBytes(StandardCharsets.UTF_8);
+		byte[] payload = GZIP_REQUESTS ? ContextEncoder.gzip(json) : json;
+		TesseractMod.LOGGER.info("Gumloop {} -> sending request (format={}, size={}, contextBlocks={}, contextSections={}, bytes={}, sentBytes={}, hasScreenshot={})",
 			requestId,
+			request.format,
 			request.size == null ? "unknown" : request.size.w + "x" + request.size.h + "x" + request.size.l,
-			request.context == null || request.context.blocks == null ? 0 : request.context.blocks.size(),
+			contextBlockCount(request.context),
+			snapshot == null ? 0 : snapshot.sectionCount(),
+			json.length,
+			payload.length,
 			request.context != null && request.context.screenshot != null);
-
-		HttpRequest httpRequest = HttpRequest.newBuilder()
+		HttpRequest.Builder builder = HttpRequest.newBuilder()
 			.uri(URI.create(webhook))
 			.timeout(Duration.ofSeconds(20))
-			.header("Content-Type", "application/json")
-			.POST(HttpRequest.BodyPublishers.ofString(json))
-			.build();
-
-		CLIENT.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString())
-			.whenComplete((response, error) -> {
-				if (player.getServer() == null) {
+			.header("Content-Type", "application/json");
+		if (GZIP_REQUESTS) {
+			builder.header("Content-Encoding", "gzip");
+		}
+		long sentNanos = System.nanoTime();
+		TesseractEvents.Http http = new TesseractEvents.Http();
+		http.begin();
+		HttpTransport.send(builder.POST(HttpRequest.BodyPublishers.ofByteArray(payload)).build(), HttpResponse.BodyHandlers.ofInputStream(), token)
+			.whenCompleteAsync((response, error) -> {
+				http.finish(requestId, "draft", response == null ? 0 : response.statusCode(), error);
+				// Runs on a plan worker: only the handoff below touches the server thread.
+				long elapsedMs = (System.nanoTime() - startNanos) / 1_000_000L;
+				if (token.isCancelled()) {
+					TesseractMod.LOGGER.info("Gumloop {} -> cancelled after {}ms.", requestId, elapsedMs);
+					if (response != null) {
+						closeQuietly(response.body());
+					}
 					return;
 				}
-				player.getServer().execute(() -> {
-					long elapsedMs = (System.nanoTime() - startNanos) / 1_000_000L;
-					if (error != null) {
-						TesseractMod.LOGGER.error("Gumloop {} -> request failed after {}ms: {}", requestId, elapsedMs, error.toString());
-						player.sendMessage(Text.of("Error: Gumloop request failed (request " + requestId + ")."), false);
-						GumloopProgressManager.stopDrafting(player.getUuid());
-						com.rayyan.tesseract.jobs.BuildJobManager.finish(player.getUuid());
-						return;
-					}
-					if (response == null) {
-						TesseractMod.LOGGER.error("Gumloop {} -> null response after {}ms.", requestId, elapsedMs);
-						player.sendMessage(Text.of("Error: Gumloop response was empty (request " + requestId + ")."), false);
-						GumloopProgressManager.stopDrafting(player.getUuid());
-						com.rayyan.tesseract.jobs.BuildJobManager.finish(player.getUuid());
+				if (error != null) {
+					TesseractMod.LOGGER.error("Gumloop {} -> request failed after {}ms: {}", requestId, elapsedMs, error.toString());
+					if (HttpTransport.isHostDown(error)) {
+						sink.onError("Error: Gumloop is unreachable right now, try again shortly (request " + requestId + ").");
 						return;
 					}
-					int status = response.statusCode();
-					String body = response.body();
-					TesseractMod.LOGGER.info("Gumloop {} -> status={} in {}ms (bodyLen={})",
-						requestId,
-						status,
-						elapsedMs,
-						body == null ? 0 : body.length());
-					if (status < 200 || status >= 300) {
-						TesseractMod.LOGGER.warn("Gumloop {} -> non-2xx response: {}", requestId, preview(body));
-						player.sendMessage(Text.of("Error: Gumloop returned status " + status + " (request " + requestId + ")."), false);
-						GumloopProgressManager.stopDrafting(player.getUuid());
-						com.rayyan.tesseract.jobs.BuildJobManager.finish(player.getUuid());
-						return;
-					}
-					String runId = extractRunId(body);
-					if (runId != null) {
-						TesseractMod.LOGGER.info("Gumloop {} -> received run_id {}, polling for outputs.", requestId, runId);
-						pollRunForPlan(player, buildSelection, requestId, runId, webhook, 0);
-						return;
-					}
-					PlanResult planResult = parseAndValidatePlan(body, buildSelection, requestId);
-					if (planResult.error != null) {
-						player.sendMessage(Text.of("Error: " + planResult.error + " (request " + requestId + ")."), false);
-						GumloopProgressManager.stopDrafting(player.getUuid());
-						com.rayyan.tesseract.jobs.BuildJobManager.finish(player.getUuid());
-						return;
-					}
-					GumloopPayload.Response plan = planResult.plan;
-					int count = plan.ops == null ? 0 : plan.ops.size();
-					player.sendMessage(Text.of("Plan validated: " + count + " ops."), false);
-					if (plan.meta != null && plan.meta.warnings != null && !plan.meta.warnings.isEmpty()) {
-						player.sendMessage(Text.of("Warnings: " + String.join("; ", plan.meta.warnings)), false);
-					}
-					GumloopProgressManager.stopDrafting(player.getUuid());
-					boolean queued = BuildQueueManager.startBuild(player, buildSelection, plan);
-					if (!queued) {
-						player.sendMessage(Text.of("Error: failed to start build (request " + requestId + ")."), false);
-						com.rayyan.tesseract.jobs.BuildJobManager.finish(player.getUuid());
-					}
-				});
-			});
+					sink.onError("Error: Gumloop request failed (request " + requestId + ").");
+					return;
+				}
+				if (response == null) {
+					TesseractMod.LOGGER.error("Gumloop {} -> null response after {}ms.", requestId, elapsedMs);
+					sink.onError("Error: Gumloop response was empty (request " + requestId + ").");
+					return;
+				}
+				Metrics.HTTP_ROUND_TRIP.recordSince(sentNanos);
+				int status = response.statusCode();
+				if (status < 200 || status >= 300) {
+					TesseractMod.LOGGER.warn("Gumloop {} -> non-2xx response in {}ms: {}", requestId, elapsedMs, readPreview(response.body()));
+					sink.onError("Error: Gumloop returned status " + status + " (request " + requestId + ").");
+					return;
+				}
+				sink.onStage(BuildJobManager.State.VALIDATING);
+				PlanStreamDecoder decoder = newDecoder(size, requestId);
+				try (InputStream body = response.body()) {
+					// Cancelling mid-body closes the stream under the decoder, which ends the read.
+					token.onCancel(() -> closeQuietly(body));
+					decoder.decode(body);
+				} catch (IOException ex) {
+					// Closing early just drops the unread rest of the body.
+				}
+				if (token.isCancelled()) {
+					return;
+				}
+				TesseractMod.LOGGER.info("Gumloop {} -> status={} in {}ms (bodyLen={}, decodedIn={}ms)",
+					requestId,
+					status,
+					elapsedMs,
+					decoder.getCharsRead(),
+					(System.nanoTime() - startNanos) / 1_000_000L - elapsedMs);
+				String runId = decoder.getRunId();
+				if (!decoder.isPlanFound() && runId != null) {
+					TesseractMod.LOGGER.info("Gumloop {} -> received run_id {}, polling for outputs.", requestId, runId);
+					sink.onStage(BuildJobManager.State.POLLING);
+					pollRunForPlan(sink, token, size, requestId, runId, webhook, cacheKey);
+					return;
+				}
+				PlanValidationResult result = toResult(decoder, requestId);
+				if (result.error != null) {
+					sink.onError("Error: " + result.error + " (request " + requestId + ").");
+					return;
+				}
+				PlanCache.put(cacheKey, result.plan);
+				sink.onPlan(result.plan);
+			}, PlanWorkers.executor());
 	}
 
-	public static PlanValidationResult parsePlanForSelection(String body, Selection buildSelection, String requestId) {
-		BlockPos size = effectiveBuildSize(buildSelection);
-		if (size == null) {
-			return PlanValidationResult.error("Invalid build selection size.");
-		}
-		JsonObject planJson = extractPlanJson(body);
-		if (planJson == null) {
-			return PlanValidationResult.error("Could not find build plan in response.");
-		}
-		PlanResult internal = parseAndValidatePlanJson(planJson, size, requestId);
-		if (internal.error != null) {
-			return PlanValidationResult.error(internal.error);
+	/**
+	 * Reports a failed request to the player and fails its job, on the server thread.
+	 */
+	private static void failOnServer(ServerPlayerEntity player, UUID jobId, String message) {
+		if (player.getServer() == null) {
+			return;
 		}
-		return PlanValidationResult.success(internal.plan);
+		player.getServer().execute(() -> {
+			player.sendMessage(Text.of(message), false);
+			BuildProgress.stopDrafting(jobId);
+			BuildJobManager.fail(jobId);
+		});
 	}
 
-	private static PlanResult parseAndValidatePlan(String body, Selection buildSelection, String requestId) {
-		if (body == null || body.isBlank()) {
-			TesseractMod.LOGGER.warn("Gumloop {} -> empty response body.", requestId);
-			return PlanResult.error("Gumloop returned empty response.");
+	/**
+	 * Hands a compiled plan to the build queue on the server thread.
+	 */
+	private static void startBuildOnServer(ServerPlayerEntity player, UUID jobId, Selection buildSelection, String requestId, CancelToken token, CompiledPlan plan) {
+		if (player.getServer() == null) {
+			return;
 		}
-		BlockPos size = effectiveBuildSize(buildSelection);
-		if (size == null) {
-			TesseractMod.LOGGER.warn("Gumloop {} -> invalid selection size.", requestId);
-			return PlanResult.error("Invalid build selection size.");
-		}
-		JsonObject planJson = extractPlanJson(body);
-		if (planJson == null) {
-			String asyncHint = detectRunMetadata(body);
-			TesseractMod.LOGGER.warn("Gumloop {} -> missing plan JSON. Body preview: {}", requestId, preview(body));
-			if (asyncHint != null) {
-				return PlanResult.error(asyncHint);
+		player.getServer().execute(() -> {
+			if (token.isCancelled()) {
+				// The job ended (cancelled or timed out) while the plan was on its way; its region is gone.
+				TesseractMod.LOGGER.warn("Gumloop {} -> plan arrived after the job ended; dropped.", requestId);
+				return;
 			}
-			return PlanResult.error("Could not find build plan in Gumloop response. Body preview: " + preview(body));
-		}
-		return parseAndValidatePlanJson(planJson, size, requestId);
+			player.sendMessage(Text.of("Plan validated: " + plan.size() + " ops."), false);
+			if (!plan.getWarnings().isEmpty()) {
+				player.sendMessage(Text.of("Warnings: " + String.join("; ", plan.getWarnings())), false);
+			}
+			// The drafting bar is handed over to placement; it only goes away if the build does not start.
+			boolean queued = BuildQueueManager.startBuild(player, jobId, buildSelection, plan);
+			if (!queued) {
+				BuildProgress.stopDrafting(jobId);
+				player.sendMessage(Text.of("Error: failed to start build (request " + requestId + ")."), false);
+				BuildJobManager.fail(jobId);
+			}
+		});
 	}
 
-	private static PlanResult parseAndValidatePlanJson(JsonObject planJson, BlockPos size, String requestId) {
-		String validationError = validatePlan(planJson, size, defaultPalette(), MAX_BLOCKS);
-		if (validationError != null) {
-			TesseractMod.LOGGER.warn("Gumloop {} -> validation failed: {}", requestId, validationError);
-			return PlanResult.error(validationError);
-		}
-		GumloopPayload.Response plan = GSON.fromJson(planJson, GumloopPayload.Response.class);
-		if (plan == null || plan.ops == null) {
-			return PlanResult.error("Parsed plan is missing ops.");
+	/**
+	 * Streams, validates and compiles a plan for a build of the given size. Blocks while the body is read,
+	 * so call it from a worker, never the server thread. The stream is not closed.
+	 */
+	public static PlanValidationResult parsePlanForSize(InputStream body, BlockPos size, String requestId) {
+		if (size == null) {
+			return PlanValidationResult.error("Invalid build selection size.");
 		}
-		if (plan.meta == null) {
-			plan.meta = new GumloopPayload.Meta();
-			plan.meta.blockCount = plan.ops.size();
+		PlanStreamDecoder decoder = newDecoder(size, requestId);
+		decoder.decode(body);
+		if (!decoder.isPlanFound()) {
+			TesseractMod.LOGGER.warn("Plan {} -> missing plan JSON. Body preview: {}", requestId, decoder.getPreview());
+			return PlanValidationResult.error("Could not find build plan in response.");
 		}
-		return PlanResult.success(plan);
+		return toResult(decoder, requestId);
 	}
 
-	private static void pollRunForPlan(ServerPlayerEntity player, Selection buildSelection, String requestId, String runId, String webhook, int attempt) {
-		if (player == null || player.getServer() == null) {
-			return;
+	private static PlanStreamDecoder newDecoder(BlockPos size, String requestId) {
+		return new PlanStreamDecoder(size, defaultPalette(), MAX_BLOCKS, LOG_BODY_PREVIEW, requestId);
+	}
+
+	private static PlanValidationResult toResult(PlanStreamDecoder decoder, String requestId) {
+		if (!decoder.isPlanFound()) {
+			TesseractMod.LOGGER.warn("Gumloop {} -> missing plan JSON. Body preview: {}", requestId, decoder.getPreview());
+			if (decoder.getCharsRead() == 0) {
+				return PlanValidationResult.error("Gumloop returned empty response.");
+			}
+			if (decoder.looksLikeRunMetadata()) {
+				return PlanValidationResult.error("Gumloop returned run metadata (run_id/url) instead of a plan. " +
+					"Use the Webhook Trigger URL and an Output node to return the plan, " +
+					"or enable synchronous webhook responses in Gumloop.");
+			}
+			return PlanValidationResult.error("Could not find build plan in Gumloop response. Body preview: " + decoder.getPreview());
 		}
-		if (attempt >= MAX_POLL_ATTEMPTS) {
-			player.getServer().execute(() -> {
-				player.sendMessage(Text.of("Error: Gumloop run timed out waiting for outputs (request " + requestId + ")."), false);
-				GumloopProgressManager.stopDrafting(player.getUuid());
-				com.rayyan.tesseract.jobs.BuildJobManager.finish(player.getUuid());
-			});
-			return;
+		if (decoder.getError() != null) {
+			TesseractMod.LOGGER.warn("Gumloop {} -> validation failed: {}", requestId, decoder.getError());
+			return PlanValidationResult.error(decoder.getError());
 		}
+		return PlanValidationResult.success(decoder.getPlan());
+	}
 
-		PollConfig config = parseWebhookConfig(webhook);
-		URI pollUri = buildPollUri(runId, config);
+	private static void pollRunForPlan(PlanSink sink, CancelToken token, BlockPos size, String requestId, String runId, String webhook, String cacheKey) {
+		PollConfig config = pollConfig(webhook);
 		HttpRequest.Builder builder = HttpRequest.newBuilder()
-			.uri(pollUri)
+			.uri(buildPollUri(runId, config))
 			.timeout(Duration.ofSeconds(15))
 			.header("Content-Type", "application/json")
 			.GET();
 		if (config.apiKey != null && !config.apiKey.isBlank()) {
 			builder.header("Authorization", "Bearer " + config.apiKey);
 		}
-		HttpRequest pollRequest = builder.build();
 
-		CLIENT.sendAsync(pollRequest, HttpResponse.BodyHandlers.ofString())
-			.whenComplete((response, error) -> {
-				if (player.getServer() == null) {
-					return;
+		RunPoller.watch(requestId, runId, builder.build(), RUN_TIMEOUT_MS, new RunPoller.Handler() {
+			@Override
+			public RunPoller.Outcome onResponse(InputStream body) {
+				if (token.isCancelled()) {
+					return RunPoller.Outcome.DONE;
 				}
-				player.getServer().execute(() -> {
-					if (error != null || response == null) {
-						TesseractMod.LOGGER.warn("Gumloop {} -> poll attempt {} failed: {}", requestId, attempt, error);
-						scheduleNextPoll(player, buildSelection, requestId, runId, webhook, attempt + 1);
-						return;
-					}
-					String body = response.body();
-					JsonElement root;
-					try {
-						root = JsonParser.parseString(body);
-					} catch (JsonSyntaxException ex) {
-						scheduleNextPoll(player, buildSelection, requestId, runId, webhook, attempt + 1);
-						return;
-					}
-					if (!root.isJsonObject()) {
-						scheduleNextPoll(player, buildSelection, requestId, runId, webhook, attempt + 1);
-						return;
-					}
-					JsonObject obj = root.getAsJsonObject();
-					String state = getString(obj.get("state"));
-					if (state != null && state.equalsIgnoreCase("FAILED")) {
-						player.sendMessage(Text.of("Error: Gumloop run failed (request " + requestId + ")."), false);
-						GumloopProgressManager.stopDrafting(player.getUuid());
-						com.rayyan.tesseract.jobs.BuildJobManager.finish(player.getUuid());
-						return;
-					}
-					JsonElement outputs = obj.get("outputs");
-					if (outputs != null && !outputs.isJsonNull()) {
-						JsonObject planJson = findPlan(outputs, 0);
-						if (planJson != null) {
-							PlanResult planResult = parseAndValidatePlanJson(planJson, effectiveBuildSize(buildSelection), requestId);
-							if (planResult.error != null) {
-								player.sendMessage(Text.of("Error: " + planResult.error + " (request " + requestId + ")."), false);
-								GumloopProgressManager.stopDrafting(player.getUuid());
-								com.rayyan.tesseract.jobs.BuildJobManager.finish(player.getUuid());
-								return;
-							}
-							GumloopPayload.Response plan = planResult.plan;
-							int count = plan.ops == null ? 0 : plan.ops.size();
-							player.sendMessage(Text.of("Plan validated: " + count + " ops."), false);
-							if (plan.meta != null && plan.meta.warnings != null && !plan.meta.warnings.isEmpty()) {
-								player.sendMessage(Text.of("Warnings: " + String.join("; ", plan.meta.warnings)), false);
-							}
-							GumloopProgressManager.stopDrafting(player.getUuid());
-							boolean queued = BuildQueueManager.startBuild(player, buildSelection, plan);
-							if (!queued) {
-								player.sendMessage(Text.of("Error: failed to start build (request " + requestId + ")."), false);
-								com.rayyan.tesseract.jobs.BuildJobManager.finish(player.getUuid());
-							}
-							return;
-						}
+				PlanStreamDecoder decoder = newDecoder(size, requestId);
+				decoder.decode(body);
+				if (decoder.isPlanFound()) {
+					sink.onStage(BuildJobManager.State.VALIDATING);
+					PlanValidationResult result = toResult(decoder, requestId);
+					if (result.error != null) {
+						sink.onError("Error: " + result.error + " (request " + requestId + ").");
+					} else {
+						PlanCache.put(cacheKey, result.plan);
+						sink.onPlan(result.plan);
 					}
-					scheduleNextPoll(player, buildSelection, requestId, runId, webhook, attempt + 1);
-				});
-			});
+					return RunPoller.Outcome.DONE;
+				}
+				String state = decoder.getState();
+				if (state != null && (state.equalsIgnoreCase("FAILED") || state.equalsIgnoreCase("TERMINATED"))) {
+					sink.onError("Error: Gumloop run failed (request " + requestId + ").");
+					return RunPoller.Outcome.DONE;
+				}
+				if (state != null && state.equalsIgnoreCase("QUEUED")) {
+					return RunPoller.Outcome.QUEUED;
+				}
+				return RunPoller.Outcome.RUNNING;
+			}
+
+			@Override
+			public void onTimeout() {
+				if (!token.isCancelled()) {
+					sink.onError("Error: Gumloop run timed out waiting for outputs (request " + requestId + ").");
+				}
+			}
+		});
+		token.onCancel(() -> RunPoller.cancel(requestId));
 	}
 
-	private static void scheduleNextPoll(ServerPlayerEntity player, Selection buildSelection, String requestId, String runId, String webhook, int nextAttempt) {
-		CompletableFuture.delayedExecutor(POLL_INTERVAL_MS, java.util.concurrent.TimeUnit.MILLISECONDS)
-			.execute(() -> pollRunForPlan(player, buildSelection, requestId, runId, webhook, nextAttempt));
+	/**
+	 * The webhook URL only changes with the environment, so its query is parsed once and reused.
+	 */
+	private static PollConfig pollConfig(String webhook) {
+		PollConfig config = cachedPollConfig;
+		if (config == null || !webhook.equals(config.webhook)) {
+			config = parseWebhookConfig(webhook);
+			cachedPollConfig = config;
+		}
+		return config;
 	}
 
 	private static PollConfig parseWebhookConfig(String webhook) {
 		PollConfig config = new PollConfig();
+		config.webhook = webhook;
 		try {
 			URI uri = URI.create(webhook);
 			Map<String, String> params = parseQueryParams(uri.getRawQuery());
@@ -299,7 +503,7 @@ public final class GumloopClient {
 	}
 
 	private static URI buildPollUri(String runId, PollConfig config) {
-		StringBuilder sb = new StringBuilder("https://api.gumloop.com/api/v1/get_pl_run?run_id=");
+		StringBuilder sb = new StringBuilder(API_BASE).append("/api/v1/get_pl_run?run_id=");
 		sb.append(runId);
 		if (config.userId != null && !config.userId.isBlank()) {
 			sb.append("&user_id=").append(urlEncode(config.userId));
@@ -310,20 +514,12 @@ public final class GumloopClient {
 		return URI.create(sb.toString());
 	}
 
-	private static String extractRunId(String body) {
-		if (body == null || body.isBlank()) {
-			return null;
-		}
-		try {
-			JsonElement root = JsonParser.parseString(body);
-			if (!root.isJsonObject()) {
-				return null;
-			}
-			JsonObject obj = root.getAsJsonObject();
-			return getString(obj.get("run_id"));
-		} catch (JsonSyntaxException ex) {
-			return null;
+	private static String apiBase() {
+		String value = System.getenv("GUMLOOP_API_BASE");
+		if (value == null || value.isBlank()) {
+			return "https://api.gumloop.com";
 		}
+		return value.endsWith("/") ? value.substring(0, value.length() - 1) : value;
 	}
 
 	private static Map<String, String> parseQueryParams(String query) {
@@ -349,32 +545,12 @@ public final class GumloopClient {
 	}
 
 	private static final class PollConfig {
+		private String webhook;
 		private String apiKey;
 		private String userId;
 	}
 
-	private static String detectRunMetadata(String body) {
-		if (body == null || body.isBlank()) {
-			return null;
-		}
-		try {
-			JsonElement root = JsonParser.parseString(body);
-			if (!root.isJsonObject()) {
-				return null;
-			}
-			JsonObject obj = root.getAsJsonObject();
-			if (obj.has("run_id") && obj.has("url") && !obj.has("meta") && !obj.has("ops")) {
-				return "Gumloop returned run metadata (run_id/url) instead of a plan. " +
-					"Use the Webhook Trigger URL and an Output node to return the plan, " +
-					"or enable synchronous webhook responses in Gumloop.";
-			}
-		} catch (JsonSyntaxException ex) {
-			return null;
-		}
-		return null;
-	}
-
-	private static BlockPos effectiveBuildSize(Selection buildSelection) {
+	public static BlockPos effectiveBuildSize(Selection buildSelection) {
 		BlockPos size = buildSelection.getSize();
 		if (size == null) {
 			return null;
@@ -387,173 +563,43 @@ public final class GumloopClient {
 		return size;
 	}
 
-	private static JsonObject extractPlanJson(String body) {
-		JsonElement root;
-		try {
-			root = JsonParser.parseString(body);
-		} catch (JsonSyntaxException ex) {
-			return null;
-		}
-		return findPlan(root, 0);
-	}
-
-	private static JsonObject findPlan(JsonElement element, int depth) {
-		if (element == null || element.isJsonNull() || depth > 6) {
-			return null;
-		}
-		if (element.isJsonObject()) {
-			JsonObject obj = element.getAsJsonObject();
-			if (obj.has("meta") || obj.has("ops")) {
-				return obj;
-			}
-			if (obj.has("response")) {
-				JsonObject found = findPlan(obj.get("response"), depth + 1);
-				if (found != null) {
-					return found;
-				}
-			}
-			for (String key : obj.keySet()) {
-				JsonObject found = findPlan(obj.get(key), depth + 1);
-				if (found != null) {
-					return found;
-				}
-			}
-			return null;
-		}
-		if (element.isJsonArray()) {
-			for (JsonElement child : element.getAsJsonArray()) {
-				JsonObject found = findPlan(child, depth + 1);
-				if (found != null) {
-					return found;
-				}
-			}
-			return null;
-		}
-		if (element.isJsonPrimitive()) {
-			JsonPrimitive primitive = element.getAsJsonPrimitive();
-			if (primitive.isString()) {
-				try {
-					return findPlan(JsonParser.parseString(primitive.getAsString()), depth + 1);
-				} catch (JsonSyntaxException ex) {
-					return null;
-				}
-			}
-		}
-		return null;
-	}
-
-	private static String validatePlan(JsonObject planJson, BlockPos size, List<String> palette, int maxBlocks) {
-		if (!planJson.has("meta") || !planJson.has("ops")) {
-			return "Plan missing required fields (meta, ops).";
-		}
-		if (!planJson.get("meta").isJsonObject()) {
-			return "Plan meta must be an object.";
-		}
-		if (!planJson.get("ops").isJsonArray()) {
-			return "Plan ops must be an array.";
-		}
-		JsonObject meta = planJson.getAsJsonObject("meta");
-		JsonArray ops = planJson.getAsJsonArray("ops");
-		Integer blockCount = getInt(meta.get("blockCount"));
-		if (blockCount == null) {
-			return "Plan meta.blockCount must be an integer.";
-		}
-		if (ops.size() > maxBlocks) {
-			return "Plan has too many ops (" + ops.size() + " > " + maxBlocks + ").";
-		}
-		int width = size.getX();
-		int height = size.getY();
-		int length = size.getZ();
-		for (int i = 0; i < ops.size(); i++) {
-			JsonElement rawOp = ops.get(i);
-			if (!rawOp.isJsonObject()) {
-				return "Op " + i + " is not an object.";
-			}
-			JsonObject op = rawOp.getAsJsonObject();
-			Integer x = getInt(op.get("x"));
-			Integer y = getInt(op.get("y"));
-			Integer z = getInt(op.get("z"));
-			String block = getString(op.get("block"));
-			if (x == null || y == null || z == null || block == null) {
-				return "Op " + i + " missing x/y/z/block.";
-			}
-			if (x < 0 || x >= width || y < 0 || y >= height || z < 0 || z >= length) {
-				return "Op " + i + " out of bounds (" + x + "," + y + "," + z + ").";
-			}
-			if (!palette.contains(block)) {
-				return "Op " + i + " uses disallowed block: " + block;
-			}
-		}
-		if (blockCount != ops.size()) {
-			return "meta.blockCount does not match ops length.";
-		}
-		return null;
-	}
-
-	private static Integer getInt(JsonElement element) {
-		if (element == null || !element.isJsonPrimitive()) {
-			return null;
-		}
-		JsonPrimitive primitive = element.getAsJsonPrimitive();
-		if (!primitive.isNumber()) {
-			return null;
+	private static void closeQuietly(InputStream body) {
+		if (body == null) {
+			return;
 		}
 		try {
-			return primitive.getAsInt();
-		} catch (NumberFormatException ex) {
-			return null;
-		}
-	}
-
-	private static String getString(JsonElement element) {
-		if (element == null || !element.isJsonPrimitive()) {
-			return null;
-		}
-		JsonPrimitive primitive = element.getAsJsonPrimitive();
-		if (!primitive.isString()) {
-			return null;
+			body.close();
+		} catch (IOException ex) {
+			// nothing to do
 		}
-		return primitive.getAsString();
 	}
 
-	private static String preview(String body) {
+	/**
+	 * Reads just enough of an error body to log a preview, then closes it.
+	 */
+	private static String readPreview(InputStream body) {
 		if (body == null) {
 			return "<null>";
 		}
-		if (body.length() <= LOG_BODY_PREVIEW) {
-			return body;
-		}
-		return body.substring(0, LOG_BODY_PREVIEW) + "...";
-	}
-
-	private static final class PlanResult {
-		private final GumloopPayload.Response plan;
-		private final String error;
-
-		private PlanResult(GumloopPayload.Response plan, String error) {
-			this.plan = plan;
-			this.error = error;
-		}
-
-		private static PlanResult success(GumloopPayload.Response plan) {
-			return new PlanResult(plan, null);
-		}
-
-		private static PlanResult error(String error) {
-			return new PlanResult(null, error);
+		try (InputStream in = body) {
+			byte[] head = in.readNBytes(LOG_BODY_PREVIEW + 1);
+			String text = new String(head, 0, Math.min(head.length, LOG_BODY_PREVIEW), StandardCharsets.UTF_8);
+			return head.length > LOG_BODY_PREVIEW ? text + "..." : text;
+		} catch (IOException ex) {
+			return "<unreadable: " + ex.getMessage() + ">";
 		}
 	}
 
 	public static final class PlanValidationResult {
-		public final GumloopPayload.Response plan;
+		public final CompiledPlan plan;
 		public final String error;
 
-		private PlanValidationResult(GumloopPayload.Response plan, String error) {
+		private PlanValidationResult(CompiledPlan plan, String error) {
 			this.plan = plan;
 			this.error = error;
 		}
 
-		public static PlanValidationResult success(GumloopPayload.Response plan) {
+		public static PlanValidationResult success(CompiledPlan plan) {
 			return new PlanValidationResult(plan, null);
 		}
 
@@ -562,28 +608,82 @@ public final class GumloopClient {
 		}
 	}
 
-	private static Request buildRequest(ServerPlayerEntity player, Selection buildSelection, Selection contextSelection, String prompt) {
+	static Request buildRequest(String prompt, Origin origin, BlockPos size, Context context) {
 		Request request = new Request();
+		request.format = CONTEXT_FORMAT;
 		request.prompt = prompt;
-		request.origin = toOrigin(buildSelection.getMin());
-		request.size = toSize(effectiveBuildSize(buildSelection));
+		request.origin = origin;
+		request.size = toSize(size);
 		request.palette = defaultPalette();
 		request.maxBlocks = MAX_BLOCKS;
-		// 1.18.2: ServerPlayerEntity#getWorld() returns a ServerWorld on the server.
-		request.context = buildContext((ServerWorld) player.getWorld(), contextSelection);
+		request.context = context;
 		return request;
 	}
 
-	private static Context buildContext(ServerWorld world, Selection contextSelection) {
+	/**
+	 * Copies the context selection's chunk sections. Runs on the server thread; returns null when there is
+	 * no usable context selection.
+	 */
+	private static ContextSnapshot snapshotContext(ServerWorld world, Selection contextSelection, String requestId) {
 		if (contextSelection == null || !contextSelection.isComplete()) {
 			return null;
 		}
+		BlockPos min = contextSelection.getMin();
+		BlockPos max = contextSelection.getMax();
+		if (min == null || max == null) {
+			return null;
+		}
+		TesseractEvents.ContextCapture event = new TesseractEvents.ContextCapture();
+		event.begin();
+		long start = System.nanoTime();
+		ContextSnapshot snapshot = ContextSnapshot.capture(world, min, max, defaultPalette(), MAX_CONTEXT_SECTIONS);
+		Metrics.CONTEXT_CAPTURE.recordSince(start);
+		event.end();
+		if (event.shouldCommit()) {
+			event.requestId = requestId;
+			event.stage = "snapshot";
+			event.sections = snapshot == null ? 0 : snapshot.sectionCount();
+			event.commit();
+		}
+		if (snapshot == null) {
+			TesseractMod.LOGGER.warn("Context selection spans too many chunk sections; ignoring context.");
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Scans a context snapshot into the request's context. Runs on a plan worker; null when there is none.
+	 */
+	static Context buildContext(Selection contextSelection, ContextSnapshot snapshot, String requestId) {
+		if (snapshot == null) {
+			return null;
+		}
+		TesseractEvents.ContextCapture event = new TesseractEvents.ContextCapture();
+		event.begin();
 
 		Context context = new Context();
 		context.origin = toOrigin(contextSelection.getMin());
 		context.size = toSize(contextSelection.getSize());
-		context.blocks = captureBlocks(world, contextSelection, defaultPalette());
-		if (context.blocks.isEmpty()) {
+		if (CONTEXT_FORMAT == GumloopPayload.FORMAT_COMPACT) {
+			context.packed = ContextEncoder.pack(snapshot, contextSelection.getSize());
+			TesseractMod.LOGGER.info("Gumloop {} -> packed {} context blocks from {} sections: {} bytes packed, {} bytes as legacy JSON",
+				requestId,
+				context.packed.count,
+				snapshot.sectionCount(),
+				GSON.toJson(context.packed).length(),
+				context.packed.legacyBytes);
+		} else {
+			context.blocks = captureBlocks(snapshot);
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.requestId = requestId;
+			event.stage = "scan";
+			event.sections = snapshot.sectionCount();
+			event.blocks = contextBlockCount(context);
+			event.commit();
+		}
+		if (contextBlockCount(context) == 0) {
 			TesseractMod.LOGGER.warn("Context selection had no palette blocks; ignoring context.");
 			return null;
 		}
@@ -591,44 +691,60 @@ public final class GumloopClient {
 		return context;
 	}
 
-	private static List<BlockOp> captureBlocks(ServerWorld world, Selection selection, List<String> palette) {
-		List<BlockOp> blocks = new ArrayList<>();
-		Set<String> paletteSet = new HashSet<>(palette);
-		BlockPos min = selection.getMin();
-		BlockPos max = selection.getMax();
-		if (min == null || max == null) {
-			return blocks;
+	private static int contextBlockCount(Context context) {
+		if (context == null) {
+			return 0;
+		}
+		if (context.packed != null) {
+			return context.packed.count;
 		}
+		return context.blocks == null ? 0 : context.blocks.size();
+	}
 
-		BlockPos.Mutable cursor = new BlockPos.Mutable();
-		for (int x = min.getX(); x <= max.getX(); x++) {
-			for (int y = min.getY(); y <= max.getY(); y++) {
-				for (int z = min.getZ(); z <= max.getZ(); z++) {
-					if (blocks.size() >= MAX_CONTEXT_BLOCKS) {
-						return blocks;
-					}
-					cursor.set(x, y, z);
-					BlockState state = world.getBlockState(cursor);
-					if (state.isAir()) {
-						continue;
-					}
-					String blockId = Registry.BLOCK.getId(state.getBlock()).toString();
-					if (!paletteSet.contains(blockId)) {
-						continue;
-					}
-					BlockOp op = new BlockOp();
-					op.x = x - min.getX();
-					op.y = y - min.getY();
-					op.z = z - min.getZ();
-					op.block = blockId;
-					blocks.add(op);
-				}
+	/**
+	 * The one-object-per-block context by default, which every existing flow reads. Flows that understand
+	 * the packed form opt in with GUMLOOP_CONTEXT_FORMAT=compact.
+	 */
+	private static int contextFormat() {
+		String value = System.getenv("GUMLOOP_CONTEXT_FORMAT");
+		if (value != null && (value.trim().equalsIgnoreCase("compact") || value.trim().equals("2"))) {
+			return GumloopPayload.FORMAT_COMPACT;
+		}
+		return GumloopPayload.FORMAT_LEGACY;
+	}
+
+	/**
+	 * The legacy context's block cap: GUMLOOP_MAX_CONTEXT_BLOCKS, default 32768, and never more than fit in
+	 * the {@link #MAX_CONTEXT_SECTIONS} sections a snapshot may hold. The scan runs on a plan worker, so the
+	 * cap only bounds the request body.
+	 */
+	private static int maxContextBlocks() {
+		int ceiling = MAX_CONTEXT_SECTIONS * 4096;
+		String value = System.getenv("GUMLOOP_MAX_CONTEXT_BLOCKS");
+		if (value != null) {
+			try {
+				return Math.min(ceiling, Math.max(1, Integer.parseInt(value.trim())));
+			} catch (NumberFormatException ex) {
+				TesseractMod.LOGGER.warn("Ignoring invalid GUMLOOP_MAX_CONTEXT_BLOCKS={}", value);
 			}
 		}
+		return 32_768;
+	}
+
+	private static List<BlockOp> captureBlocks(ContextSnapshot snapshot) {
+		List<BlockOp> blocks = new ArrayList<>();
+		snapshot.scan(MAX_CONTEXT_BLOCKS, (x, y, z, blockId) -> {
+			BlockOp op = new BlockOp();
+			op.x = x;
+			op.y = y;
+			op.z = z;
+			op.block = blockId;
+			blocks.add(op);
+		});
 		return blocks;
 	}
 
-	private static Origin toOrigin(BlockPos pos) {
+	static Origin toOrigin(BlockPos pos) {
 		Origin origin = new Origin();
 		origin.x = pos.getX();
 		origin.y = pos.getY();
@@ -636,7 +752,7 @@ public final class GumloopClient {
 		return origin;
 	}
 
-	private static Size toSize(BlockPos sizePos) {
+	static Size toSize(BlockPos sizePos) {
 		Size size = new Size();
 		size.w = sizePos.getX();
 		size.h = sizePos.getY();
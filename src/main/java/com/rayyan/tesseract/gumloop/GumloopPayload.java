@@ -5,22 +5,66 @@ import java.util.List;
 public final class GumloopPayload {
 	private GumloopPayload() {}
 
+	/**
+	 * Context sent as {@link Context#blocks}, one object per block.
+	 */
+	public static final int FORMAT_LEGACY = 1;
+	/**
+	 * Context sent as {@link Context#packed}; {@link Context#blocks} is left out.
+	 */
+	public static final int FORMAT_COMPACT = 2;
+
 	public static final class Request {
+		public int format;
 		public String prompt;
 		public Origin origin;
 		public Size size;
 		public List<String> palette;
 		public int maxBlocks;
 		public Context context;
+		public Tile tile;
+	}
+
+	/**
+	 * Set when the request drafts one tile of a large build; {@link Request#origin} and {@link Request#size}
+	 * are then the tile's own. {@code offset} places the tile inside the whole build of size {@code total}.
+	 * {@code neighbors} holds blocks that already drafted neighbor tiles put near the shared faces, relative
+	 * to the tile's origin, so they may lie just outside it.
+	 */
+	public static final class Tile {
+		public int index;
+		public int count;
+		public Origin offset;
+		public Size total;
+		public List<BlockOp> neighbors;
 	}
 
 	public static final class Context {
 		public Origin origin;
 		public Size size;
 		public List<BlockOp> blocks;
+		public PackedBlocks packed;
 		public String screenshot;
 	}
 
+	/**
+	 * Context blocks as a dense grid over the context size, run-length encoded.
+	 *
+	 * Cells are walked in {@code order} ("yzx": x fastest, then z, then y). {@code runs} holds pairs of
+	 * (palette index, run length); index 0 is a cell with no palette block, index i is {@code palette[i - 1]}.
+	 * {@code heightmap} holds, per column at {@code z * w + x}, one more than the highest occupied y, or 0
+	 * for an empty column.
+	 */
+	public static final class PackedBlocks {
+		public String order;
+		public List<String> palette;
+		public int count;
+		public int[] runs;
+		public int[] heightmap;
+		// Size the same blocks would take in the legacy form, for the log; never sent.
+		public transient int legacyBytes;
+	}
+
 	public static final class Origin {
 		public int x;
 		public int y;
@@ -0,0 +1,248 @@
+package com.rayyan.tesseract.gumloop;
+
+import com.rayyan.tesseract.TesseractMod;
+import com.rayyan.tesseract.jobs.CancelToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The one HTTP client every outbound call goes through (Gumloop webhook, run polls, plan paste).
+ *
+ * It prefers HTTP/2 so polls and requests to the same host share a connection, runs its callbacks on a
+ * small bounded pool instead of the JDK's unbounded default, and retries idempotent requests on transport
+ * errors and 429/502/503/504 with jittered exponential backoff.
+ *
+ * Each host has a circuit breaker: after {@link #BREAKER_THRESHOLD} failures in a row the host is treated
+ * as down for {@link #BREAKER_OPEN_MS}, and calls fail straight away with {@link HostDownException} instead
+ * of each waiting out its own timeout. Once the window passes a single trial call is let through; its
+ * result closes or reopens the breaker.
+ */
+public final class HttpTransport {
+	private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+	private static final int THREADS = 4;
+	private static final int MAX_RETRIES = 2;
+	private static final long RETRY_BASE_MS = 250;
+	private static final long RETRY_MAX_MS = 2_000;
+	private static final int BREAKER_THRESHOLD = 5;
+	private static final long BREAKER_OPEN_MS = 30_000;
+
+	private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS, runnable -> {
+		Thread thread = new Thread(runnable, "tesseract-http-" + THREAD_IDS.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static final HttpClient CLIENT = HttpClient.newBuilder()
+		.version(HttpClient.Version.HTTP_2)
+		.connectTimeout(CONNECT_TIMEOUT)
+		.followRedirects(HttpClient.Redirect.NORMAL)
+		.executor(EXECUTOR)
+		.build();
+	private static final Map<String, Breaker> BREAKERS = new ConcurrentHashMap<>();
+
+	private HttpTransport() {}
+
+	/**
+	 * Sends a request once; only the circuit breaker applies. Use this for calls that must not repeat,
+	 * like starting a Gumloop run.
+	 */
+	public static <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+		return attempt(request, handler, 0, 0, null);
+	}
+
+	/**
+	 * Like {@link #send(HttpRequest, HttpResponse.BodyHandler)}, but cancelling {@code token} aborts the
+	 * exchange and fails the returned future with a {@link CancellationException} right away.
+	 */
+	public static <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, HttpResponse.BodyHandler<T> handler, CancelToken token) {
+		return bind(attempt(request, handler, 0, 0, token), token);
+	}
+
+	/**
+	 * Sends a request that is safe to repeat, retrying transport errors and retryable statuses.
+	 */
+	public static <T> CompletableFuture<HttpResponse<T>> sendIdempotent(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+		return attempt(request, handler, 0, MAX_RETRIES, null);
+	}
+
+	/**
+	 * Like {@link #sendIdempotent(HttpRequest, HttpResponse.BodyHandler)}, but cancelling {@code token}
+	 * aborts the exchange and any retry still waiting.
+	 */
+	public static <T> CompletableFuture<HttpResponse<T>> sendIdempotent(HttpRequest request, HttpResponse.BodyHandler<T> handler, CancelToken token) {
+		return bind(attempt(request, handler, 0, MAX_RETRIES, token), token);
+	}
+
+	/**
+	 * A future that {@code token} cancels. A response that lands just as the token is cancelled never
+	 * reaches the caller, so its body is closed here.
+	 */
+	private static <T> CompletableFuture<HttpResponse<T>> bind(CompletableFuture<HttpResponse<T>> result, CancelToken token) {
+		CompletableFuture<HttpResponse<T>> bound = new CompletableFuture<>();
+		result.whenComplete((response, error) -> {
+			if (error != null) {
+				bound.completeExceptionally(error);
+			} else if (!bound.complete(response)) {
+				discard(response.body());
+			}
+		});
+		return token.bind(bound);
+	}
+
+	private static <T> CompletableFuture<HttpResponse<T>> attempt(HttpRequest request, HttpResponse.BodyHandler<T> handler, int attempt, int maxRetries, CancelToken token) {
+		if (token != null && token.isCancelled()) {
+			return CompletableFuture.failedFuture(new CancellationException());
+		}
+		Breaker breaker = breaker(request.uri());
+		if (!breaker.allow()) {
+			return CompletableFuture.failedFuture(new HostDownException(breaker.host));
+		}
+		CompletableFuture<HttpResponse<T>> exchange = CLIENT.sendAsync(request, handler);
+		if (token != null) {
+			// Since Java 16, cancelling the future returned by sendAsync aborts the exchange.
+			token.bind(exchange);
+		}
+		return exchange.handle((response, error) -> {
+			if (error != null && unwrap(error) instanceof CancellationException) {
+				// Says nothing about the host's health.
+				breaker.abandon();
+				return CompletableFuture.<HttpResponse<T>>failedFuture(unwrap(error));
+			}
+			boolean failed = error != null || isServerFailure(response.statusCode());
+			breaker.record(!failed);
+			boolean retryable = error != null || isRetryableStatus(response.statusCode());
+			if (!retryable || attempt >= maxRetries) {
+				if (error != null) {
+					return CompletableFuture.<HttpResponse<T>>failedFuture(unwrap(error));
+				}
+				return CompletableFuture.completedFuture(response);
+			}
+			if (response != null) {
+				discard(response.body());
+			}
+			long delay = retryDelay(attempt);
+			TesseractMod.LOGGER.warn("HTTP {} {} -> attempt {} failed ({}), retrying in {}ms",
+				request.method(),
+				request.uri().getHost(),
+				attempt + 1,
+				error != null ? unwrap(error).toString() : "status " + response.statusCode(),
+				delay);
+			return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, EXECUTOR))
+				.thenCompose(ignored -> attempt(request, handler, attempt + 1, maxRetries, token));
+		}).thenCompose(future -> future);
+	}
+
+	/**
+	 * True if a failed future's error came from an open circuit breaker.
+	 */
+	public static boolean isHostDown(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof HostDownException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isServerFailure(int status) {
+		return status >= 500 || status == 429;
+	}
+
+	private static boolean isRetryableStatus(int status) {
+		return status == 429 || status == 502 || status == 503 || status == 504;
+	}
+
+	private static long retryDelay(int attempt) {
+		long ceiling = Math.min(RETRY_MAX_MS, RETRY_BASE_MS << attempt);
+		// Full jitter: anywhere between half and all of the ceiling.
+		return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+	}
+
+	private static Throwable unwrap(Throwable error) {
+		return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+	}
+
+	private static void discard(Object body) {
+		if (body instanceof InputStream) {
+			try {
+				((InputStream) body).close();
+			} catch (IOException ex) {
+				// nothing to do
+			}
+		}
+	}
+
+	private static Breaker breaker(URI uri) {
+		String host = uri.getHost() == null ? "" : uri.getHost() + ":" + uri.getPort();
+		return BREAKERS.computeIfAbsent(host, Breaker::new);
+	}
+
+	/**
+	 * Thrown (as the failure of the returned future) when a host's circuit breaker is open.
+	 */
+	public static final class HostDownException extends IOException {
+		private HostDownException(String host) {
+			super("Host " + host + " is marked down after repeated failures.");
+		}
+	}
+
+	private static final class Breaker {
+		private final String host;
+		private int failures;
+		private long openUntil;
+		private boolean trialInFlight;
+
+		private Breaker(String host) {
+			this.host = host;
+		}
+
+		private synchronized boolean allow() {
+			if (failures < BREAKER_THRESHOLD) {
+				return true;
+			}
+			if (System.currentTimeMillis() < openUntil || trialInFlight) {
+				return false;
+			}
+			trialInFlight = true;
+			return true;
+		}
+
+		private synchronized void abandon() {
+			trialInFlight = false;
+		}
+
+		private synchronized void record(boolean success) {
+			trialInFlight = false;
+			if (success) {
+				if (failures >= BREAKER_THRESHOLD) {
+					TesseractMod.LOGGER.info("HTTP breaker for {} closed.", host);
+				}
+				failures = 0;
+				return;
+			}
+			failures++;
+			if (failures >= BREAKER_THRESHOLD) {
+				if (failures == BREAKER_THRESHOLD) {
+					TesseractMod.LOGGER.warn("HTTP breaker for {} opened after {} failures.", host, failures);
+				}
+				openUntil = System.currentTimeMillis() + BREAKER_OPEN_MS;
+			}
+		}
+	}
+}
@@ -0,0 +1,312 @@
+package com.rayyan.tesseract.gumloop;
+
+import com.rayyan.tesseract.TesseractMod;
+import com.rayyan.tesseract.jobs.CompiledPlan;
+import net.fabricmc.loader.api.FabricLoader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Two-tier cache of validated, compiled plans.
+ *
+ * Entries are keyed by a SHA-256 of whatever determines the plan: the canonical request JSON for Gumloop,
+ * or the URL plus build size for pastes. The first tier is an LRU in memory, bounded by total ops; the
+ * second is one small binary file per entry under {@code config/tesseract/plan-cache}, bounded by entry
+ * count. A hit skips the network, decoding and validation. Paste entries also keep the response's ETag
+ * and Last-Modified so a refetch can be a conditional request.
+ *
+ * Lookups touch the disk, so call this from the plan workers, not the server thread. Set
+ * TESSERACT_PLAN_CACHE=false to turn it off.
+ */
+public final class PlanCache {
+	private static final boolean ENABLED = !"false".equalsIgnoreCase(System.getenv("TESSERACT_PLAN_CACHE"));
+	private static final long MAX_MEMORY_OPS = 250_000L;
+	private static final int MAX_DISK_ENTRIES = 256;
+	private static final int MAGIC = 0x54504331; // "TPC1"
+
+	private static final LinkedHashMap<String, Entry> MEMORY = new LinkedHashMap<>(64, 0.75f, true);
+	private static long memoryOps;
+
+	private static final AtomicLong MEMORY_HITS = new AtomicLong();
+	private static final AtomicLong DISK_HITS = new AtomicLong();
+	private static final AtomicLong MISSES = new AtomicLong();
+	private static final AtomicLong REVALIDATED = new AtomicLong();
+
+	private PlanCache() {}
+
+	/**
+	 * A cached plan plus the validators it was served with (null for Gumloop entries).
+	 */
+	public static final class Entry {
+		public final CompiledPlan plan;
+		public final String etag;
+		public final String lastModified;
+
+		public Entry(CompiledPlan plan, String etag, String lastModified) {
+			this.plan = plan;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+	}
+
+	public static String key(String kind, String canonical) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(kind.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			byte[] hash = digest.digest(canonical.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Looks the key up in memory, then on disk; counts a hit or a miss.
+	 */
+	public static Entry get(String key) {
+		return lookup(key, true);
+	}
+
+	/**
+	 * Like {@link #get} but counts nothing; for paste entries that are revalidated before use (see
+	 * {@link #countRevalidated}).
+	 */
+	public static Entry peek(String key) {
+		return lookup(key, false);
+	}
+
+	private static Entry lookup(String key, boolean count) {
+		if (!ENABLED) {
+			return null;
+		}
+		synchronized (MEMORY) {
+			Entry entry = MEMORY.get(key);
+			if (entry != null) {
+				if (count) {
+					MEMORY_HITS.incrementAndGet();
+				}
+				return entry;
+			}
+		}
+		Entry entry = readDisk(key);
+		if (entry != null) {
+			if (count) {
+				DISK_HITS.incrementAndGet();
+			}
+			remember(key, entry);
+		} else if (count) {
+			MISSES.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * Counts a paste fetch that had nothing usable cached.
+	 */
+	public static void countMiss() {
+		MISSES.incrementAndGet();
+	}
+
+	public static void put(String key, CompiledPlan plan) {
+		put(key, new Entry(plan, null, null));
+	}
+
+	public static void put(String key, Entry entry) {
+		if (!ENABLED || entry.plan == null) {
+			return;
+		}
+		remember(key, entry);
+		writeDisk(key, entry);
+	}
+
+	/**
+	 * Records that a conditional request came back 304 and the cached entry was reused.
+	 */
+	public static void countRevalidated() {
+		REVALIDATED.incrementAndGet();
+	}
+
+	public static String stats() {
+		int entries;
+		long ops;
+		synchronized (MEMORY) {
+			entries = MEMORY.size();
+			ops = memoryOps;
+		}
+		return "memoryHits=" + MEMORY_HITS.get()
+			+ " diskHits=" + DISK_HITS.get()
+			+ " misses=" + MISSES.get()
+			+ " revalidated=" + REVALIDATED.get()
+			+ " memoryEntries=" + entries
+			+ " memoryOps=" + ops;
+	}
+
+	public static long hits() {
+		return MEMORY_HITS.get() + DISK_HITS.get();
+	}
+
+	public static long misses() {
+		return MISSES.get();
+	}
+
+	private static void remember(String key, Entry entry) {
+		synchronized (MEMORY) {
+			Entry previous = MEMORY.put(key, entry);
+			if (previous != null) {
+				memoryOps -= previous.plan.size();
+			}
+			memoryOps += entry.plan.size();
+			Iterator<Map.Entry<String, Entry>> eldest = MEMORY.entrySet().iterator();
+			while (memoryOps > MAX_MEMORY_OPS && MEMORY.size() > 1 && eldest.hasNext()) {
+				Map.Entry<String, Entry> next = eldest.next();
+				if (next.getKey().equals(key)) {
+					continue;
+				}
+				memoryOps -= next.getValue().plan.size();
+				eldest.remove();
+			}
+		}
+	}
+
+	private static Path directory() {
+		return FabricLoader.getInstance().getConfigDir().resolve("tesseract").resolve("plan-cache");
+	}
+
+	private static Entry readDisk(String key) {
+		Path file = directory().resolve(key + ".bin");
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				return null;
+			}
+			String etag = readNullable(in);
+			String lastModified = readNullable(in);
+			GumloopPayload.Meta meta = new GumloopPayload.Meta();
+			meta.theme = readNullable(in);
+			meta.blockCount = in.readInt();
+			int warningCount = in.readInt();
+			if (warningCount >= 0) {
+				meta.warnings = new ArrayList<>(warningCount);
+				for (int i = 0; i < warningCount; i++) {
+					meta.warnings.add(in.readUTF());
+				}
+			}
+			String[] paletteIds = new String[in.readInt()];
+			for (int i = 0; i < paletteIds.length; i++) {
+				paletteIds[i] = in.readUTF();
+			}
+			long[] ops = new long[in.readInt()];
+			for (int i = 0; i < ops.length; i++) {
+				ops[i] = in.readLong();
+			}
+			CompiledPlan plan = CompiledPlan.restore(paletteIds, ops, meta);
+			if (plan == null) {
+				Files.deleteIfExists(file);
+				return null;
+			}
+			// Disk eviction goes by modification time, so a hit counts as a use.
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			return new Entry(plan, etag, lastModified);
+		} catch (IOException | RuntimeException ex) {
+			TesseractMod.LOGGER.warn("Ignoring unreadable plan cache entry {}: {}", file.getFileName(), ex.toString());
+			return null;
+		}
+	}
+
+	private static void writeDisk(String key, Entry entry) {
+		Path dir = directory();
+		Path file = dir.resolve(key + ".bin");
+		try {
+			Files.createDirectories(dir);
+			Path tmp = Files.createTempFile(dir, key, ".tmp");
+			CompiledPlan plan = entry.plan;
+			GumloopPayload.Meta meta = plan.getMeta();
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				writeNullable(out, entry.etag);
+				writeNullable(out, entry.lastModified);
+				writeNullable(out, meta == null ? null : meta.theme);
+				out.writeInt(meta == null ? plan.size() : meta.blockCount);
+				List<String> warnings = meta == null ? null : meta.warnings;
+				out.writeInt(warnings == null ? -1 : warnings.size());
+				if (warnings != null) {
+					for (String warning : warnings) {
+						out.writeUTF(warning);
+					}
+				}
+				out.writeInt(plan.paletteSize());
+				for (int i = 0; i < plan.paletteSize(); i++) {
+					out.writeUTF(plan.paletteId(i));
+				}
+				out.writeInt(plan.size());
+				for (int i = 0; i < plan.size(); i++) {
+					out.writeLong(plan.op(i));
+				}
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			trimDisk(dir);
+		} catch (IOException ex) {
+			TesseractMod.LOGGER.warn("Failed to write plan cache entry {}: {}", file.getFileName(), ex.toString());
+		}
+	}
+
+	private static void trimDisk(Path dir) throws IOException {
+		List<Path> files;
+		try (Stream<Path> listing = Files.list(dir)) {
+			files = listing.filter(path -> path.getFileName().toString().endsWith(".bin")).collect(Collectors.toList());
+		}
+		if (files.size() <= MAX_DISK_ENTRIES) {
+			return;
+		}
+		files.sort(Comparator.comparingLong(PlanCache::modifiedAt));
+		for (int i = 0; i < files.size() - MAX_DISK_ENTRIES; i++) {
+			Files.deleteIfExists(files.get(i));
+		}
+	}
+
+	private static long modifiedAt(Path path) {
+		try {
+			return Files.getLastModifiedTime(path).toMillis();
+		} catch (IOException ex) {
+			return 0L;
+		}
+	}
+
+	private static String readNullable(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeNullable(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+}
@@ -0,0 +1,389 @@
+package com.rayyan.tesseract.gumloop;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.rayyan.tesseract.jobs.CompiledPlan;
+import com.rayyan.tesseract.metrics.Metrics;
+import com.rayyan.tesseract.metrics.TesseractEvents;
+import net.minecraft.util.math.BlockPos;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds, validates and compiles a build plan while the response body is still being read.
+ *
+ * The body is walked with a {@link JsonReader} instead of being parsed into a tree. The first object
+ * holding {@code meta} or {@code ops} (at most {@link #MAX_DEPTH} levels down, looking inside string
+ * fields that contain JSON) is taken as the plan. Each op is checked and packed into a
+ * {@link CompiledPlan.Builder} as it arrives, so a bad op stops the read straight away. Decoding ends
+ * once the plan object closes, and the rest of the body is never read.
+ *
+ * Validation is still all-or-nothing: {@code meta.blockCount} and the op cap can only be checked once the
+ * plan is complete, so nothing is handed to the build queue before then.
+ *
+ * Top-level {@code run_id} and {@code state} fields are recorded on the way past for the async run flow.
+ * A decoder instance reads a single body.
+ */
+final class PlanStreamDecoder {
+	private static final int MAX_DEPTH = 6;
+
+	private final BlockPos size;
+	private final Set<String> palette;
+	private final int maxBlocks;
+	private final int previewChars;
+	private final String requestId;
+
+	private PreviewReader source;
+	private boolean planFound;
+	private CompiledPlan plan;
+	private String error;
+	private String runId;
+	private String state;
+	private boolean sawUrl;
+	// When the plan object closed and its whole-plan checks began; 0 if it never did.
+	private long validateStartedAt;
+
+	PlanStreamDecoder(BlockPos size, List<String> palette, int maxBlocks, int previewChars, String requestId) {
+		this.size = size;
+		this.palette = new HashSet<>(palette);
+		this.maxBlocks = maxBlocks;
+		this.previewChars = previewChars;
+		this.requestId = requestId;
+	}
+
+	/**
+	 * Reads until a plan has been decoded or the body ends. Returns true if a plan object was found;
+	 * {@link #getPlan()} or {@link #getError()} then holds the outcome. Malformed JSON ends the read
+	 * without an error of its own, like a body with no plan in it. The time spent up to the end of the plan
+	 * object counts as parsing, the checks and compile after it as validation.
+	 */
+	boolean decode(InputStream body) {
+		TesseractEvents.PlanDecode event = new TesseractEvents.PlanDecode();
+		event.begin();
+		long start = System.nanoTime();
+		source = new PreviewReader(new InputStreamReader(body, StandardCharsets.UTF_8), previewChars);
+		try (JsonReader reader = new JsonReader(source)) {
+			reader.setLenient(true);
+			scanValue(reader, 0);
+		} catch (IOException | IllegalStateException | NumberFormatException ex) {
+			// Malformed or truncated JSON: whatever was decoded before the failure still counts.
+		}
+		long end = System.nanoTime();
+		long parseNanos = (validateStartedAt != 0L ? validateStartedAt : end) - start;
+		long validateNanos = validateStartedAt != 0L ? end - validateStartedAt : 0L;
+		Metrics.PARSE.record(parseNanos);
+		if (validateStartedAt != 0L) {
+			Metrics.VALIDATE.record(validateNanos);
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.requestId = requestId;
+			event.parseNanos = parseNanos;
+			event.validateNanos = validateNanos;
+			event.charsRead = getCharsRead();
+			event.ops = plan == null ? 0 : plan.size();
+			event.error = error;
+			event.commit();
+		}
+		return planFound;
+	}
+
+	boolean isPlanFound() {
+		return planFound;
+	}
+
+	CompiledPlan getPlan() {
+		return plan;
+	}
+
+	String getError() {
+		return error;
+	}
+
+	String getRunId() {
+		return runId;
+	}
+
+	String getState() {
+		return state;
+	}
+
+	/**
+	 * True when the body looked like Gumloop run metadata (run_id and url) rather than a plan.
+	 */
+	boolean looksLikeRunMetadata() {
+		return !planFound && runId != null && sawUrl;
+	}
+
+	int getCharsRead() {
+		return source == null ? 0 : source.count;
+	}
+
+	String getPreview() {
+		if (source == null) {
+			return "<null>";
+		}
+		String prefix = source.preview.toString();
+		return source.count > prefix.length() ? prefix + "..." : prefix;
+	}
+
+	private boolean scanValue(JsonReader reader, int depth) throws IOException {
+		if (depth > MAX_DEPTH) {
+			reader.skipValue();
+			return false;
+		}
+		JsonToken token = reader.peek();
+		if (token == JsonToken.BEGIN_OBJECT) {
+			return scanObject(reader, depth);
+		}
+		if (token == JsonToken.BEGIN_ARRAY) {
+			reader.beginArray();
+			while (reader.hasNext()) {
+				if (scanValue(reader, depth + 1)) {
+					return true;
+				}
+			}
+			reader.endArray();
+			return false;
+		}
+		if (token == JsonToken.STRING) {
+			String value = reader.nextString();
+			return scanEmbedded(value, depth + 1);
+		}
+		reader.skipValue();
+		return false;
+	}
+
+	/**
+	 * Gumloop often returns the plan as a JSON document inside a string field.
+	 */
+	private boolean scanEmbedded(String value, int depth) {
+		String trimmed = value.trim();
+		if (trimmed.isEmpty() || (trimmed.charAt(0) != '{' && trimmed.charAt(0) != '[') || depth > MAX_DEPTH) {
+			return false;
+		}
+		try (JsonReader nested = new JsonReader(new StringReader(trimmed))) {
+			nested.setLenient(true);
+			return scanValue(nested, depth);
+		} catch (IOException | IllegalStateException | NumberFormatException ex) {
+			return planFound;
+		}
+	}
+
+	private boolean scanObject(JsonReader reader, int depth) throws IOException {
+		reader.beginObject();
+		boolean hasMeta = false;
+		boolean hasOps = false;
+		GumloopPayload.Meta meta = null;
+		String metaError = null;
+		CompiledPlan.Builder builder = null;
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			JsonToken token = reader.peek();
+			if (name.equals("ops")) {
+				hasOps = true;
+				if (token != JsonToken.BEGIN_ARRAY) {
+					return fail("Plan ops must be an array.");
+				}
+				builder = new CompiledPlan.Builder(Math.min(maxBlocks, 1024));
+				String opError = readOps(reader, builder);
+				if (opError != null) {
+					return fail(opError);
+				}
+			} else if (name.equals("meta")) {
+				hasMeta = true;
+				if (token != JsonToken.BEGIN_OBJECT) {
+					metaError = "Plan meta must be an object.";
+					reader.skipValue();
+				} else {
+					meta = readMeta(reader);
+				}
+			} else if (depth == 0 && name.equals("run_id") && token == JsonToken.STRING) {
+				runId = reader.nextString();
+			} else if (depth == 0 && name.equals("state") && token == JsonToken.STRING) {
+				state = reader.nextString();
+			} else if (depth == 0 && name.equals("url")) {
+				sawUrl = true;
+				reader.skipValue();
+			} else if (!hasMeta && !hasOps && scanValue(reader, depth + 1)) {
+				return true;
+			} else if (hasMeta || hasOps) {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (!hasMeta && !hasOps) {
+			return false;
+		}
+		validateStartedAt = System.nanoTime();
+		if (!hasMeta || !hasOps) {
+			return fail("Plan missing required fields (meta, ops).");
+		}
+		if (metaError != null) {
+			return fail(metaError);
+		}
+		if (meta.blockCount < 0) {
+			return fail("Plan meta.blockCount must be an integer.");
+		}
+		if (meta.blockCount != builder.size()) {
+			return fail("meta.blockCount does not match ops length.");
+		}
+		planFound = true;
+		plan = builder.build(meta);
+		return true;
+	}
+
+	private String readOps(JsonReader reader, CompiledPlan.Builder builder) throws IOException {
+		int width = size.getX();
+		int height = size.getY();
+		int length = size.getZ();
+		reader.beginArray();
+		int i = 0;
+		while (reader.hasNext()) {
+			if (i >= maxBlocks) {
+				return "Plan has too many ops (> " + maxBlocks + ").";
+			}
+			if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+				return "Op " + i + " is not an object.";
+			}
+			int x = Integer.MIN_VALUE;
+			int y = Integer.MIN_VALUE;
+			int z = Integer.MIN_VALUE;
+			String block = null;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String field = reader.nextName();
+				JsonToken token = reader.peek();
+				if (field.equals("block") && token == JsonToken.STRING) {
+					block = reader.nextString();
+				} else if (token == JsonToken.NUMBER && (field.equals("x") || field.equals("y") || field.equals("z"))) {
+					int value;
+					try {
+						value = reader.nextInt();
+					} catch (NumberFormatException ex) {
+						return "Op " + i + " missing x/y/z/block.";
+					}
+					if (field.equals("x")) {
+						x = value;
+					} else if (field.equals("y")) {
+						y = value;
+					} else {
+						z = value;
+					}
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if (x == Integer.MIN_VALUE || y == Integer.MIN_VALUE || z == Integer.MIN_VALUE || block == null) {
+				return "Op " + i + " missing x/y/z/block.";
+			}
+			if (x < 0 || x >= width || y < 0 || y >= height || z < 0 || z >= length) {
+				return "Op " + i + " out of bounds (" + x + "," + y + "," + z + ").";
+			}
+			if (!palette.contains(block)) {
+				return "Op " + i + " uses disallowed block: " + block;
+			}
+			String compileError = builder.add(x, y, z, block);
+			if (compileError != null) {
+				return compileError;
+			}
+			i++;
+		}
+		reader.endArray();
+		return null;
+	}
+
+	/**
+	 * Reads meta by hand; a missing or non-integer blockCount is reported as -1.
+	 */
+	private static GumloopPayload.Meta readMeta(JsonReader reader) throws IOException {
+		GumloopPayload.Meta meta = new GumloopPayload.Meta();
+		meta.blockCount = -1;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			JsonToken token = reader.peek();
+			if (name.equals("theme") && token == JsonToken.STRING) {
+				meta.theme = reader.nextString();
+			} else if (name.equals("blockCount") && token == JsonToken.NUMBER) {
+				try {
+					meta.blockCount = reader.nextInt();
+				} catch (NumberFormatException ex) {
+					meta.blockCount = -1;
+				}
+			} else if (name.equals("warnings") && token == JsonToken.BEGIN_ARRAY) {
+				List<String> warnings = new ArrayList<>();
+				reader.beginArray();
+				while (reader.hasNext()) {
+					if (reader.peek() == JsonToken.STRING) {
+						warnings.add(reader.nextString());
+					} else {
+						reader.skipValue();
+					}
+				}
+				reader.endArray();
+				meta.warnings = warnings;
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return meta;
+	}
+
+	private boolean fail(String message) {
+		planFound = true;
+		error = message;
+		return true;
+	}
+
+	/**
+	 * Counts characters read and keeps the first few for log previews.
+	 */
+	private static final class PreviewReader extends FilterReader {
+		private final StringBuilder preview = new StringBuilder();
+		private final int previewChars;
+		private int count;
+
+		private PreviewReader(Reader in, int previewChars) {
+			super(in);
+			this.previewChars = previewChars;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int c = super.read();
+			if (c >= 0) {
+				if (preview.length() < previewChars) {
+					preview.append((char) c);
+				}
+				count++;
+			}
+			return c;
+		}
+
+		@Override
+		public int read(char[] buf, int off, int len) throws IOException {
+			int n = super.read(buf, off, len);
+			if (n > 0) {
+				int keep = Math.min(n, previewChars - preview.length());
+				if (keep > 0) {
+					preview.append(buf, off, keep);
+				}
+				count += n;
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.rayyan.tesseract.gumloop;
+
+import com.rayyan.tesseract.TesseractMod;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker pool for plan parsing, extraction, validation and compilation.
+ *
+ * HTTP callbacks continue on these threads instead of the server thread, so a large or malformed response
+ * costs worker time rather than MSPT. Only the final build handoff and player messages are sent back
+ * to the server with {@code server.execute(...)}.
+ */
+public final class PlanWorkers {
+	private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS, runnable -> {
+		Thread thread = new Thread(runnable, "tesseract-plan-" + THREAD_IDS.incrementAndGet());
+		thread.setDaemon(true);
+		thread.setUncaughtExceptionHandler((t, ex) -> TesseractMod.LOGGER.error("Uncaught error on {}", t.getName(), ex));
+		return thread;
+	});
+
+	private PlanWorkers() {}
+
+	public static ExecutorService executor() {
+		return EXECUTOR;
+	}
+}
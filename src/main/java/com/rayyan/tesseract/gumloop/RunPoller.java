@@ -0,0 +1,254 @@
+package com.rayyan.tesseract.gumloop;
+
+import com.rayyan.tesseract.TesseractMod;
+import com.rayyan.tesseract.jobs.CancelToken;
+import com.rayyan.tesseract.metrics.Metrics;
+import com.rayyan.tesseract.metrics.TesseractEvents;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Polls every outstanding Gumloop run from one scheduled loop.
+ *
+ * Each run keeps its own next-poll time. The delay starts short and grows while the run reports the same
+ * state, grows faster while it is still queued and backs off hardest after failed requests; every delay
+ * gets some jitter so runs started together drift apart. At most {@link #MAX_IN_FLIGHT} polls are on the
+ * wire at once, and a run is given up on once its deadline passes, however many polls that took. A run
+ * can also be cancelled, which drops it and aborts its poll on the wire.
+ * Responses are read on the plan workers.
+ */
+final class RunPoller {
+	private static final long TICK_MS = 100;
+	private static final long FIRST_DELAY_MS = 500;
+	private static final long RUNNING_MAX_DELAY_MS = 4_000;
+	private static final long QUEUED_MAX_DELAY_MS = 8_000;
+	private static final long ERROR_MAX_DELAY_MS = 15_000;
+	private static final double GROWTH = 1.5;
+	private static final double JITTER = 0.2;
+	private static final int MAX_IN_FLIGHT = 8;
+
+	private static final Map<String, Run> RUNS = new ConcurrentHashMap<>();
+	private static final AtomicInteger IN_FLIGHT = new AtomicInteger();
+	private static final ScheduledExecutorService LOOP = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "tesseract-run-poller");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		LOOP.scheduleWithFixedDelay(RunPoller::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private RunPoller() {}
+
+	/**
+	 * What a poll response said about the run.
+	 */
+	enum Outcome {
+		/** The run is settled (plan delivered or failure reported); stop polling. */
+		DONE,
+		/** The run has not started yet. */
+		QUEUED,
+		/** The run is in progress. */
+		RUNNING
+	}
+
+	interface Handler {
+		/**
+		 * Reads one 2xx poll response on a plan worker.
+		 */
+		Outcome onResponse(InputStream body);
+
+		/**
+		 * Called once, on a plan worker, when the deadline passes without a settled run.
+		 */
+		void onTimeout();
+	}
+
+	/**
+	 * Starts polling {@code request} until the handler reports {@link Outcome#DONE} or {@code timeoutMs}
+	 * passes.
+	 */
+	static void watch(String requestId, String runId, HttpRequest request, long timeoutMs, Handler handler) {
+		long now = System.nanoTime();
+		Run run = new Run(requestId, runId, request, handler, now + TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+		run.delayMs = FIRST_DELAY_MS;
+		run.nextPollAt = now + TimeUnit.MILLISECONDS.toNanos(jitter(FIRST_DELAY_MS));
+		RUNS.put(requestId, run);
+	}
+
+	/**
+	 * Stops polling a run: drops it and aborts its poll if one is on the wire, closing any body that still
+	 * arrives. The handler is not called.
+	 */
+	static void cancel(String requestId) {
+		Run run = RUNS.remove(requestId);
+		if (run == null) {
+			return;
+		}
+		run.cancelled = true;
+		run.token.cancel();
+		TesseractMod.LOGGER.info("Gumloop {} -> stopped polling run {} after {} polls.", run.requestId, run.runId, run.polls);
+	}
+
+	static int pendingRuns() {
+		return RUNS.size();
+	}
+
+	private static void tick() {
+		try {
+			long now = System.nanoTime();
+			List<Run> due = new ArrayList<>();
+			for (Run run : RUNS.values()) {
+				if (run.inFlight) {
+					continue;
+				}
+				if (now - run.deadline >= 0) {
+					RUNS.remove(run.requestId);
+					TesseractMod.LOGGER.warn("Gumloop {} -> run {} passed its deadline after {} polls.", run.requestId, run.runId, run.polls);
+					run.record();
+					PlanWorkers.executor().execute(run.handler::onTimeout);
+					continue;
+				}
+				if (now - run.nextPollAt >= 0) {
+					due.add(run);
+				}
+			}
+			due.sort(Comparator.comparingLong(run -> run.nextPollAt - now));
+			for (Run run : due) {
+				if (IN_FLIGHT.get() >= MAX_IN_FLIGHT) {
+					break;
+				}
+				send(run);
+			}
+		} catch (RuntimeException ex) {
+			// Never let one bad tick cancel the loop.
+			TesseractMod.LOGGER.error("Run poller tick failed", ex);
+		}
+	}
+
+	private static void send(Run run) {
+		run.inFlight = true;
+		run.polls++;
+		IN_FLIGHT.incrementAndGet();
+		int pollNumber = run.polls;
+		TesseractEvents.Poll event = new TesseractEvents.Poll();
+		event.begin();
+		// The poller paces its own retries, so each poll is a single attempt. Cancelling the run's token aborts
+		// the exchange itself, so an abandoned poll stops counting against MAX_IN_FLIGHT once it is off the wire.
+		CompletableFuture<HttpResponse<InputStream>> poll = HttpTransport.send(run.request, HttpResponse.BodyHandlers.ofInputStream(), run.token);
+		poll.whenCompleteAsync((response, error) -> {
+			IN_FLIGHT.decrementAndGet();
+			Outcome outcome = null;
+			if (run.cancelled) {
+				if (response != null) {
+					closeQuietly(response.body());
+				}
+				return;
+			}
+			if (error != null || response == null) {
+				TesseractMod.LOGGER.warn("Gumloop {} -> poll {} failed: {}", run.requestId, run.polls, error);
+			} else if (response.statusCode() < 200 || response.statusCode() >= 300) {
+				TesseractMod.LOGGER.warn("Gumloop {} -> poll {} returned status {}", run.requestId, run.polls, response.statusCode());
+				closeQuietly(response.body());
+			} else {
+				try (InputStream body = response.body()) {
+					outcome = run.handler.onResponse(body);
+				} catch (IOException ex) {
+					// Closing early just drops the unread rest of the body.
+				} catch (RuntimeException ex) {
+					TesseractMod.LOGGER.error("Gumloop {} -> poll {} handler failed", run.requestId, run.polls, ex);
+				}
+			}
+			event.finish(run.requestId, run.runId, pollNumber, response == null ? 0 : response.statusCode(), outcome);
+			if (outcome == Outcome.DONE) {
+				RUNS.remove(run.requestId);
+				run.record();
+				return;
+			}
+			reschedule(run, outcome);
+			run.inFlight = false;
+		}, PlanWorkers.executor());
+	}
+
+	private static void reschedule(Run run, Outcome outcome) {
+		long maxDelay;
+		double growth = GROWTH;
+		if (outcome == null) {
+			maxDelay = ERROR_MAX_DELAY_MS;
+			growth = 2.0;
+		} else if (outcome == Outcome.QUEUED) {
+			maxDelay = QUEUED_MAX_DELAY_MS;
+			growth = 2.0;
+		} else {
+			maxDelay = RUNNING_MAX_DELAY_MS;
+		}
+		if (outcome != null && outcome != run.lastOutcome) {
+			// A state change means the run is moving; look again soon.
+			run.delayMs = FIRST_DELAY_MS;
+		} else {
+			run.delayMs = Math.min(maxDelay, (long) (run.delayMs * growth));
+		}
+		run.lastOutcome = outcome;
+		run.nextPollAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(jitter(run.delayMs));
+	}
+
+	private static long jitter(long delayMs) {
+		double factor = 1.0 + ThreadLocalRandom.current().nextDouble(-JITTER, JITTER);
+		return Math.max(1L, (long) (delayMs * factor));
+	}
+
+	private static void closeQuietly(InputStream body) {
+		try {
+			body.close();
+		} catch (IOException ex) {
+			// nothing to do
+		}
+	}
+
+	private static final class Run {
+		private final String requestId;
+		private final String runId;
+		private final HttpRequest request;
+		private final Handler handler;
+		private final long deadline;
+		private final long startedAt = System.nanoTime();
+		private volatile boolean inFlight;
+		private final CancelToken token = new CancelToken();
+		private volatile boolean cancelled;
+		private volatile long nextPollAt;
+		private long delayMs;
+		private Outcome lastOutcome;
+		private int polls;
+
+		private Run(String requestId, String runId, HttpRequest request, Handler handler, long deadline) {
+			this.requestId = requestId;
+			this.runId = runId;
+			this.request = request;
+			this.handler = handler;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Records how many polls the run took and how long it was watched, once it settles or times out.
+		 */
+		private void record() {
+			Metrics.POLL_COUNT.record(polls);
+			Metrics.POLL_WAIT.recordSince(startedAt);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package com.rayyan.tesseract.gumloop;
+
+import com.rayyan.tesseract.TesseractMod;
+import com.rayyan.tesseract.jobs.CancelToken;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Coalesces identical plan requests that are in flight at the same time.
+ *
+ * The first caller for a key starts the work; callers that arrive while it is outstanding attach to it
+ * instead of making a call of their own, and every one of them gets the same result. Plans are relative to
+ * the build's origin, so each caller places the shared plan wherever its own build is. The key is dropped
+ * as soon as the work completes; from then on the plan cache answers.
+ *
+ * Each caller gets a future of its own. Cancelling a caller's token cancels only that future; the shared
+ * work runs under a token of its own, which is cancelled once every caller has gone.
+ */
+public final class SingleFlight {
+	// Guarded by FLIGHTS.
+	private static final Map<String, Flight<?>> FLIGHTS = new HashMap<>();
+	private static final AtomicLong COALESCED = new AtomicLong();
+
+	private SingleFlight() {}
+
+	/**
+	 * Joins the request for {@code key} in flight, or starts it with {@code call}, which is given the token
+	 * the shared work must honour. {@code requestId} is only for the log. The returned future is cancelled,
+	 * never completed, once {@code token} is.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> CompletableFuture<T> join(String key, String requestId, CancelToken token, Function<CancelToken, CompletableFuture<T>> call) {
+		CompletableFuture<T> mine = new CompletableFuture<>();
+		if (token.isCancelled()) {
+			mine.cancel(false);
+			return mine;
+		}
+		Flight<T> flight;
+		boolean lead;
+		int callers;
+		synchronized (FLIGHTS) {
+			flight = (Flight<T>) FLIGHTS.get(key);
+			lead = flight == null;
+			if (lead) {
+				flight = new Flight<>(key, requestId);
+				FLIGHTS.put(key, flight);
+			}
+			callers = ++flight.callers;
+		}
+		Flight<T> joined = flight;
+		if (lead) {
+			start(joined, call);
+		} else {
+			COALESCED.incrementAndGet();
+			TesseractMod.LOGGER.info("{} -> joined in-flight request {} ({} waiting on it).", requestId, joined.leaderId, callers);
+		}
+		joined.result.whenComplete((value, error) -> {
+			if (error != null) {
+				mine.completeExceptionally(error);
+			} else {
+				mine.complete(value);
+			}
+		});
+		token.onCancel(() -> {
+			if (mine.cancel(false)) {
+				joined.leave();
+			}
+		});
+		return mine;
+	}
+
+	/**
+	 * Requests that were answered by another caller's call instead of their own.
+	 */
+	public static long coalesced() {
+		return COALESCED.get();
+	}
+
+	/**
+	 * Requests in flight right now.
+	 */
+	public static int inFlight() {
+		synchronized (FLIGHTS) {
+			return FLIGHTS.size();
+		}
+	}
+
+	private static <T> void start(Flight<T> flight, Function<CancelToken, CompletableFuture<T>> call) {
+		CompletableFuture<T> work;
+		try {
+			work = call.apply(flight.token);
+		} catch (RuntimeException ex) {
+			work = CompletableFuture.failedFuture(ex);
+		}
+		work.whenComplete((value, error) -> {
+			synchronized (FLIGHTS) {
+				FLIGHTS.remove(flight.key, flight);
+			}
+			if (error != null) {
+				flight.result.completeExceptionally(error);
+			} else {
+				flight.result.complete(value);
+			}
+		});
+	}
+
+	private static final class Flight<T> {
+		private final String key;
+		private final String leaderId;
+		private final CancelToken token = new CancelToken();
+		private final CompletableFuture<T> result = new CompletableFuture<>();
+		// Guarded by FLIGHTS.
+		private int callers;
+
+		private Flight(String key, String leaderId) {
+			this.key = key;
+			this.leaderId = leaderId;
+		}
+
+		/**
+		 * One caller gave up; the last one out abandons the work. Later callers start afresh.
+		 */
+		private void leave() {
+			synchronized (FLIGHTS) {
+				if (--callers > 0 || result.isDone()) {
+					return;
+				}
+				FLIGHTS.remove(key, this);
+			}
+			TesseractMod.LOGGER.info("{} -> every caller cancelled; abandoning the request.", leaderId);
+			token.cancel();
+		}
+	}
+}
@@ -0,0 +1,349 @@
+package com.rayyan.tesseract.gumloop;
+
+import com.rayyan.tesseract.TesseractMod;
+import com.rayyan.tesseract.gumloop.GumloopPayload.BlockOp;
+import com.rayyan.tesseract.gumloop.GumloopPayload.Context;
+import com.rayyan.tesseract.gumloop.GumloopPayload.Request;
+import com.rayyan.tesseract.jobs.BuildJobManager;
+import com.rayyan.tesseract.jobs.BuildProgress;
+import com.rayyan.tesseract.jobs.BuildQueueManager;
+import com.rayyan.tesseract.jobs.CancelToken;
+import com.rayyan.tesseract.jobs.CompiledPlan;
+import com.rayyan.tesseract.metrics.Metrics;
+import com.rayyan.tesseract.selection.Selection;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.text.Text;
+import net.minecraft.util.math.BlockPos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Drafts a build too large for one Gumloop request as a grid of tiles of at most {@link #TILE_SIZE} per side.
+ *
+ * Tiles are drafted bottom layer first, at most {@link #CONCURRENCY} at a time. The build's admission ticket
+ * covers one tile in flight; each further one takes its own {@link DraftAdmission} slot, so tiles never push
+ * Gumloop past the global limit. Every tile request carries
+ * the player's context selection, plus the blocks that already drafted neighbor tiles placed within
+ * {@link #EDGE} blocks of the shared faces, so walls and floors line up across tile borders. Each tile's
+ * plan goes to {@link BuildQueueManager#startTile} as soon as it validates. Placement therefore starts
+ * with the first tile back instead of waiting for the slowest one, though a tile is only placed once the
+ * layers below it are. A failed tile is reported and skipped; the rest of the build goes on.
+ */
+final class TiledBuild {
+	static final int TILE_SIZE = 32;
+	private static final int EDGE = 2;
+	private static final int MAX_NEIGHBOR_BLOCKS = 500;
+	private static final int CONCURRENCY = concurrency();
+
+	private final ServerPlayerEntity player;
+	private final UUID jobId;
+	private final ServerWorld world;
+	private final BlockPos min;
+	private final BlockPos size;
+	private final String prompt;
+	private final String webhook;
+	private final String requestId;
+	private final long startNanos = System.nanoTime();
+	private final CancelToken token;
+	private final DraftAdmission.Ticket ticket;
+	private final int tilesX;
+	private final int tilesZ;
+	private final Tile[] grid;
+	private final Tile[] order;
+	private Context context;
+	// Guarded by this.
+	private int next;
+	private int inFlight;
+	// Admission slots held: the ticket's, plus one per extra tile in flight; 0 once all are given back.
+	private int slots = 1;
+	private int done;
+	private int failed;
+
+	private TiledBuild(ServerPlayerEntity player, UUID jobId, ServerWorld world, BlockPos min, BlockPos size, String prompt, String webhook, String requestId, DraftAdmission.Ticket ticket) {
+		this.player = player;
+		this.jobId = jobId;
+		this.world = world;
+		this.min = min;
+		this.size = size;
+		this.prompt = prompt;
+		this.webhook = webhook;
+		this.requestId = requestId;
+		this.token = BuildJobManager.token(jobId);
+		this.ticket = ticket;
+		this.tilesX = tiles(size.getX());
+		int tilesY = tiles(size.getY());
+		this.tilesZ = tiles(size.getZ());
+		this.grid = new Tile[tilesX * tilesY * tilesZ];
+		this.order = new Tile[grid.length];
+		int index = 0;
+		// y outermost: lower tiles are drafted first. BuildQueueManager places a tile only once the layers
+		// below it are done, whatever order the drafts come back in.
+		for (int ty = 0; ty < tilesY; ty++) {
+			for (int tz = 0; tz < tilesZ; tz++) {
+				for (int tx = 0; tx < tilesX; tx++) {
+					BlockPos offset = new BlockPos(tx * TILE_SIZE, ty * TILE_SIZE, tz * TILE_SIZE);
+					BlockPos tileSize = new BlockPos(
+						Math.min(TILE_SIZE, size.getX() - offset.getX()),
+						Math.min(TILE_SIZE, size.getY() - offset.getY()),
+						Math.min(TILE_SIZE, size.getZ() - offset.getZ())
+					);
+					Tile tile = new Tile(index, tx, ty, tz, offset, tileSize);
+					grid[gridIndex(tx, ty, tz)] = tile;
+					order[index++] = tile;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens the job's tile stream and starts drafting. Call on the server thread.
+	 */
+	static void start(ServerPlayerEntity player, UUID jobId, ServerWorld world, BlockPos min, BlockPos size, String prompt, Selection contextSelection, ContextSnapshot snapshot, String webhook, String requestId, DraftAdmission.Ticket ticket) {
+		TiledBuild build = new TiledBuild(player, jobId, world, min, size, prompt, webhook, requestId, ticket);
+		BuildQueueManager.openTiles(jobId, build.order.length, build.tilesX * build.tilesZ);
+		build.token.onCancel(build::releaseSlots);
+		player.sendMessage(Text.of("Large build: drafting " + build.order.length + " tiles, " + CONCURRENCY + " at a time."), false);
+		TesseractMod.LOGGER.info("Gumloop {} -> tiled build {}x{}x{} as {} tiles (concurrency {})",
+			requestId, size.getX(), size.getY(), size.getZ(), build.order.length, CONCURRENCY);
+		CompletableFuture.runAsync(() -> {
+			if (build.token.isCancelled()) {
+				return;
+			}
+			build.context = GumloopClient.buildContext(contextSelection, snapshot, requestId);
+			build.pump();
+		}, PlanWorkers.executor()).whenComplete((ignored, error) -> {
+			if (error != null && !build.token.isCancelled()) {
+				TesseractMod.LOGGER.error("Gumloop {} -> failed to start tiled build", requestId, error);
+				build.finishAll();
+			}
+		});
+	}
+
+	/**
+	 * Sends tile requests until {@link #CONCURRENCY} are in flight, Gumloop has no slot to spare, or none
+	 * are left.
+	 */
+	private void pump() {
+		while (true) {
+			Tile tile;
+			synchronized (this) {
+				if (token.isCancelled() || slots == 0 || inFlight >= CONCURRENCY || next >= order.length) {
+					return;
+				}
+				if (inFlight >= slots) {
+					if (!DraftAdmission.tryAcquireExtra()) {
+						return;
+					}
+					slots++;
+				}
+				tile = order[next++];
+				inFlight++;
+			}
+			draft(tile);
+		}
+	}
+
+	private void draft(Tile tile) {
+		String tileRequestId = requestId + "-t" + tile.index;
+		long buildStart = System.nanoTime();
+		Request request = GumloopClient.buildRequest(prompt, GumloopClient.toOrigin(min.add(tile.offset)), tile.size, context);
+		GumloopPayload.Tile payload = new GumloopPayload.Tile();
+		payload.index = tile.index;
+		payload.count = order.length;
+		payload.offset = GumloopClient.toOrigin(tile.offset);
+		payload.total = GumloopClient.toSize(size);
+		payload.neighbors = neighborBlocks(tile);
+		request.tile = payload;
+		Metrics.REQUEST_BUILD.recordSince(buildStart);
+		try {
+			GumloopClient.draft(tileRequestId, webhook, request, tile.size, null, startNanos, token, new GumloopClient.PlanSink() {
+				@Override
+				public void onPlan(CompiledPlan plan) {
+					tile.plan = plan;
+					if (player.getServer() != null) {
+						player.getServer().execute(() -> BuildQueueManager.startTile(player, jobId, world, min.add(tile.offset), plan, tile.index));
+					}
+					finishTile(false);
+				}
+
+				@Override
+				public void onError(String message) {
+					TesseractMod.LOGGER.warn("Gumloop {} -> tile failed: {}", tileRequestId, message);
+					if (player.getServer() != null) {
+						player.getServer().execute(() -> {
+							player.sendMessage(Text.of("Tile " + (tile.index + 1) + "/" + order.length + " failed: " + message), false);
+							BuildQueueManager.skipTile(player, jobId, tile.index);
+						});
+					}
+					finishTile(true);
+				}
+			});
+		} catch (RuntimeException ex) {
+			TesseractMod.LOGGER.error("Gumloop {} -> failed to send tile", tileRequestId, ex);
+			if (player.getServer() != null) {
+				player.getServer().execute(() -> BuildQueueManager.skipTile(player, jobId, tile.index));
+			}
+			finishTile(true);
+		}
+	}
+
+	private void finishTile(boolean tileFailed) {
+		boolean last;
+		int drafted;
+		boolean extra = false;
+		synchronized (this) {
+			inFlight--;
+			// Give the tile's slot back so a waiting draft goes first; pump() asks again if one is still free.
+			if (slots > 1) {
+				slots--;
+				extra = true;
+			}
+			done++;
+			if (tileFailed) {
+				failed++;
+			}
+			drafted = done;
+			last = done == order.length;
+		}
+		if (extra) {
+			DraftAdmission.releaseExtra();
+		}
+		if (player.getServer() != null) {
+			player.getServer().execute(() -> {
+				BuildProgress.updateDrafting(jobId, drafted, order.length);
+				// Tiles still arriving: the drafting deadline covers one slow tile, not the whole grid.
+				BuildJobManager.extend(jobId);
+			});
+		}
+		if (last) {
+			finishAll();
+		} else {
+			pump();
+		}
+	}
+
+	private void finishAll() {
+		releaseSlots();
+		int failedTiles;
+		synchronized (this) {
+			failedTiles = failed + (order.length - done);
+		}
+		long elapsedMs = (System.nanoTime() - startNanos) / 1_000_000L;
+		TesseractMod.LOGGER.info("Gumloop {} -> tiled build drafted in {}ms ({} of {} tiles failed)", requestId, elapsedMs, failedTiles, order.length);
+		if (player.getServer() == null) {
+			return;
+		}
+		int count = order.length;
+		player.getServer().execute(() -> {
+			BuildProgress.stopDrafting(jobId);
+			player.sendMessage(Text.of("Large build drafted: " + (count - failedTiles) + "/" + count + " tiles."), false);
+			BuildQueueManager.closeTiles(player, jobId);
+		});
+	}
+
+	/**
+	 * Gives back the ticket and every extra slot still held. Safe to call more than once.
+	 */
+	private void releaseSlots() {
+		int extras;
+		synchronized (this) {
+			extras = Math.max(0, slots - 1);
+			slots = 0;
+		}
+		for (int i = 0; i < extras; i++) {
+			DraftAdmission.releaseExtra();
+		}
+		ticket.release();
+	}
+
+	/**
+	 * Blocks of already drafted face neighbors near the shared faces, relative to {@code tile}'s origin.
+	 */
+	private List<BlockOp> neighborBlocks(Tile tile) {
+		List<BlockOp> blocks = new ArrayList<>();
+		int[][] directions = {{-1, 0, 0}, {1, 0, 0}, {0, -1, 0}, {0, 1, 0}, {0, 0, -1}, {0, 0, 1}};
+		for (int[] d : directions) {
+			Tile neighbor = tileAt(tile.tx + d[0], tile.ty + d[1], tile.tz + d[2]);
+			CompiledPlan plan = neighbor == null ? null : neighbor.plan;
+			if (plan == null) {
+				continue;
+			}
+			int dx = neighbor.offset.getX() - tile.offset.getX();
+			int dy = neighbor.offset.getY() - tile.offset.getY();
+			int dz = neighbor.offset.getZ() - tile.offset.getZ();
+			for (int i = 0; i < plan.size() && blocks.size() < MAX_NEIGHBOR_BLOCKS; i++) {
+				long op = plan.op(i);
+				int x = dx + CompiledPlan.unpackX(op);
+				int y = dy + CompiledPlan.unpackY(op);
+				int z = dz + CompiledPlan.unpackZ(op);
+				if (!nearTile(tile, x, y, z)) {
+					continue;
+				}
+				BlockOp block = new BlockOp();
+				block.x = x;
+				block.y = y;
+				block.z = z;
+				block.block = plan.blockId(op);
+				blocks.add(block);
+			}
+		}
+		return blocks;
+	}
+
+	private static boolean nearTile(Tile tile, int x, int y, int z) {
+		return x >= -EDGE && x < tile.size.getX() + EDGE
+			&& y >= -EDGE && y < tile.size.getY() + EDGE
+			&& z >= -EDGE && z < tile.size.getZ() + EDGE;
+	}
+
+	private Tile tileAt(int tx, int ty, int tz) {
+		if (tx < 0 || ty < 0 || tz < 0 || tx >= tilesX || tz >= tilesZ) {
+			return null;
+		}
+		int index = gridIndex(tx, ty, tz);
+		return index < grid.length ? grid[index] : null;
+	}
+
+	private int gridIndex(int tx, int ty, int tz) {
+		return tx + tilesX * (tz + tilesZ * ty);
+	}
+
+	private static int tiles(int length) {
+		return (length + TILE_SIZE - 1) / TILE_SIZE;
+	}
+
+	private static int concurrency() {
+		String value = System.getenv("GUMLOOP_TILE_CONCURRENCY");
+		if (value != null) {
+			try {
+				return Math.max(1, Integer.parseInt(value.trim()));
+			} catch (NumberFormatException ex) {
+				TesseractMod.LOGGER.warn("Ignoring invalid GUMLOOP_TILE_CONCURRENCY={}", value);
+			}
+		}
+		return 4;
+	}
+
+	private static final class Tile {
+		private final int index;
+		private final int tx;
+		private final int ty;
+		private final int tz;
+		private final BlockPos offset;
+		private final BlockPos size;
+		private volatile CompiledPlan plan;
+
+		private Tile(int index, int tx, int ty, int tz, BlockPos offset, BlockPos size) {
+			this.index = index;
+			this.tx = tx;
+			this.ty = ty;
+			this.tz = tz;
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+}
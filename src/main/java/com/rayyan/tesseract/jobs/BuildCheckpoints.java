@@ -0,0 +1,317 @@
+package com.rayyan.tesseract.jobs;
+
+import com.rayyan.tesseract.TesseractMod;
+import net.minecraft.block.BlockState;
+import net.minecraft.nbt.NbtHelper;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.util.math.BlockPos;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * On-disk checkpoints of running build jobs, so a restart or crash does not strand a half-built structure.
+ *
+ * Each job gets one append-only file under {@code <world>/tesseract/jobs}, named after its job id. It starts
+ * with a header: the owner, world key, origin, job kind, palette states (as NBT) and the section-sorted ops
+ * still to place.
+ * After that come fixed 9-byte progress records holding the job's index. The tick thread only snapshots
+ * indexes every {@link #INTERVAL_MS} and hands them over as one batch. A single writer thread serializes
+ * headers, appends records and deletes the file when the job ends. On load the last complete progress
+ * record wins, and a torn tail from a crash is ignored.
+ */
+final class BuildCheckpoints {
+	static final long INTERVAL_MS = 2_000L;
+	// How long a resumed job waits for its owner before it is dropped (TESSERACT_RESUME_TIMEOUT_MINUTES).
+	static final long RESUME_TIMEOUT_MS = resumeTimeoutMinutes() * 60_000L;
+	private static final int MAGIC = 0x54424A31; // "TBJ1"
+	private static final byte PROGRESS = 'P';
+	private static final int PROGRESS_BYTES = 1 + Integer.BYTES + Integer.BYTES;
+
+	private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "tesseract-checkpoint");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// By job id. Only touched on the writer thread.
+	private static final Map<UUID, FileChannel> OPEN = new HashMap<>();
+	private static volatile Path directory;
+
+	private BuildCheckpoints() {}
+
+	/**
+	 * TESSERACT_RESUME_TIMEOUT_MINUTES, default 30.
+	 */
+	private static long resumeTimeoutMinutes() {
+		String value = System.getenv("TESSERACT_RESUME_TIMEOUT_MINUTES");
+		if (value != null) {
+			try {
+				return Math.max(1L, Long.parseLong(value.trim()));
+			} catch (NumberFormatException ex) {
+				TesseractMod.LOGGER.warn("Ignoring invalid TESSERACT_RESUME_TIMEOUT_MINUTES={}", value);
+			}
+		}
+		return 30L;
+	}
+
+	/**
+	 * A job read back from disk.
+	 */
+	static final class Saved {
+		final UUID jobId;
+		final UUID playerId;
+		final String worldKey;
+		final BlockPos origin;
+		final UndoManager.Kind kind;
+		final BlockState[] palette;
+		final long[] ops;
+		final int index;
+		final int placed;
+
+		private Saved(UUID jobId, UUID playerId, String worldKey, BlockPos origin, UndoManager.Kind kind, BlockState[] palette, long[] ops, int index, int placed) {
+			this.jobId = jobId;
+			this.playerId = playerId;
+			this.worldKey = worldKey;
+			this.origin = origin;
+			this.kind = kind;
+			this.palette = palette;
+			this.ops = ops;
+			this.index = index;
+			this.placed = placed;
+		}
+	}
+
+	/**
+	 * Points checkpoints at the loaded world's save directory.
+	 */
+	static void open(MinecraftServer server) {
+		directory = server.getSavePath(WorldSavePath.ROOT).resolve("tesseract").resolve("jobs");
+	}
+
+	static void begin(UUID jobId, UUID playerId, String worldKey, BlockPos origin, UndoManager.Kind kind, CompiledPlan plan, long[] ops) {
+		Path dir = directory;
+		if (dir == null) {
+			return;
+		}
+		WRITER.execute(() -> {
+			Path file = dir.resolve(jobId + ".job");
+			try {
+				Files.createDirectories(dir);
+				closeChannel(jobId);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + ops.length * Long.BYTES);
+				try (DataOutputStream out = new DataOutputStream(bytes)) {
+					out.writeInt(MAGIC);
+					out.writeLong(playerId.getMostSignificantBits());
+					out.writeLong(playerId.getLeastSignificantBits());
+					out.writeUTF(worldKey);
+					out.writeInt(origin.getX());
+					out.writeInt(origin.getY());
+					out.writeInt(origin.getZ());
+					out.writeByte(kind.ordinal());
+					out.writeInt(plan.paletteSize());
+					for (int i = 0; i < plan.paletteSize(); i++) {
+						NbtIo.write(NbtHelper.fromBlockState(plan.paletteState(i)), out);
+					}
+					out.writeInt(ops.length);
+					for (long op : ops) {
+						out.writeLong(op);
+					}
+				}
+				FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()));
+				channel.force(true);
+				OPEN.put(jobId, channel);
+			} catch (IOException ex) {
+				TesseractMod.LOGGER.warn("Failed to write build checkpoint for job {}: {}", jobId, ex.toString());
+			}
+		});
+	}
+
+	/**
+	 * Appends one progress record per job in a single writer task. {@code indexes[i]} and {@code placed[i]}
+	 * belong to {@code jobIds[i]}.
+	 */
+	static void progress(UUID[] jobIds, int[] indexes, int[] placed) {
+		if (directory == null || jobIds.length == 0) {
+			return;
+		}
+		WRITER.execute(() -> {
+			ByteBuffer record = ByteBuffer.allocate(PROGRESS_BYTES);
+			for (int i = 0; i < jobIds.length; i++) {
+				FileChannel channel = OPEN.get(jobIds[i]);
+				if (channel == null) {
+					continue;
+				}
+				record.clear();
+				record.put(PROGRESS).putInt(indexes[i]).putInt(placed[i]).flip();
+				try {
+					channel.position(channel.size());
+					writeFully(channel, record);
+					// No fsync: losing the last few records only means re-checking a few already placed ops.
+				} catch (IOException ex) {
+					TesseractMod.LOGGER.warn("Failed to append build checkpoint for job {}: {}", jobIds[i], ex.toString());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Forgets a job that has ended, deleting its file.
+	 */
+	static void end(UUID jobId) {
+		Path dir = directory;
+		if (dir == null) {
+			return;
+		}
+		WRITER.execute(() -> {
+			closeChannel(jobId);
+			try {
+				Files.deleteIfExists(dir.resolve(jobId + ".job"));
+			} catch (IOException ex) {
+				TesseractMod.LOGGER.warn("Failed to delete build checkpoint for job {}: {}", jobId, ex.toString());
+			}
+		});
+	}
+
+	/**
+	 * Flushes and closes every open checkpoint, keeping the files for the next start. Blocks until the
+	 * writer has drained, for use while the server stops.
+	 */
+	static void close() {
+		if (directory == null) {
+			return;
+		}
+		try {
+			WRITER.submit(() -> {
+				for (UUID jobId : new ArrayList<>(OPEN.keySet())) {
+					closeChannel(jobId);
+				}
+			}).get(10, TimeUnit.SECONDS);
+		} catch (Exception ex) {
+			TesseractMod.LOGGER.warn("Build checkpoint writer did not drain: {}", ex.toString());
+		}
+		directory = null;
+	}
+
+	/**
+	 * Reads every checkpoint in the current world. Unreadable files are deleted.
+	 */
+	static List<Saved> load() {
+		List<Saved> saved = new ArrayList<>();
+		Path dir = directory;
+		if (dir == null || !Files.isDirectory(dir)) {
+			return saved;
+		}
+		List<Path> files;
+		try (Stream<Path> listing = Files.list(dir)) {
+			files = listing.filter(path -> path.getFileName().toString().endsWith(".job")).toList();
+		} catch (IOException ex) {
+			TesseractMod.LOGGER.warn("Failed to list build checkpoints: {}", ex.toString());
+			return saved;
+		}
+		for (Path file : files) {
+			Saved job = read(file);
+			if (job == null) {
+				TesseractMod.LOGGER.warn("Discarding unreadable build checkpoint {}", file.getFileName());
+				try {
+					Files.deleteIfExists(file);
+				} catch (IOException ex) {
+					// left for the next start
+				}
+				continue;
+			}
+			saved.add(job);
+		}
+		return saved;
+	}
+
+	private static Saved read(Path file) {
+		String name = file.getFileName().toString();
+		UUID jobId;
+		try {
+			jobId = UUID.fromString(name.substring(0, name.length() - ".job".length()));
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				return null;
+			}
+			UUID playerId = new UUID(in.readLong(), in.readLong());
+			String worldKey = in.readUTF();
+			BlockPos origin = new BlockPos(in.readInt(), in.readInt(), in.readInt());
+			int kind = in.readByte();
+			if (kind < 0 || kind >= UndoManager.Kind.values().length) {
+				return null;
+			}
+			BlockState[] palette = new BlockState[in.readInt()];
+			for (int i = 0; i < palette.length; i++) {
+				palette[i] = NbtHelper.toBlockState(NbtIo.read(in));
+			}
+			long[] ops = new long[in.readInt()];
+			for (int i = 0; i < ops.length; i++) {
+				ops[i] = in.readLong();
+				if (CompiledPlan.unpackPaletteIndex(ops[i]) >= palette.length) {
+					return null;
+				}
+			}
+			int index = 0;
+			int placed = 0;
+			try {
+				while (true) {
+					if (in.readByte() != PROGRESS) {
+						break;
+					}
+					int nextIndex = in.readInt();
+					int nextPlaced = in.readInt();
+					index = nextIndex;
+					placed = nextPlaced;
+				}
+			} catch (EOFException ex) {
+				// End of the log, or a record torn by a crash; the last complete one stands.
+			}
+			return new Saved(jobId, playerId, worldKey, origin, UndoManager.Kind.values()[kind], palette, ops, Math.min(index, ops.length), placed);
+		} catch (IOException | RuntimeException ex) {
+			return null;
+		}
+	}
+
+	private static void closeChannel(UUID jobId) {
+		FileChannel channel = OPEN.remove(jobId);
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.force(false);
+			channel.close();
+		} catch (IOException ex) {
+			TesseractMod.LOGGER.warn("Failed to close build checkpoint for job {}: {}", jobId, ex.toString());
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
@@ -1,41 +1,424 @@
 package com.rayyan.tesseract.jobs;
 
+import com.rayyan.tesseract.TesseractMod;
+import com.rayyan.tesseract.metrics.Metrics;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.text.Text;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.registry.RegistryKey;
+import net.minecraft.world.World;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
+/**
+ * Build jobs, from the command to their outcome, and the world regions those jobs have claimed.
+ *
+ * Each job has an id of its own, handed out by {@link #start}, and every other call takes that id. A player
+ * may have up to {@link #MAX_JOBS_PER_PLAYER} jobs in progress at once (TESSERACT_MAX_JOBS_PER_PLAYER,
+ * default 4). A job moves through {@link State}: queued while Gumloop is busy, drafting, then polling and
+ * validating for a Gumloop run, then placing, and ends done, failed or cancelled. Ending, whichever way,
+ * cancels the job's {@link CancelToken} and forgets the job.
+ * The stages before placing that can hang on the network each have a deadline on a {@link TimerWheel} that
+ * advances once per server tick, so a tick costs the deadlines that fire rather than a scan of every job.
+ * Placing has no deadline; the build queue ends it.
+ *
+ * A job in progress can also hold one claimed region: the box its build may write to. Claims live in a
+ * {@link RegionIndex} per world, so checking a new build against every active and drafting build is
+ * O(log n) instead of a scan. Builds in disjoint regions run side by side, including several of the same
+ * player's; a build whose region overlaps any other build's claim is refused up front rather than left to
+ * overwrite it.
+ */
 public final class BuildJobManager {
-	private static final long DEFAULT_LOCK_MILLIS = 5 * 60 * 1000L;
-	private static final Map<UUID, Long> ACTIVE_JOBS = new ConcurrentHashMap<>();
+	public static final int MAX_JOBS_PER_PLAYER = maxJobsPerPlayer();
+	private static final long QUEUED_TIMEOUT_TICKS = 10 * 60 * 20L;
+	private static final long DRAFTING_TIMEOUT_TICKS = 5 * 60 * 20L;
+	private static final long POLLING_TIMEOUT_TICKS = 3 * 60 * 20L;
+	private static final long VALIDATING_TIMEOUT_TICKS = 60 * 20L;
+	// Jobs in progress, by job id.
+	private static final Map<UUID, Job> JOBS = new ConcurrentHashMap<>();
+	// Guarded by WHEEL.
+	private static final TimerWheel<Job> WHEEL = new TimerWheel<>();
+	private static final List<Job> DUE = new ArrayList<>();
+	private static final Consumer<Job> COLLECT_DUE = DUE::add;
+	// Guarded by CLAIMS. Keyed by job id.
+	private static final Map<UUID, Claim> CLAIMS = new HashMap<>();
+	private static final Map<RegistryKey<World>, RegionIndex> REGIONS = new HashMap<>();
 
 	private BuildJobManager() {}
 
-	public static boolean isInProgress(UUID playerId) {
-		Long expiresAt = ACTIVE_JOBS.get(playerId);
-		if (expiresAt == null) {
+	public enum State {
+		QUEUED(QUEUED_TIMEOUT_TICKS),
+		DRAFTING(DRAFTING_TIMEOUT_TICKS),
+		POLLING(POLLING_TIMEOUT_TICKS),
+		VALIDATING(VALIDATING_TIMEOUT_TICKS),
+		PLACING(0L),
+		DONE(0L),
+		FAILED(0L),
+		CANCELLED(0L);
+
+		private final long timeoutTicks;
+
+		State(long timeoutTicks) {
+			this.timeoutTicks = timeoutTicks;
+		}
+
+		public boolean isFinal() {
+			return this == DONE || this == FAILED || this == CANCELLED;
+		}
+	}
+
+	/**
+	 * Number of the player's jobs in progress. A scan of the jobs in progress, so only for commands.
+	 */
+	public static int jobsInProgress(UUID playerId) {
+		int count = 0;
+		for (Job job : JOBS.values()) {
+			if (job.playerId.equals(playerId) && !job.state.isFinal()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The state of a job, or null once it has ended.
+	 */
+	public static State getState(UUID jobId) {
+		Job job = JOBS.get(jobId);
+		return job == null ? null : job.state;
+	}
+
+	/**
+	 * Starts a new job for the player, in {@link State#DRAFTING}, and returns its id. Returns null, starting
+	 * nothing, if the player already has {@link #MAX_JOBS_PER_PLAYER} jobs in progress. Call on the server
+	 * thread.
+	 */
+	public static UUID start(UUID playerId) {
+		if (jobsInProgress(playerId) >= MAX_JOBS_PER_PLAYER) {
+			return null;
+		}
+		UUID jobId = UUID.randomUUID();
+		resume(jobId, playerId);
+		return jobId;
+	}
+
+	/**
+	 * Starts a job under the id it had before a restart. Not subject to the per-player limit.
+	 */
+	static void resume(UUID jobId, UUID playerId) {
+		Job job = new Job(jobId, playerId);
+		JOBS.put(jobId, job);
+		synchronized (WHEEL) {
+			enter(job, State.DRAFTING);
+		}
+	}
+
+	/**
+	 * Moves a job on to {@code state} and restarts that state's deadline. Safe from any thread. Returns false,
+	 * changing nothing, if the job has ended.
+	 */
+	public static boolean advance(UUID jobId, State state) {
+		if (state.isFinal()) {
+			return end(jobId, state);
+		}
+		Job job = JOBS.get(jobId);
+		if (job == null) {
 			return false;
 		}
-		if (System.currentTimeMillis() > expiresAt) {
-			ACTIVE_JOBS.remove(playerId);
+		synchronized (WHEEL) {
+			if (job.state.isFinal()) {
+				return false;
+			}
+			enter(job, state);
+		}
+		return true;
+	}
+
+	/**
+	 * Restarts the deadline of the job's current state, for a stage that is slow but still moving.
+	 */
+	public static void extend(UUID jobId) {
+		Job job = JOBS.get(jobId);
+		if (job != null) {
+			advance(jobId, job.state);
+		}
+	}
+
+	/**
+	 * Ends the job as done and releases its region.
+	 */
+	public static void finish(UUID jobId) {
+		end(jobId, State.DONE);
+	}
+
+	/**
+	 * Ends the job as failed and releases its region.
+	 */
+	public static void fail(UUID jobId) {
+		end(jobId, State.FAILED);
+	}
+
+	/**
+	 * Ends the job as cancelled: releases its region, and cancels its token so requests, polls and placement
+	 * stop. Returns false if the job had already ended. Call on the server thread.
+	 */
+	public static boolean cancel(UUID jobId) {
+		Job job = JOBS.get(jobId);
+		if (job == null || !end(jobId, State.CANCELLED)) {
 			return false;
 		}
+		BuildProgress.stop(jobId);
+		TesseractMod.LOGGER.info("Build job {} for {} cancelled.", jobId, job.playerId);
 		return true;
 	}
 
-	public static void start(UUID playerId) {
-		ACTIVE_JOBS.put(playerId, System.currentTimeMillis() + DEFAULT_LOCK_MILLIS);
+	/**
+	 * Cancels every job the player has in progress; see {@link #cancel}. Returns how many there were.
+	 */
+	public static int cancelAll(UUID playerId) {
+		int cancelled = 0;
+		for (Job job : JOBS.values()) {
+			if (job.playerId.equals(playerId) && cancel(job.jobId)) {
+				cancelled++;
+			}
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Drops a job that never got going, e.g. because its region was refused, without counting an outcome.
+	 */
+	public static void discard(UUID jobId) {
+		Job job = JOBS.get(jobId);
+		if (job == null) {
+			return;
+		}
+		synchronized (WHEEL) {
+			if (job.state.isFinal()) {
+				return;
+			}
+			WHEEL.cancel(job.timer);
+			job.timer = null;
+			job.state = State.CANCELLED;
+		}
+		JOBS.remove(jobId, job);
+		release(jobId);
+		job.token.cancel();
+	}
+
+	/**
+	 * Names the job after the request that drafts or fetches its plan, for tracing.
+	 */
+	public static void setRequestId(UUID jobId, String requestId) {
+		Job job = JOBS.get(jobId);
+		if (job != null) {
+			job.requestId = requestId;
+		}
+	}
+
+	/**
+	 * The request id of a job in progress; null if it has ended or was never named.
+	 */
+	public static String requestId(UUID jobId) {
+		Job job = JOBS.get(jobId);
+		return job == null ? null : job.requestId;
 	}
 
-	public static void finish(UUID playerId) {
-		ACTIVE_JOBS.remove(playerId);
+	/**
+	 * The cancellation token of a job in progress; an already cancelled token once it has ended.
+	 */
+	public static CancelToken token(UUID jobId) {
+		Job job = JOBS.get(jobId);
+		return job == null ? CancelToken.CANCELLED : job.token;
 	}
 
-	public static void tick() {
-		long now = System.currentTimeMillis();
-		for (Map.Entry<UUID, Long> entry : ACTIVE_JOBS.entrySet()) {
-			if (now > entry.getValue()) {
-				ACTIVE_JOBS.remove(entry.getKey());
+	/**
+	 * Claims the inclusive box [min, max] in {@code world} for the job's build, in place of any region it held
+	 * before. Returns null once claimed, or the id of the player whose build overlaps the box (possibly the
+	 * job's own player), in which case nothing changes. A job that has already ended claims nothing.
+	 */
+	public static UUID claim(UUID jobId, World world, BlockPos min, BlockPos max) {
+		synchronized (CLAIMS) {
+			Job job = JOBS.get(jobId);
+			// end() marks the job final before it takes CLAIMS to release, so no claim outlives its job.
+			if (job == null || job.state.isFinal()) {
+				return null;
 			}
+			RegionIndex index = REGIONS.computeIfAbsent(world.getRegistryKey(), key -> new RegionIndex());
+			Claim previous = CLAIMS.remove(jobId);
+			if (previous != null) {
+				previous.index.remove(previous.region);
+			}
+			RegionIndex.Region overlap = index.findOverlap(min.getX(), min.getY(), min.getZ(), max.getX(), max.getY(), max.getZ());
+			if (overlap != null) {
+				if (previous != null) {
+					CLAIMS.put(jobId, new Claim(previous.index, restore(previous)));
+				}
+				return overlap.owner;
+			}
+			RegionIndex.Region region = index.add(job.playerId, min.getX(), min.getY(), min.getZ(), max.getX(), max.getY(), max.getZ());
+			CLAIMS.put(jobId, new Claim(index, region));
+			return null;
+		}
+	}
+
+	/**
+	 * Claims the box a plan covers when built at {@code origin}; see {@link #claim}.
+	 */
+	static UUID claimPlan(UUID jobId, World world, BlockPos origin, CompiledPlan plan) {
+		return claim(jobId, world, origin, origin.add(plan.maxCorner()));
+	}
+
+	/**
+	 * Number of regions claimed across all worlds.
+	 */
+	public static int claimedRegions() {
+		synchronized (CLAIMS) {
+			return CLAIMS.size();
+		}
+	}
+
+	/**
+	 * Advances the deadline wheel by one tick and fails the jobs whose stage ran out of time. Call once per
+	 * server tick.
+	 */
+	public static void tick(MinecraftServer server) {
+		List<Job> expired;
+		synchronized (WHEEL) {
+			WHEEL.advance(COLLECT_DUE);
+			if (DUE.isEmpty()) {
+				return;
+			}
+			expired = new ArrayList<>(DUE);
+			DUE.clear();
+		}
+		for (Job job : expired) {
+			State stage = job.state;
+			if (!expire(job)) {
+				continue;
+			}
+			TesseractMod.LOGGER.warn("Build job {} for {} timed out while {}.", job.jobId, job.playerId, stage);
+			BuildProgress.stopDrafting(job.jobId);
+			ServerPlayerEntity player = server == null ? null : server.getPlayerManager().getPlayer(job.playerId);
+			if (player != null) {
+				player.sendMessage(Text.of("Error: build timed out while " + stage.name().toLowerCase() + "."), false);
+			}
+		}
+	}
+
+	/**
+	 * Fails a job whose deadline fired, unless it moved on to another state since.
+	 */
+	private static boolean expire(Job job) {
+		synchronized (WHEEL) {
+			if (job.timer == null || job.timer.isPending() || job.state.isFinal()) {
+				return false;
+			}
+			enter(job, State.FAILED);
+		}
+		JOBS.remove(job.jobId, job);
+		Metrics.JOBS_TIMED_OUT.increment();
+		release(job.jobId);
+		job.token.cancel();
+		return true;
+	}
+
+	private static void enter(Job job, State state) {
+		WHEEL.cancel(job.timer);
+		job.timer = null;
+		job.state = state;
+		if (state.timeoutTicks > 0) {
+			job.timer = WHEEL.schedule(job, state.timeoutTicks);
+		}
+	}
+
+	private static boolean end(UUID jobId, State state) {
+		Job job = JOBS.get(jobId);
+		if (job == null) {
+			return false;
+		}
+		synchronized (WHEEL) {
+			if (job.state.isFinal()) {
+				return false;
+			}
+			enter(job, state);
+		}
+		JOBS.remove(jobId, job);
+		count(state);
+		release(jobId);
+		// Whatever is still in flight for the job has nobody to deliver to now.
+		job.token.cancel();
+		return true;
+	}
+
+	private static void count(State outcome) {
+		if (outcome == State.DONE) {
+			Metrics.JOBS_DONE.increment();
+		} else if (outcome == State.CANCELLED) {
+			Metrics.JOBS_CANCELLED.increment();
+		} else {
+			Metrics.JOBS_FAILED.increment();
+		}
+	}
+
+	private static void release(UUID jobId) {
+		synchronized (CLAIMS) {
+			Claim claim = CLAIMS.remove(jobId);
+			if (claim != null) {
+				claim.index.remove(claim.region);
+			}
+		}
+	}
+
+	private static RegionIndex.Region restore(Claim claim) {
+		RegionIndex.Region region = claim.region;
+		return claim.index.add(region.owner, region.minX, region.minY, region.minZ, region.maxX, region.maxY, region.maxZ);
+	}
+
+	/**
+	 * TESSERACT_MAX_JOBS_PER_PLAYER, default 4.
+	 */
+	private static int maxJobsPerPlayer() {
+		String value = System.getenv("TESSERACT_MAX_JOBS_PER_PLAYER");
+		if (value != null) {
+			try {
+				return Math.max(1, Integer.parseInt(value.trim()));
+			} catch (NumberFormatException ex) {
+				TesseractMod.LOGGER.warn("Ignoring invalid TESSERACT_MAX_JOBS_PER_PLAYER={}", value);
+			}
+		}
+		return 4;
+	}
+
+	private static final class Job {
+		private final UUID jobId;
+		private final UUID playerId;
+		private final CancelToken token = new CancelToken();
+		private volatile State state;
+		private volatile String requestId;
+		// Guarded by WHEEL.
+		private TimerWheel.Timer<Job> timer;
+
+		private Job(UUID jobId, UUID playerId) {
+			this.jobId = jobId;
+			this.playerId = playerId;
+		}
+	}
+
+	private static final class Claim {
+		private final RegionIndex index;
+		private final RegionIndex.Region region;
+
+		private Claim(RegionIndex index, RegionIndex.Region region) {
+			this.index = index;
+			this.region = region;
 		}
 	}
 }
@@ -0,0 +1,239 @@
+package com.rayyan.tesseract.jobs;
+
+import net.minecraft.entity.boss.BossBar;
+import net.minecraft.entity.boss.ServerBossBar;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.text.Text;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One bossbar per player that follows their builds from drafting to the last block.
+ *
+ * Each job records its own progress. While drafting, that is the elapsed time, and for a large build the
+ * tiles drafted; a single request stays empty, since Gumloop reports no progress of its own. While chunks
+ * load, it is chunks ready. While placing, it is the true placed/total with blocks per second and an ETA.
+ * The player's bar shows the job furthest along (placing before loading before drafting, then the oldest),
+ * and says how many more are in progress. Callers only record the latest values, which is cheap enough to
+ * do every tick. {@link #tick} decides what reaches the client: the fill is resent only once it has moved
+ * by {@link #PERCENT_STEP}, and the title at most every {@link #TITLE_INTERVAL_MS} unless the shown job or
+ * its stage changed. Many concurrent builds therefore cost a few bossbar packets per second, not one per
+ * bar per tick.
+ */
+public final class BuildProgress {
+	private static final float PERCENT_STEP = 0.01f;
+	private static final long TITLE_INTERVAL_MS = 1000L;
+	// Progress by job id.
+	private static final Map<UUID, Track> TRACKS = new ConcurrentHashMap<>();
+	// Bossbars by player id.
+	private static final Map<UUID, Bar> BARS = new ConcurrentHashMap<>();
+	private static long nextSequence;
+
+	private BuildProgress() {}
+
+	private enum Stage {
+		DRAFTING(BossBar.Color.PURPLE),
+		LOADING(BossBar.Color.YELLOW),
+		PLACING(BossBar.Color.GREEN);
+
+		private final BossBar.Color color;
+
+		Stage(BossBar.Color color) {
+			this.color = color;
+		}
+	}
+
+	public static void startDrafting(ServerPlayerEntity player, UUID jobId, String requestId) {
+		if (player == null) {
+			return;
+		}
+		Track track = track(player, jobId, Stage.DRAFTING);
+		track.label = requestId;
+		track.done = 0;
+		track.total = 0;
+	}
+
+	/**
+	 * Records tiles drafted so far for a large build. Call on the server thread.
+	 */
+	public static void updateDrafting(UUID jobId, int done, int total) {
+		Track track = TRACKS.get(jobId);
+		if (track != null && track.stage == Stage.DRAFTING) {
+			track.done = done;
+			track.total = total;
+		}
+	}
+
+	/**
+	 * Ends the drafting stage. The job's progress stays if placement has already taken it over.
+	 */
+	public static void stopDrafting(UUID jobId) {
+		if (jobId == null) {
+			return;
+		}
+		Track track = TRACKS.get(jobId);
+		if (track != null && track.stage == Stage.DRAFTING) {
+			stop(jobId);
+		}
+	}
+
+	static void showLoading(ServerPlayerEntity player, UUID jobId, int loaded, int chunks) {
+		Track track = track(player, jobId, Stage.LOADING);
+		track.done = loaded;
+		track.total = chunks;
+	}
+
+	static void showPlacing(ServerPlayerEntity player, UUID jobId, String label, int placed, int total) {
+		Track track = track(player, jobId, Stage.PLACING);
+		if (!label.equals(track.label)) {
+			// A new tile of a large build: restart the rate from here.
+			track.label = label;
+			track.stageStartedAt = System.currentTimeMillis();
+			track.changed = true;
+		}
+		track.done = placed;
+		track.total = total;
+	}
+
+	/**
+	 * Drops the job's progress. The player's bar goes on with their other jobs, if any, and is removed on the
+	 * next {@link #tick} otherwise.
+	 */
+	static void stop(UUID jobId) {
+		TRACKS.remove(jobId);
+	}
+
+	private static Track track(ServerPlayerEntity player, UUID jobId, Stage stage) {
+		Track track = TRACKS.get(jobId);
+		if (track == null) {
+			track = new Track(player.getUuid(), nextSequence++);
+			TRACKS.put(jobId, track);
+		}
+		if (track.stage != stage) {
+			track.stage = stage;
+			track.stageStartedAt = System.currentTimeMillis();
+			track.changed = true;
+		}
+		if (!BARS.containsKey(player.getUuid())) {
+			ServerBossBar bossBar = new ServerBossBar(Text.of("Tesseract"), stage.color, BossBar.Style.PROGRESS);
+			bossBar.setPercent(0.0f);
+			bossBar.addPlayer(player);
+			BARS.put(player.getUuid(), new Bar(bossBar));
+		}
+		return track;
+	}
+
+	public static void tick(MinecraftServer server) {
+		if (server == null || BARS.isEmpty()) {
+			return;
+		}
+		// Each player's shown job, and how many they have in all.
+		Map<UUID, Track> shown = new HashMap<>();
+		Map<UUID, Integer> counts = new HashMap<>();
+		for (Iterator<Track> it = TRACKS.values().iterator(); it.hasNext(); ) {
+			Track track = it.next();
+			if (server.getPlayerManager().getPlayer(track.playerId) == null) {
+				it.remove();
+				continue;
+			}
+			counts.merge(track.playerId, 1, Integer::sum);
+			shown.merge(track.playerId, track, BuildProgress::furtherAlong);
+		}
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<UUID, Bar>> it = BARS.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<UUID, Bar> entry = it.next();
+			Bar bar = entry.getValue();
+			Track track = shown.get(entry.getKey());
+			if (track == null) {
+				it.remove();
+				bar.bar.clearPlayers();
+				continue;
+			}
+			int others = counts.get(entry.getKey()) - 1;
+			boolean force = track != bar.shown || track.changed || others != bar.sentOthers;
+			if (track != bar.shown || track.changed) {
+				bar.bar.setColor(track.stage.color);
+				bar.shown = track;
+				track.changed = false;
+			}
+			float percent = track.total > 0 ? Math.min(1.0f, track.done / (float) track.total) : 0.0f;
+			if (force || Math.abs(percent - bar.sentPercent) >= PERCENT_STEP || (percent == 1.0f && bar.sentPercent != 1.0f)) {
+				bar.bar.setPercent(percent);
+				bar.sentPercent = percent;
+			}
+			if (force || now - bar.titleSentAt >= TITLE_INTERVAL_MS) {
+				String title = title(track, now) + (others > 0 ? " (+" + others + " more)" : "");
+				if (!title.equals(bar.sentTitle)) {
+					bar.bar.setName(Text.of(title));
+					bar.sentTitle = title;
+					bar.titleSentAt = now;
+				}
+				bar.sentOthers = others;
+			}
+		}
+	}
+
+	private static Track furtherAlong(Track a, Track b) {
+		if (a.stage != b.stage) {
+			return a.stage.ordinal() > b.stage.ordinal() ? a : b;
+		}
+		return a.sequence <= b.sequence ? a : b;
+	}
+
+	private static String title(Track track, long now) {
+		long elapsedMs = now - track.stageStartedAt;
+		switch (track.stage) {
+			case DRAFTING:
+				String tiles = track.total > 0 ? ", " + track.done + "/" + track.total + " tiles" : "";
+				return "Tesseract drafting… " + elapsedMs / 1000L + "s" + tiles + " (" + track.label + ")";
+			case LOADING:
+				return "Loading chunks… " + track.done + "/" + track.total;
+			default:
+				double perSecond = elapsedMs > 0 ? track.done * 1000.0 / elapsedMs : 0.0;
+				String eta = perSecond > 0 ? ", ETA " + (long) Math.ceil((track.total - track.done) / perSecond) + "s" : "";
+				return track.label + ": " + track.done + "/" + track.total + " blocks, " + Math.round(perSecond) + " blocks/s" + eta;
+		}
+	}
+
+	/**
+	 * One job's latest progress.
+	 */
+	private static final class Track {
+		private final UUID playerId;
+		// Start order, so the oldest of several jobs in the same stage is shown.
+		private final long sequence;
+		private Stage stage;
+		private long stageStartedAt;
+		private String label;
+		private int done;
+		private int total;
+		// The stage or label moved on since the bar last showed this job.
+		private boolean changed;
+
+		private Track(UUID playerId, long sequence) {
+			this.playerId = playerId;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * A player's bossbar and what was last sent on it.
+	 */
+	private static final class Bar {
+		private final ServerBossBar bar;
+		private Track shown;
+		private float sentPercent;
+		private String sentTitle;
+		private long titleSentAt;
+		private int sentOthers;
+
+		private Bar(ServerBossBar bar) {
+			this.bar = bar;
+		}
+	}
+}
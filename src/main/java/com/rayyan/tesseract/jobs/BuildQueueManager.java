@@ -1,37 +1,40 @@
 package com.rayyan.tesseract.jobs;
 
-import com.rayyan.tesseract.gumloop.GumloopPayload;
+import com.rayyan.tesseract.TesseractMod;
+import com.rayyan.tesseract.metrics.Metrics;
+import com.rayyan.tesseract.metrics.TesseractEvents;
 import com.rayyan.tesseract.selection.Selection;
-import net.minecraft.block.Block;
-import net.minecraft.block.BlockState;
-import net.minecraft.block.Blocks;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.text.Text;
-import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
-import net.minecraft.util.registry.Registry;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
 public final class BuildQueueManager {
-	private static final int BLOCKS_PER_TICK = 20;
-	private static final long PROGRESS_INTERVAL_MS = 1000L;
+	private static final int SLICE_OPS = 16;
+	// Queued and running jobs, by job id.
 	private static final Map<UUID, BuildJob> ACTIVE_JOBS = new ConcurrentHashMap<>();
+	// Round-robin order of running jobs. Only touched on the server thread.
+	private static final ArrayDeque<BuildJob> RUN_QUEUE = new ArrayDeque<>();
+	// Large builds still receiving tiles, by job id. Only touched on the server thread.
+	private static final Map<UUID, TileStream> TILE_STREAMS = new HashMap<>();
+	private static long lastCheckpointAt;
 
 	private BuildQueueManager() {}
 
-	public static boolean startBuild(ServerPlayerEntity player, Selection selection, GumloopPayload.Response plan) {
-		if (player == null || selection == null || plan == null || plan.ops == null) {
-			return false;
-		}
-		UUID playerId = player.getUuid();
-		if (ACTIVE_JOBS.containsKey(playerId)) {
-			player.sendMessage(Text.of("Error: build already running for this player."), false);
+	public static boolean startBuild(ServerPlayerEntity player, UUID jobId, Selection selection, CompiledPlan plan) {
+		if (player == null || selection == null || plan == null) {
 			return false;
 		}
 		BlockPos origin = selection.getMin();
@@ -40,14 +43,223 @@ public final class BuildQueueManager {
 			return false;
 		}
 		// 1.18.2: ServerPlayerEntity#getWorld() returns a ServerWorld on the server.
-		BuildJob job = new BuildJob(playerId, (ServerWorld) player.getWorld(), origin, plan.ops);
-		ACTIVE_JOBS.put(playerId, job);
-		player.sendMessage(Text.of("Build started (" + plan.ops.size() + " ops)."), false);
+		return start(player, jobId, (ServerWorld) player.getWorld(), origin, plan, UndoManager.Kind.BUILD);
+	}
+
+	/**
+	 * Queues a plan produced from an undo journal; it runs like any other build.
+	 */
+	static boolean startRestore(ServerPlayerEntity player, UUID jobId, ServerWorld world, BlockPos origin, CompiledPlan plan, UndoManager.Kind kind) {
+		return start(player, jobId, world, origin, plan, kind);
+	}
+
+	private static boolean start(ServerPlayerEntity player, UUID jobId, ServerWorld world, BlockPos origin, CompiledPlan plan, UndoManager.Kind kind) {
+		if (ACTIVE_JOBS.containsKey(jobId)) {
+			player.sendMessage(Text.of("Error: this build is already placing."), false);
+			return false;
+		}
+		BuildJob job = new BuildJob(jobId, player.getUuid(), world, origin, plan, kind, false);
+		enqueue(job);
+		if (job.prepare()) {
+			player.sendMessage(Text.of("Build started (" + job.ops.length + " ops" + skippedSuffix(job.skipped) + ")."), false);
+		} else {
+			player.sendMessage(Text.of("Build queued: loading " + job.chunks.pendingCount() + " of " + job.chunks.chunkCount() + " chunks first."), false);
+		}
 		return true;
 	}
 
-	public static boolean startInstantBuild(ServerPlayerEntity player, Selection selection, GumloopPayload.Response plan) {
-		if (player == null || selection == null || plan == null || plan.ops == null) {
+	private static void enqueue(BuildJob job) {
+		ACTIVE_JOBS.put(job.jobId, job);
+		RUN_QUEUE.addLast(job);
+		BuildJobManager.advance(job.jobId, BuildJobManager.State.PLACING);
+	}
+
+	/**
+	 * Starts accepting the tiles of a large build job, numbered bottom layer first with {@code perLayer}
+	 * tiles to a layer. The job stays in progress until {@link #closeTiles} has been called and the last
+	 * tile has been placed.
+	 */
+	public static void openTiles(UUID jobId, int count, int perLayer) {
+		TileStream stream = new TileStream(count, perLayer);
+		TILE_STREAMS.put(jobId, stream);
+		// If the job ends between tiles, nothing else would close the stream.
+		BuildJobManager.token(jobId).onCancel(() -> TILE_STREAMS.remove(jobId, stream));
+	}
+
+	/**
+	 * Places one tile of a large build job, or queues it. Tiles are placed one at a time, and a tile waits
+	 * until every tile in the layers below it has been placed or has failed, so nothing is built over air.
+	 * All tiles of a build become a single undo step. Ignored once the stream is gone (the job ended).
+	 */
+	public static void startTile(ServerPlayerEntity player, UUID jobId, ServerWorld world, BlockPos origin, CompiledPlan plan, int index) {
+		TileStream stream = TILE_STREAMS.get(jobId);
+		if (stream == null) {
+			return;
+		}
+		stream.pending.put(index, new PendingTile(world, origin, plan, index));
+		if (!ACTIVE_JOBS.containsKey(jobId)) {
+			startNextTile(jobId, player.getUuid(), stream);
+		}
+	}
+
+	/**
+	 * A tile of a large build job failed to draft: the tiles above it no longer wait for it.
+	 */
+	public static void skipTile(ServerPlayerEntity player, UUID jobId, int index) {
+		TileStream stream = TILE_STREAMS.get(jobId);
+		if (stream == null) {
+			return;
+		}
+		stream.resolve(index);
+		if (!ACTIVE_JOBS.containsKey(jobId)) {
+			startNextTile(jobId, player.getUuid(), stream);
+		}
+	}
+
+	/**
+	 * No more tiles are coming for a large build job; ends the job once nothing is left to place.
+	 */
+	public static void closeTiles(ServerPlayerEntity player, UUID jobId) {
+		TileStream stream = TILE_STREAMS.get(jobId);
+		if (stream == null) {
+			return;
+		}
+		stream.open = false;
+		if (ACTIVE_JOBS.containsKey(jobId)) {
+			return;
+		}
+		if (!startNextTile(jobId, player.getUuid(), stream)) {
+			TILE_STREAMS.remove(jobId);
+			BuildJobManager.finish(jobId);
+		}
+	}
+
+	/**
+	 * Starts the lowest pending tile if the layers below it are done. Returns false if none could start.
+	 */
+	private static boolean startNextTile(UUID jobId, UUID playerId, TileStream stream) {
+		PendingTile tile = stream.nextReady();
+		if (tile == null) {
+			return false;
+		}
+		BuildJob job = new BuildJob(jobId, playerId, tile.world, tile.origin, tile.plan, UndoManager.Kind.BUILD, false);
+		job.tileIndex = tile.index;
+		job.label = "Tile " + (tile.index + 1) + "/" + stream.count;
+		if (job.requestId != null) {
+			job.requestId += "-t" + tile.index;
+		}
+		enqueue(job);
+		job.prepare();
+		return true;
+	}
+
+	/**
+	 * Moves a large build on to its next tile. Returns true if the job must stay in progress.
+	 */
+	private static boolean continueTiles(BuildJob job) {
+		TileStream stream = TILE_STREAMS.get(job.jobId);
+		if (stream == null) {
+			return false;
+		}
+		if (job.player == null) {
+			TILE_STREAMS.remove(job.jobId);
+			return false;
+		}
+		stream.resolve(job.tileIndex);
+		if (startNextTile(job.jobId, job.playerId, stream) || stream.open) {
+			return true;
+		}
+		TILE_STREAMS.remove(job.jobId);
+		job.player.sendMessage(Text.of("Large build complete."), false);
+		return false;
+	}
+
+	/**
+	 * True while the job is queued or placing, including while it still waits for its chunks.
+	 */
+	public static boolean hasJob(UUID jobId) {
+		return ACTIVE_JOBS.containsKey(jobId);
+	}
+
+	/**
+	 * Picks up the jobs checkpointed by the previous run of this world. Call once the server has started.
+	 * A resumed job waits for its owner to come back online, then carries on where it stopped. While it
+	 * waits it keeps its region claim but not its chunk tickets, and it is dropped if the owner has not
+	 * returned within {@link BuildCheckpoints#RESUME_TIMEOUT_MS}.
+	 */
+	public static void resumeCheckpoints(MinecraftServer server) {
+		BuildCheckpoints.open(server);
+		for (BuildCheckpoints.Saved saved : BuildCheckpoints.load()) {
+			ServerWorld world = findWorld(server, saved.worldKey);
+			if (world == null || ACTIVE_JOBS.containsKey(saved.jobId)) {
+				TesseractMod.LOGGER.warn("Dropping build checkpoint {} for {}: world {} not loaded or job already running.", saved.jobId, saved.playerId, saved.worldKey);
+				BuildCheckpoints.end(saved.jobId);
+				continue;
+			}
+			long[] remaining = Arrays.copyOfRange(saved.ops, saved.index, saved.ops.length);
+			CompiledPlan plan = CompiledPlan.ofStates(saved.palette, remaining);
+			BuildJobManager.resume(saved.jobId, saved.playerId);
+			if (BuildJobManager.claimPlan(saved.jobId, world, saved.origin, plan) != null) {
+				TesseractMod.LOGGER.warn("Dropping build checkpoint {} for {}: its region overlaps another resumed build.", saved.jobId, saved.playerId);
+				BuildJobManager.discard(saved.jobId);
+				BuildCheckpoints.end(saved.jobId);
+				continue;
+			}
+			BuildJob job = new BuildJob(saved.jobId, saved.playerId, world, saved.origin, plan, saved.kind, true);
+			enqueue(job);
+			TesseractMod.LOGGER.info("Resumed build for {} in {} at op {} ({} ops left, {} chunks).", saved.playerId, saved.worldKey, saved.index, remaining.length, job.chunks.chunkCount());
+		}
+	}
+
+	/**
+	 * Writes a last checkpoint for every running job and drops them from memory; the files stay so the
+	 * next start resumes them. Call while the server stops.
+	 */
+	public static void suspendAll() {
+		checkpointProgress();
+		BuildCheckpoints.close();
+		for (BuildJob job : RUN_QUEUE) {
+			job.placer.flush();
+			job.chunks.release();
+			ACTIVE_JOBS.remove(job.jobId, job);
+			if (job.journal != null) {
+				job.journal.discard();
+			}
+		}
+		RUN_QUEUE.clear();
+		TILE_STREAMS.clear();
+	}
+
+	private static ServerWorld findWorld(MinecraftServer server, String worldKey) {
+		for (ServerWorld world : server.getWorlds()) {
+			if (world.getRegistryKey().getValue().toString().equals(worldKey)) {
+				return world;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Hands the current index of every running job to the checkpoint writer as one batch.
+	 */
+	private static void checkpointProgress() {
+		int count = RUN_QUEUE.size();
+		UUID[] jobIds = new UUID[count];
+		int[] indexes = new int[count];
+		int[] placed = new int[count];
+		int i = 0;
+		for (BuildJob job : RUN_QUEUE) {
+			jobIds[i] = job.jobId;
+			indexes[i] = job.index;
+			placed[i] = job.placed;
+			i++;
+		}
+		BuildCheckpoints.progress(jobIds, indexes, placed);
+		lastCheckpointAt = System.currentTimeMillis();
+	}
+
+	public static boolean startInstantBuild(ServerPlayerEntity player, UUID jobId, Selection selection, CompiledPlan plan) {
+		if (player == null || selection == null || plan == null) {
 			return false;
 		}
 		BlockPos origin = selection.getMin();
@@ -56,111 +268,378 @@ public final class BuildQueueManager {
 			return false;
 		}
 		ServerWorld world = (ServerWorld) player.getWorld();
-		int placed = 0;
-		for (int i = 0; i < plan.ops.size(); i++) {
-			GumloopPayload.BlockOp op = plan.ops.get(i);
-			BlockPos pos = origin.add(op.x, op.y, op.z);
-			if (!world.isChunkLoaded(pos)) {
-				player.sendMessage(Text.of("Error: build halted, chunk not loaded near " + pos.getX() + " " + pos.getY() + " " + pos.getZ()), false);
-				return false;
-			}
-			BlockState state = toBlockState(op.block);
-			if (state == null) {
-				player.sendMessage(Text.of("Error: unknown block id " + op.block), false);
-				return false;
+		long[] sorted = plan.opsBySection(origin);
+		if (!ChunkPreloader.forOps(world, origin, sorted).isReady()) {
+			// Part of the footprint is not loaded: let a progressive job load it rather than failing midway.
+			return start(player, jobId, world, origin, plan, UndoManager.Kind.BUILD);
+		}
+		SectionBatchPlacer placer = new SectionBatchPlacer(world);
+		PlacementDiff diff = PlacementDiff.of(world, origin, plan, sorted);
+		long[] ops = diff.getOps();
+		UndoJournal journal = UndoJournal.create(world, ops.length);
+		placer.setJournal(journal);
+		BlockPos.Mutable pos = new BlockPos.Mutable();
+		try {
+			for (long op : ops) {
+				pos.set(origin.getX() + CompiledPlan.unpackX(op), origin.getY() + CompiledPlan.unpackY(op), origin.getZ() + CompiledPlan.unpackZ(op));
+				if (!placer.place(pos, plan.state(op))) {
+					player.sendMessage(Text.of("Error: build halted, chunk not loaded near " + pos.getX() + " " + pos.getY() + " " + pos.getZ()), false);
+					return false;
+				}
 			}
-			world.setBlockState(pos, state, Block.NOTIFY_ALL);
-			placed++;
+		} finally {
+			placer.flush();
+			placer.endTick();
+			logThroughput(player.getUuid(), placer, diff.getSkipped());
+			UndoManager.recordFinished(player.getUuid(), jobId, journal, UndoManager.Kind.BUILD);
 		}
-		player.sendMessage(Text.of("Build complete: " + placed + " blocks."), false);
+		player.sendMessage(Text.of("Build complete: " + placer.getPlaced() + " blocks" + skippedSuffix(diff.getSkipped()) + "."), false);
 		return true;
 	}
 
+	/**
+	 * Shares this tick's placement budget (see {@link BuildScheduler}) across all running jobs in
+	 * round-robin slices of {@link #SLICE_OPS} ops. A job cut off by the deadline keeps its place in the
+	 * rotation, so the next tick starts with whoever is next in line.
+	 */
 	public static void tick(MinecraftServer server) {
-		for (Map.Entry<UUID, BuildJob> entry : ACTIVE_JOBS.entrySet()) {
-			BuildJob job = entry.getValue();
+		if (RUN_QUEUE.isEmpty()) {
+			return;
+		}
+		long tickStart = System.nanoTime();
+		int runnable = 0;
+		for (BuildJob job : RUN_QUEUE) {
+			job.beginTick(server);
+			if (job.isRunnable()) {
+				runnable++;
+			}
+		}
+		long budget = runnable > 0 ? BuildScheduler.budgetNanos(server) : 0L;
+		long deadline = System.nanoTime() + budget;
+		int slices = budget > 0 ? RUN_QUEUE.size() : 0;
+		while (runnable > 0 && (slices > 0 || (budget > 0 && System.nanoTime() < deadline))) {
+			BuildJob job = RUN_QUEUE.pollFirst();
 			if (job == null) {
-				ACTIVE_JOBS.remove(entry.getKey());
-				continue;
+				break;
+			}
+			if (job.isRunnable()) {
+				long stepStart = System.nanoTime();
+				job.step(SLICE_OPS);
+				job.tickNanos += System.nanoTime() - stepStart;
+				if (job.isFinished()) {
+					runnable--;
+				}
+			}
+			if (job.isFinished()) {
+				finishJob(job);
+			} else {
+				RUN_QUEUE.addLast(job);
+			}
+			slices--;
+		}
+		List<BuildJob> ended = null;
+		Iterator<BuildJob> it = RUN_QUEUE.iterator();
+		while (it.hasNext()) {
+			BuildJob job = it.next();
+			if (job.isFinished()) {
+				// Jobs that were cancelled, whose player left, or whose chunks never loaded, while placement was paused.
+				it.remove();
+				if (ended == null) {
+					ended = new ArrayList<>();
+				}
+				ended.add(job);
+			} else {
+				job.endTick();
+			}
+		}
+		if (ended != null) {
+			// Outside the iteration: finishing a tile may queue the next one.
+			for (BuildJob job : ended) {
+				finishJob(job);
 			}
-			boolean done = job.tick(server);
-			if (done) {
-				ACTIVE_JOBS.remove(entry.getKey());
-				BuildJobManager.finish(entry.getKey());
+		}
+		if (!RUN_QUEUE.isEmpty() && System.currentTimeMillis() - lastCheckpointAt >= BuildCheckpoints.INTERVAL_MS) {
+			checkpointProgress();
+		}
+		Metrics.PLACEMENT_TICK.recordSince(tickStart);
+	}
+
+	private static void finishJob(BuildJob job) {
+		job.endTick();
+		job.chunks.release();
+		ACTIVE_JOBS.remove(job.jobId, job);
+		BuildCheckpoints.end(job.jobId);
+		UndoManager.recordFinished(job.playerId, job.jobId, job.journal, job.kind);
+		Metrics.BLOCKS_PLACED.add(job.placed);
+		if (job.cancelled) {
+			TILE_STREAMS.remove(job.jobId);
+			if (job.player != null && job.placed > 0) {
+				job.player.sendMessage(Text.of("Placement stopped after " + job.placed + " blocks; /tesseract undo reverts them."), false);
 			}
+		} else if (continueTiles(job)) {
+			return;
 		}
+		BuildProgress.stop(job.jobId);
+		BuildJobManager.finish(job.jobId);
+	}
+
+	private static String skippedSuffix(int skipped) {
+		return skipped > 0 ? ", " + skipped + " already in place" : "";
+	}
+
+	private static void logThroughput(UUID playerId, SectionBatchPlacer placer, int skipped) {
+		long nanos = Math.max(1L, placer.getPlaceNanos());
+		Metrics.BLOCKS_PER_SECOND.record(placer.getPlaced() * 1_000_000_000L / nanos);
+		TesseractMod.LOGGER.info("Build for {} ({}) -> placed {} blocks ({} skipped as unchanged) in {}ms across {} section flushes ({} blocks/ms; {} ticks, {}ms mean, {}ms max per tick)",
+			playerId,
+			placer.getMode(),
+			placer.getPlaced(),
+			skipped,
+			String.format("%.2f", nanos / 1_000_000.0),
+			placer.getSectionsFlushed(),
+			String.format("%.1f", placer.getPlaced() / (nanos / 1_000_000.0)),
+			placer.getTicks(),
+			String.format("%.2f", nanos / 1_000_000.0 / Math.max(1, placer.getTicks())),
+			String.format("%.2f", placer.getMaxTickNanos() / 1_000_000.0));
 	}
 
 	private static final class BuildJob {
+		private final UUID jobId;
 		private final UUID playerId;
 		private final ServerWorld world;
 		private final BlockPos origin;
-		private final List<GumloopPayload.BlockOp> ops;
+		private final CompiledPlan plan;
+		private final ChunkPreloader chunks;
+		private final SectionBatchPlacer placer;
+		private final UndoManager.Kind kind;
+		private final boolean resumed;
+		private final CancelToken token;
+		private final BlockPos.Mutable cursor = new BlockPos.Mutable();
+		private final long createdAt = System.currentTimeMillis();
+		private String requestId;
+		private ServerPlayerEntity player;
+		private boolean finished;
+		private boolean cancelled;
 		private int index;
 		private int placed;
-		private long lastProgressAt;
+		// Set by prepare() once the footprint is loaded; null while the job waits for chunks.
+		private long[] sortedOps;
+		private long[] ops;
+		private int skipped;
+		private UndoJournal journal;
+		// Set for the tiles of a large build: the tile's index and the name used in messages.
+		private int tileIndex = -1;
+		private String label;
+		// This tick's work, for the JFR placement event.
+		private int placedAtTickStart;
+		private long tickNanos;
+		private boolean chunkMiss;
 
-		private BuildJob(UUID playerId, ServerWorld world, BlockPos origin, List<GumloopPayload.BlockOp> ops) {
+		private BuildJob(UUID jobId, UUID playerId, ServerWorld world, BlockPos origin, CompiledPlan plan, UndoManager.Kind kind, boolean resumed) {
+			this.jobId = jobId;
 			this.playerId = playerId;
 			this.world = world;
 			this.origin = origin;
-			this.ops = ops;
+			this.plan = plan;
+			this.sortedOps = plan.opsBySection(origin);
+			this.chunks = ChunkPreloader.forOps(world, origin, sortedOps);
+			this.chunks.acquire();
+			this.placer = new SectionBatchPlacer(world);
+			this.kind = kind;
+			this.resumed = resumed;
+			this.token = BuildJobManager.token(jobId);
+			this.requestId = BuildJobManager.requestId(jobId);
 			this.index = 0;
 			this.placed = 0;
-			this.lastProgressAt = System.currentTimeMillis();
 		}
 
-		private boolean tick(MinecraftServer server) {
-			if (world == null || server == null) {
+		/**
+		 * Once every chunk in the footprint is loaded, diffs the plan against them, opens the journal and
+		 * starts the checkpoint. Returns false while chunks are still loading.
+		 */
+		private boolean prepare() {
+			if (ops != null) {
 				return true;
 			}
-			ServerPlayerEntity player = server.getPlayerManager().getPlayer(playerId);
+			if (!chunks.isReady()) {
+				return false;
+			}
+			// Blocks that already match (re-pastes, resumed builds, matching terrain) are never written.
+			PlacementDiff diff = PlacementDiff.of(world, origin, plan, sortedOps);
+			sortedOps = null;
+			ops = diff.getOps();
+			skipped = diff.getSkipped();
+			journal = UndoJournal.create(world, ops.length);
+			placer.setJournal(journal);
+			BuildCheckpoints.begin(jobId, playerId, world.getRegistryKey().getValue().toString(), origin, kind, plan, ops);
+			return true;
+		}
+
+		private void beginTick(MinecraftServer server) {
+			player = world == null || server == null ? null : server.getPlayerManager().getPlayer(playerId);
+			placedAtTickStart = placed;
+			if (!finished && token.isCancelled()) {
+				// Cancelled, or the player left: stop here. What was placed stays in the journal.
+				cancelled = true;
+				finished = true;
+				return;
+			}
+			if (finished) {
+				return;
+			}
+			if (player == null && !resumed) {
+				finished = true;
+				return;
+			}
 			if (player == null) {
-				return true;
+				// A job resumed from a checkpoint waits for its owner, for a while, without keeping its chunks loaded.
+				chunks.release();
+				if (System.currentTimeMillis() - createdAt > BuildCheckpoints.RESUME_TIMEOUT_MS) {
+					TesseractMod.LOGGER.warn("Dropping resumed build {} for {}: owner not back within {} minutes.", jobId, playerId, BuildCheckpoints.RESUME_TIMEOUT_MS / 60_000L);
+					finished = true;
+				}
+				return;
 			}
-			int opsThisTick = 0;
-			while (opsThisTick < BLOCKS_PER_TICK && index < ops.size()) {
-				GumloopPayload.BlockOp op = ops.get(index);
-				BlockPos pos = origin.add(op.x, op.y, op.z);
-				if (!world.isChunkLoaded(pos)) {
-					player.sendMessage(Text.of("Error: build halted, chunk not loaded near " + pos.getX() + " " + pos.getY() + " " + pos.getZ()), false);
-					return true;
+			chunks.acquire();
+			if (ops != null) {
+				return;
+			}
+			if (prepare()) {
+				if (player != null && label == null) {
+					player.sendMessage(Text.of("Chunks loaded, build started (" + ops.length + " ops" + skippedSuffix(skipped) + ")."), false);
+				}
+			} else if (chunks.hasTimedOut()) {
+				if (player != null) {
+					player.sendMessage(Text.of("Error: build cancelled, " + chunks.pendingCount() + " chunks did not load in time."), false);
 				}
-				BlockState state = toBlockState(op.block);
-				if (state == null) {
-					player.sendMessage(Text.of("Error: unknown block id " + op.block), false);
-					return true;
+				TesseractMod.LOGGER.warn("Build for {} gave up waiting for {} chunks.", playerId, chunks.pendingCount());
+				finished = true;
+			}
+		}
+
+		private boolean isFinished() {
+			return finished;
+		}
+
+		private boolean isRunnable() {
+			return !finished && player != null && ops != null && chunks.isReady();
+		}
+
+		private void step(int maxOps) {
+			int end = Math.min(ops.length, index + maxOps);
+			while (index < end) {
+				long op = ops[index];
+				BlockPos pos = cursor.set(origin.getX() + CompiledPlan.unpackX(op), origin.getY() + CompiledPlan.unpackY(op), origin.getZ() + CompiledPlan.unpackZ(op));
+				if (!placer.place(pos, plan.state(op))) {
+					chunkMiss = true;
+					player.sendMessage(Text.of("Error: build halted, chunk not loaded near " + pos.getX() + " " + pos.getY() + " " + pos.getZ()), false);
+					finished = true;
+					return;
 				}
-				world.setBlockState(pos, state, Block.NOTIFY_ALL);
 				index++;
 				placed++;
-				opsThisTick++;
 			}
-			long now = System.currentTimeMillis();
-			if (now - lastProgressAt >= PROGRESS_INTERVAL_MS) {
-				player.sendMessage(Text.of("Progress: " + placed + "/" + ops.size() + " blocks"), false);
-				lastProgressAt = now;
+			if (index >= ops.length) {
+				player.sendMessage(Text.of((label == null ? "Build" : label) + " complete: " + placed + " blocks" + skippedSuffix(skipped) + "."), false);
+				// Close the last tick first so the figures include its fixup pass.
+				placer.flush();
+				placer.endTick();
+				logThroughput(playerId, placer, skipped);
+				finished = true;
 			}
-			if (index >= ops.size()) {
-				player.sendMessage(Text.of("Build complete: " + placed + " blocks."), false);
-				return true;
+		}
+
+		private void endTick() {
+			// One delta packet per touched section per tick.
+			placer.flush();
+			placer.endTick();
+			trace();
+			if (finished || player == null) {
+				return;
 			}
-			return false;
+			// Only records the numbers; BuildProgress decides when the bar is actually resent.
+			if (ops == null) {
+				BuildProgress.showLoading(player, jobId, chunks.chunkCount() - chunks.pendingCount(), chunks.chunkCount());
+			} else {
+				BuildProgress.showPlacing(player, jobId, label == null ? "Building" : label, placed, ops.length);
+			}
+		}
+
+		/**
+		 * Emits this tick's placement event when a recording wants it, and starts the next tick's figures.
+		 */
+		private void trace() {
+			TesseractEvents.Placement event = new TesseractEvents.Placement();
+			if (event.shouldCommit()) {
+				event.requestId = requestId;
+				event.player = playerId.toString();
+				event.opsPlaced = placed - placedAtTickStart;
+				event.placeNanos = tickNanos;
+				event.chunkMisses = ops == null ? chunks.pendingCount() : chunkMiss ? 1 : 0;
+				event.commit();
+			}
+			placedAtTickStart = placed;
+			tickNanos = 0L;
+			chunkMiss = false;
 		}
 	}
 
-	private static BlockState toBlockState(String blockId) {
-		if (blockId == null || blockId.isBlank()) {
-			return null;
+	private static final class TileStream {
+		private final int count;
+		private final int perLayer;
+		// Tiles per layer not yet placed or failed.
+		private final int[] unresolved;
+		// Drafted tiles waiting to be placed, by index.
+		private final TreeMap<Integer, PendingTile> pending = new TreeMap<>();
+		private boolean open = true;
+
+		private TileStream(int count, int perLayer) {
+			this.count = count;
+			this.perLayer = Math.max(1, perLayer);
+			this.unresolved = new int[(count + this.perLayer - 1) / this.perLayer];
+			for (int layer = 0; layer < unresolved.length; layer++) {
+				unresolved[layer] = Math.min(this.perLayer, count - layer * this.perLayer);
+			}
+		}
+
+		private void resolve(int index) {
+			if (index >= 0 && index < count) {
+				unresolved[index / perLayer]--;
+			}
 		}
-		Identifier identifier = Identifier.tryParse(blockId);
-		if (identifier == null) {
-			return null;
+
+		/**
+		 * Removes and returns the lowest pending tile if every layer below it is done, else null. Once the
+		 * stream is closed no more tiles are coming, so the rest are placed in order regardless.
+		 */
+		private PendingTile nextReady() {
+			Map.Entry<Integer, PendingTile> first = pending.firstEntry();
+			if (first == null) {
+				return null;
+			}
+			if (open) {
+				int layer = first.getKey() / perLayer;
+				for (int below = 0; below < layer; below++) {
+					if (unresolved[below] > 0) {
+						return null;
+					}
+				}
+			}
+			return pending.pollFirstEntry().getValue();
 		}
-		Block block = Registry.BLOCK.get(identifier);
-		if (block == Blocks.AIR) {
-			return null;
+	}
+
+	private static final class PendingTile {
+		private final ServerWorld world;
+		private final BlockPos origin;
+		private final CompiledPlan plan;
+		private final int index;
+
+		private PendingTile(ServerWorld world, BlockPos origin, CompiledPlan plan, int index) {
+			this.world = world;
+			this.origin = origin;
+			this.plan = plan;
+			this.index = index;
 		}
-		return block.getDefaultState();
 	}
 }
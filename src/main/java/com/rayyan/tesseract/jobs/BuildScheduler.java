@@ -0,0 +1,42 @@
+package com.rayyan.tesseract.jobs;
+
+import com.rayyan.tesseract.TesseractMod;
+import net.minecraft.server.MinecraftServer;
+
+/**
+ * Decides how many nanoseconds of placement work all build jobs may share this tick.
+ *
+ * The budget comes from the server's smoothed tick time (MSPT): an idle server hands out a large slice so
+ * builds finish quickly, the slice shrinks as MSPT climbs toward the soft target, and placement pauses
+ * entirely once MSPT gets close to the 50 ms tick length. Our own work feeds back into MSPT, so the
+ * budget settles where the server can afford it.
+ */
+final class BuildScheduler {
+	private static final double SOFT_TARGET_MSPT = 40.0;
+	private static final double PAUSE_MSPT = 45.0;
+	private static final double HEADROOM_SHARE = 0.5;
+	private static final long MIN_BUDGET_NANOS = 1_000_000L;
+	private static final long MAX_BUDGET_NANOS = 20_000_000L;
+
+	private static boolean paused;
+
+	private BuildScheduler() {}
+
+	static long budgetNanos(MinecraftServer server) {
+		double mspt = server.getTickTime();
+		if (mspt >= PAUSE_MSPT) {
+			if (!paused) {
+				paused = true;
+				TesseractMod.LOGGER.info("Build scheduler paused (MSPT {}).", String.format("%.1f", mspt));
+			}
+			return 0L;
+		}
+		if (paused) {
+			paused = false;
+			TesseractMod.LOGGER.info("Build scheduler resumed (MSPT {}).", String.format("%.1f", mspt));
+		}
+		// Spend a share of the headroom below the soft target; past the target only trickle along.
+		long budget = (long) ((SOFT_TARGET_MSPT - mspt) * HEADROOM_SHARE * 1_000_000L);
+		return Math.max(MIN_BUDGET_NANOS, Math.min(MAX_BUDGET_NANOS, budget));
+	}
+}
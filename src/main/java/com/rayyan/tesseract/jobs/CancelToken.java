@@ -0,0 +1,85 @@
+package com.rayyan.tesseract.jobs;
+
+import com.rayyan.tesseract.TesseractMod;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Tells every stage of one build job that the job is over.
+ *
+ * {@link BuildJobManager} hands one to each job and cancels it when the job ends, however it ends: cancelled
+ * by the player, failed, timed out or done. Work that only runs now and then checks {@link #isCancelled()}.
+ * Work that waits, like an HTTP exchange, a Gumloop run being polled or a response body being read,
+ * registers with {@link #onCancel} so it is torn down at once instead of running out its own timeout.
+ * Work shared by several jobs gets a token of its own, which its owner cancels once no job needs it.
+ */
+public final class CancelToken {
+	/** A token that is already cancelled, for work that has no live job behind it. */
+	static final CancelToken CANCELLED = cancelled();
+
+	private volatile boolean cancelled;
+	// Guarded by this; null once cancelled.
+	private List<Runnable> callbacks = new ArrayList<>();
+
+	public CancelToken() {}
+
+	private static CancelToken cancelled() {
+		CancelToken token = new CancelToken();
+		token.cancel();
+		return token;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Runs {@code callback} when the token is cancelled, or right away if it already is. Callbacks run on
+	 * whichever thread cancels, so they must be quick and must not block.
+	 */
+	public void onCancel(Runnable callback) {
+		synchronized (this) {
+			if (callbacks != null) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		run(callback);
+	}
+
+	/**
+	 * Cancels {@code future} along with the token, and returns it.
+	 */
+	public <T> CompletableFuture<T> bind(CompletableFuture<T> future) {
+		onCancel(() -> future.cancel(true));
+		return future;
+	}
+
+	/**
+	 * Cancels the token and runs its callbacks on this thread. Only the token's owner should call this.
+	 */
+	public void cancel() {
+		List<Runnable> pending;
+		synchronized (this) {
+			if (callbacks == null) {
+				return;
+			}
+			pending = callbacks;
+			callbacks = null;
+			cancelled = true;
+		}
+		for (Runnable callback : pending) {
+			run(callback);
+		}
+	}
+
+	private static void run(Runnable callback) {
+		try {
+			callback.run();
+		} catch (RuntimeException ex) {
+			TesseractMod.LOGGER.error("Cancel callback failed", ex);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.rayyan.tesseract.jobs;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.server.world.ChunkTicketType;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+
+import java.util.Comparator;
+
+/**
+ * Keeps a build's chunks loaded from before its first op until it ends.
+ *
+ * The footprint is every chunk an op lands in. {@link #acquire()} puts a ticket on each one, with a radius
+ * of one so neighbor and shape updates at the edges never force a synchronous load, and the chunk
+ * manager loads them in the background. {@link #isReady()} only checks whether the chunks have arrived,
+ * so a job can poll it every tick until placement may start. {@link #release()} drops the tickets when the
+ * job ends, or while it has nobody to place for; acquiring again waits for the chunks afresh.
+ */
+final class ChunkPreloader {
+	private static final ChunkTicketType<ChunkPos> TICKET = ChunkTicketType.create("tesseract_build", Comparator.comparingLong(ChunkPos::toLong));
+	private static final int TICKET_RADIUS = 1;
+	private static final long TIMEOUT_MS = 30_000L;
+
+	private final ServerWorld world;
+	private final long[] chunks;
+	private final LongSet pending;
+	private boolean held;
+	private long requestedAt;
+
+	private ChunkPreloader(ServerWorld world, long[] chunks) {
+		this.world = world;
+		this.chunks = chunks;
+		this.pending = new LongOpenHashSet(chunks);
+	}
+
+	static ChunkPreloader forOps(ServerWorld world, BlockPos origin, long[] ops) {
+		LongSet footprint = new LongOpenHashSet();
+		for (long op : ops) {
+			footprint.add(ChunkPos.toLong(
+				ChunkSectionPos.getSectionCoord(origin.getX() + CompiledPlan.unpackX(op)),
+				ChunkSectionPos.getSectionCoord(origin.getZ() + CompiledPlan.unpackZ(op))
+			));
+		}
+		return new ChunkPreloader(world, footprint.toLongArray());
+	}
+
+	/**
+	 * Adds a ticket to every chunk in the footprint. Loading happens on the chunk manager's schedule.
+	 */
+	void acquire() {
+		if (held) {
+			return;
+		}
+		for (long chunk : chunks) {
+			world.getChunkManager().addTicket(TICKET, new ChunkPos(chunk), TICKET_RADIUS, new ChunkPos(chunk));
+		}
+		held = true;
+		requestedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * True once every footprint chunk is loaded. Never loads anything itself.
+	 */
+	boolean isReady() {
+		if (pending.isEmpty()) {
+			return true;
+		}
+		pending.removeIf(chunk -> world.getChunkManager().getWorldChunk(ChunkPos.getPackedX(chunk), ChunkPos.getPackedZ(chunk)) != null);
+		return pending.isEmpty();
+	}
+
+	boolean hasTimedOut() {
+		return held && System.currentTimeMillis() - requestedAt > TIMEOUT_MS;
+	}
+
+	int chunkCount() {
+		return chunks.length;
+	}
+
+	int pendingCount() {
+		return pending.size();
+	}
+
+	void release() {
+		if (!held) {
+			return;
+		}
+		for (long chunk : chunks) {
+			world.getChunkManager().removeTicket(TICKET, new ChunkPos(chunk), TICKET_RADIUS, new ChunkPos(chunk));
+			// Without the ticket the chunk may unload; check it again once reacquired.
+			pending.add(chunk);
+		}
+		held = false;
+	}
+}
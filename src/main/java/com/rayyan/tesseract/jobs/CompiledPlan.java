@@ -0,0 +1,230 @@
+package com.rayyan.tesseract.jobs;
+
+import com.rayyan.tesseract.gumloop.GumloopPayload;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.registry.Registry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A validated plan in the form the placement loop runs from.
+ *
+ * Block ids are resolved once into a small {@link BlockState} palette, and every op is packed into a single
+ * long: 16 bits each for the plan-relative x/y/z and 16 bits of palette index. Placement then needs no
+ * string parsing, registry lookups or per-op objects. A compiled plan is immutable and independent of
+ * where it is built, so one instance can back any number of jobs.
+ */
+public final class CompiledPlan {
+	private static final int COORD_MASK = 0xFFFF;
+	public static final int MAX_COORD = COORD_MASK;
+	public static final int MAX_PALETTE = COORD_MASK + 1;
+
+	private final BlockState[] palette;
+	private final String[] paletteIds;
+	private final long[] ops;
+	private final GumloopPayload.Meta meta;
+
+	private CompiledPlan(BlockState[] palette, String[] paletteIds, long[] ops, GumloopPayload.Meta meta) {
+		this.palette = palette;
+		this.paletteIds = paletteIds;
+		this.ops = ops;
+		this.meta = meta;
+	}
+
+	public static long pack(int x, int y, int z, int paletteIndex) {
+		return ((long) (x & COORD_MASK) << 48)
+			| ((long) (y & COORD_MASK) << 32)
+			| ((long) (z & COORD_MASK) << 16)
+			| (paletteIndex & COORD_MASK);
+	}
+
+	public static int unpackX(long op) {
+		return (int) (op >>> 48) & COORD_MASK;
+	}
+
+	public static int unpackY(long op) {
+		return (int) (op >>> 32) & COORD_MASK;
+	}
+
+	public static int unpackZ(long op) {
+		return (int) (op >>> 16) & COORD_MASK;
+	}
+
+	public static int unpackPaletteIndex(long op) {
+		return (int) op & COORD_MASK;
+	}
+
+	public int size() {
+		return ops.length;
+	}
+
+	public long op(int index) {
+		return ops[index];
+	}
+
+	public BlockState state(long op) {
+		return palette[unpackPaletteIndex(op)];
+	}
+
+	public String blockId(long op) {
+		return paletteIds[unpackPaletteIndex(op)];
+	}
+
+	public int paletteSize() {
+		return palette.length;
+	}
+
+	public BlockState paletteState(int index) {
+		return palette[index];
+	}
+
+	public String paletteId(int index) {
+		return paletteIds[index];
+	}
+
+	public GumloopPayload.Meta getMeta() {
+		return meta;
+	}
+
+	public List<String> getWarnings() {
+		return meta == null || meta.warnings == null ? List.of() : meta.warnings;
+	}
+
+	/**
+	 * The largest relative x, y and z any op touches; with the origin, the far corner of the plan's bounding
+	 * box. All zero for an empty plan.
+	 */
+	BlockPos maxCorner() {
+		int maxX = 0;
+		int maxY = 0;
+		int maxZ = 0;
+		for (long op : ops) {
+			maxX = Math.max(maxX, unpackX(op));
+			maxY = Math.max(maxY, unpackY(op));
+			maxZ = Math.max(maxZ, unpackZ(op));
+		}
+		return new BlockPos(maxX, maxY, maxZ);
+	}
+
+	/**
+	 * Returns the ops in placement order when built at {@code origin}: section by section, with blocks that
+	 * need support after everything that could support them (see {@link PlacementOrder}).
+	 */
+	long[] opsBySection(BlockPos origin) {
+		return PlacementOrder.sort(this, origin);
+	}
+
+	/**
+	 * Rebuilds a plan from its stored palette ids and packed ops, e.g. out of a cache. Returns null if an id
+	 * no longer resolves or an op points outside the palette.
+	 */
+	public static CompiledPlan restore(String[] paletteIds, long[] ops, GumloopPayload.Meta meta) {
+		BlockState[] palette = new BlockState[paletteIds.length];
+		for (int i = 0; i < paletteIds.length; i++) {
+			palette[i] = resolveBlockState(paletteIds[i]);
+			if (palette[i] == null) {
+				return null;
+			}
+		}
+		for (long op : ops) {
+			if (unpackPaletteIndex(op) >= palette.length) {
+				return null;
+			}
+		}
+		return new CompiledPlan(palette, paletteIds.clone(), ops.clone(), meta);
+	}
+
+	/**
+	 * Wraps states captured from the world (e.g. by an undo journal). Unlike plans decoded from ids, the
+	 * palette may hold air and non-default states.
+	 */
+	static CompiledPlan ofStates(BlockState[] palette, long[] ops) {
+		String[] paletteIds = new String[palette.length];
+		for (int i = 0; i < palette.length; i++) {
+			paletteIds[i] = Registry.BLOCK.getId(palette[i].getBlock()).toString();
+		}
+		return new CompiledPlan(palette, paletteIds, ops, null);
+	}
+
+	/**
+	 * Resolves block ids into BlockStates. Returns null for unknown ids and air.
+	 */
+	static BlockState resolveBlockState(String blockId) {
+		if (blockId == null || blockId.isBlank()) {
+			return null;
+		}
+		Identifier identifier = Identifier.tryParse(blockId);
+		if (identifier == null) {
+			return null;
+		}
+		Block block = Registry.BLOCK.get(identifier);
+		if (block == Blocks.AIR) {
+			return null;
+		}
+		return block.getDefaultState();
+	}
+
+	/**
+	 * Accumulates ops one at a time, interning each distinct block id into the palette on first use.
+	 */
+	public static final class Builder {
+		private final Map<String, Integer> paletteIndex = new HashMap<>();
+		private final List<BlockState> palette = new ArrayList<>();
+		private final List<String> paletteIds = new ArrayList<>();
+		private long[] ops;
+		private int size;
+
+		public Builder(int expectedOps) {
+			this.ops = new long[Math.max(16, expectedOps)];
+		}
+
+		/**
+		 * Adds one op. Returns an error message, or null if the op was accepted.
+		 */
+		public String add(int x, int y, int z, String blockId) {
+			if (x < 0 || x > MAX_COORD || y < 0 || y > MAX_COORD || z < 0 || z > MAX_COORD) {
+				return "Op " + size + " out of bounds (" + x + "," + y + "," + z + ").";
+			}
+			Integer index = paletteIndex.get(blockId);
+			if (index == null) {
+				BlockState state = resolveBlockState(blockId);
+				if (state == null) {
+					return "unknown block id " + blockId;
+				}
+				if (palette.size() >= MAX_PALETTE) {
+					return "Plan uses too many distinct blocks.";
+				}
+				index = palette.size();
+				palette.add(state);
+				paletteIds.add(blockId);
+				paletteIndex.put(blockId, index);
+			}
+			if (size == ops.length) {
+				ops = Arrays.copyOf(ops, ops.length * 2);
+			}
+			ops[size++] = pack(x, y, z, index);
+			return null;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public CompiledPlan build(GumloopPayload.Meta meta) {
+			return new CompiledPlan(
+				palette.toArray(new BlockState[0]),
+				paletteIds.toArray(new String[0]),
+				Arrays.copyOf(ops, size),
+				meta
+			);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.rayyan.tesseract.jobs;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.WorldChunk;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Drops ops whose target block already holds the planned state, before any of them is placed.
+ *
+ * Ops arrive in section order (see {@link CompiledPlan#opsBySection}), so each section is looked up once.
+ * A section that is empty, or whose palette holds none of the plan's states, cannot contain a match and
+ * keeps all its ops without reading a single block; only the rest are compared op by op. Ops in unloaded
+ * chunks are kept so the placer reports them as usual.
+ */
+final class PlacementDiff {
+	private final long[] ops;
+	private final int skipped;
+
+	private PlacementDiff(long[] ops, int skipped) {
+		this.ops = ops;
+		this.skipped = skipped;
+	}
+
+	static PlacementDiff of(ServerWorld world, BlockPos origin, CompiledPlan plan, long[] sortedOps) {
+		Set<BlockState> planStates = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (int i = 0; i < plan.paletteSize(); i++) {
+			planStates.add(plan.paletteState(i));
+		}
+		long[] kept = new long[sortedOps.length];
+		int count = 0;
+		long currentKey = Long.MIN_VALUE;
+		ChunkSection section = null;
+		BlockPos.Mutable pos = new BlockPos.Mutable();
+		for (long op : sortedOps) {
+			pos.set(origin.getX() + CompiledPlan.unpackX(op), origin.getY() + CompiledPlan.unpackY(op), origin.getZ() + CompiledPlan.unpackZ(op));
+			long key = SectionBatchPlacer.sectionKey(pos.getX(), pos.getY(), pos.getZ());
+			if (key != currentKey) {
+				currentKey = key;
+				section = comparableSection(world, pos, planStates);
+			}
+			if (section != null && section.getBlockState(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15) == plan.state(op)) {
+				continue;
+			}
+			kept[count++] = op;
+		}
+		return new PlacementDiff(count == kept.length ? kept : Arrays.copyOf(kept, count), sortedOps.length - count);
+	}
+
+	/**
+	 * Returns the section at {@code pos} if it may already hold one of the plan's states, else null.
+	 */
+	private static ChunkSection comparableSection(ServerWorld world, BlockPos pos, Set<BlockState> planStates) {
+		if (world.isOutOfHeightLimit(pos)) {
+			return null;
+		}
+		WorldChunk chunk = world.getChunkManager().getWorldChunk(
+			ChunkSectionPos.getSectionCoord(pos.getX()),
+			ChunkSectionPos.getSectionCoord(pos.getZ())
+		);
+		if (chunk == null) {
+			return null;
+		}
+		ChunkSection section = chunk.getSection(chunk.getSectionIndex(pos.getY()));
+		if (section == null || section.isEmpty() || !section.getBlockStateContainer().hasAny(planStates::contains)) {
+			return null;
+		}
+		return section;
+	}
+
+	long[] getOps() {
+		return ops;
+	}
+
+	int getSkipped() {
+		return skipped;
+	}
+}
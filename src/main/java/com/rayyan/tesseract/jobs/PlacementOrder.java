@@ -0,0 +1,103 @@
+package com.rayyan.tesseract.jobs;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import net.minecraft.block.AbstractBannerBlock;
+import net.minecraft.block.AbstractPressurePlateBlock;
+import net.minecraft.block.AbstractRailBlock;
+import net.minecraft.block.AbstractRedstoneGateBlock;
+import net.minecraft.block.AbstractSignBlock;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.CarpetBlock;
+import net.minecraft.block.DoorBlock;
+import net.minecraft.block.FallingBlock;
+import net.minecraft.block.LadderBlock;
+import net.minecraft.block.LanternBlock;
+import net.minecraft.block.PlantBlock;
+import net.minecraft.block.RedstoneWireBlock;
+import net.minecraft.block.SnowBlock;
+import net.minecraft.block.TorchBlock;
+import net.minecraft.block.TrapdoorBlock;
+import net.minecraft.block.VineBlock;
+import net.minecraft.block.WallMountedBlock;
+import net.minecraft.util.math.BlockPos;
+
+/**
+ * The order a plan's ops are placed in.
+ *
+ * Ops are placed in two passes. The first holds every block that stands on its own. The second holds
+ * blocks that need a neighbor to hold them up: torches, lanterns, doors, trapdoors, buttons, signs,
+ * rails, plants, falling blocks and the like. By the time any of those is written, all of its possible
+ * supports in the plan are already there, so it is never placed onto air and popped off as an item. Within
+ * a pass, ops go section by section, bottom-up within each chunk column, and inside a section in the
+ * section's own y/z/x storage order.
+ *
+ * The order comes from one packed sort key per op and a stable merge sort, so it is O(n log n), and ops
+ * for the same block keep their plan order.
+ */
+final class PlacementOrder {
+	private static final int SECTION_BITS = 13;
+	private static final int SECTION_MASK = (1 << SECTION_BITS) - 1;
+	private static final int TIER_SHIFT = 12 + 3 * SECTION_BITS;
+
+	private PlacementOrder() {}
+
+	static long[] sort(CompiledPlan plan, BlockPos origin) {
+		boolean[] attached = new boolean[plan.paletteSize()];
+		for (int i = 0; i < attached.length; i++) {
+			attached[i] = needsSupport(plan.paletteState(i));
+		}
+		int originSectionX = origin.getX() >> 4;
+		int originSectionY = origin.getY() >> 4;
+		int originSectionZ = origin.getZ() >> 4;
+		int count = plan.size();
+		long[] keys = new long[count];
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++) {
+			long op = plan.op(i);
+			int x = origin.getX() + CompiledPlan.unpackX(op);
+			int y = origin.getY() + CompiledPlan.unpackY(op);
+			int z = origin.getZ() + CompiledPlan.unpackZ(op);
+			// Section coordinates relative to the origin's section are never negative and fit in 13 bits.
+			long key = (long) (((x >> 4) - originSectionX) & SECTION_MASK) << (12 + 2 * SECTION_BITS)
+				| (long) (((z >> 4) - originSectionZ) & SECTION_MASK) << (12 + SECTION_BITS)
+				| (long) (((y >> 4) - originSectionY) & SECTION_MASK) << 12
+				| (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+			if (attached[CompiledPlan.unpackPaletteIndex(op)]) {
+				key |= 1L << TIER_SHIFT;
+			}
+			keys[i] = key;
+			order[i] = i;
+		}
+		IntArrays.mergeSort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+		long[] sorted = new long[count];
+		for (int i = 0; i < count; i++) {
+			sorted[i] = plan.op(order[i]);
+		}
+		return sorted;
+	}
+
+	/**
+	 * True for blocks that break, or fall, without a neighbor holding them in place.
+	 */
+	static boolean needsSupport(BlockState state) {
+		Block block = state.getBlock();
+		return block instanceof TorchBlock
+			|| block instanceof LanternBlock
+			|| block instanceof DoorBlock
+			|| block instanceof TrapdoorBlock
+			|| block instanceof WallMountedBlock
+			|| block instanceof LadderBlock
+			|| block instanceof AbstractSignBlock
+			|| block instanceof AbstractBannerBlock
+			|| block instanceof AbstractRailBlock
+			|| block instanceof AbstractPressurePlateBlock
+			|| block instanceof AbstractRedstoneGateBlock
+			|| block instanceof RedstoneWireBlock
+			|| block instanceof CarpetBlock
+			|| block instanceof SnowBlock
+			|| block instanceof PlantBlock
+			|| block instanceof VineBlock
+			|| block instanceof FallingBlock;
+	}
+}
@@ -0,0 +1,227 @@
+package com.rayyan.tesseract.jobs;
+
+import java.util.UUID;
+
+/**
+ * The world-space boxes claimed by builds in one world, for fast overlap checks.
+ *
+ * An AVL tree keyed on each box's min x, where every node also keeps the largest max x in its subtree (an
+ * interval tree on x). A query descends only into subtrees whose x range can reach the query box, then
+ * checks y and z on the candidates. Insert and remove are O(log n), and finding an overlap is O(log n)
+ * plus the boxes that share the query's x range. Not thread-safe; {@link BuildJobManager} guards it.
+ */
+final class RegionIndex {
+	private Node root;
+	private int size;
+	private long nextId;
+
+	static final class Region {
+		final UUID owner;
+		final int minX;
+		final int minY;
+		final int minZ;
+		final int maxX;
+		final int maxY;
+		final int maxZ;
+		private final long id;
+
+		private Region(UUID owner, long id, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+			this.owner = owner;
+			this.id = id;
+			this.minX = minX;
+			this.minY = minY;
+			this.minZ = minZ;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			this.maxZ = maxZ;
+		}
+
+		boolean overlaps(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+			return this.minX <= maxX && minX <= this.maxX
+				&& this.minY <= maxY && minY <= this.maxY
+				&& this.minZ <= maxZ && minZ <= this.maxZ;
+		}
+	}
+
+	private static final class Node {
+		private final Region region;
+		private Node left;
+		private Node right;
+		private int height = 1;
+		private int maxX;
+
+		private Node(Region region) {
+			this.region = region;
+			this.maxX = region.maxX;
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Adds the inclusive box [min, max]. Overlaps are not checked here; see {@link #findOverlap}.
+	 */
+	Region add(UUID owner, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		Region region = new Region(owner, nextId++, minX, minY, minZ, maxX, maxY, maxZ);
+		root = insert(root, region);
+		size++;
+		return region;
+	}
+
+	void remove(Region region) {
+		int before = size;
+		root = delete(root, region);
+		if (size == before) {
+			throw new IllegalStateException("Region not in index");
+		}
+	}
+
+	/**
+	 * Returns a region overlapping the inclusive box, or null if there is none.
+	 */
+	Region findOverlap(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		Node node = root;
+		while (node != null && node.maxX >= minX) {
+			if (node.left != null && node.left.maxX >= minX) {
+				Region found = findIn(node.left, minX, minY, minZ, maxX, maxY, maxZ);
+				if (found != null) {
+					return found;
+				}
+			}
+			if (node.region.overlaps(minX, minY, minZ, maxX, maxY, maxZ)) {
+				return node.region;
+			}
+			if (node.region.minX > maxX) {
+				// Everything to the right starts even further along x.
+				return null;
+			}
+			node = node.right;
+		}
+		return null;
+	}
+
+	private static Region findIn(Node node, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		if (node == null || node.maxX < minX) {
+			return null;
+		}
+		Region found = findIn(node.left, minX, minY, minZ, maxX, maxY, maxZ);
+		if (found != null) {
+			return found;
+		}
+		if (node.region.overlaps(minX, minY, minZ, maxX, maxY, maxZ)) {
+			return node.region;
+		}
+		if (node.region.minX > maxX) {
+			return null;
+		}
+		return findIn(node.right, minX, minY, minZ, maxX, maxY, maxZ);
+	}
+
+	private static int compare(Region a, Region b) {
+		int byX = Integer.compare(a.minX, b.minX);
+		return byX != 0 ? byX : Long.compare(a.id, b.id);
+	}
+
+	private static Node insert(Node node, Region region) {
+		if (node == null) {
+			return new Node(region);
+		}
+		if (compare(region, node.region) < 0) {
+			node.left = insert(node.left, region);
+		} else {
+			node.right = insert(node.right, region);
+		}
+		return balance(node);
+	}
+
+	private Node delete(Node node, Region region) {
+		if (node == null) {
+			return null;
+		}
+		int cmp = compare(region, node.region);
+		if (cmp < 0) {
+			node.left = delete(node.left, region);
+		} else if (cmp > 0) {
+			node.right = delete(node.right, region);
+		} else {
+			size--;
+			if (node.left == null) {
+				return node.right;
+			}
+			if (node.right == null) {
+				return node.left;
+			}
+			Node successor = node.right;
+			while (successor.left != null) {
+				successor = successor.left;
+			}
+			Node replacement = new Node(successor.region);
+			replacement.right = removeMin(node.right);
+			replacement.left = node.left;
+			return balance(replacement);
+		}
+		return balance(node);
+	}
+
+	private static Node removeMin(Node node) {
+		if (node.left == null) {
+			return node.right;
+		}
+		node.left = removeMin(node.left);
+		return balance(node);
+	}
+
+	private static int height(Node node) {
+		return node == null ? 0 : node.height;
+	}
+
+	private static void update(Node node) {
+		node.height = 1 + Math.max(height(node.left), height(node.right));
+		int maxX = node.region.maxX;
+		if (node.left != null) {
+			maxX = Math.max(maxX, node.left.maxX);
+		}
+		if (node.right != null) {
+			maxX = Math.max(maxX, node.right.maxX);
+		}
+		node.maxX = maxX;
+	}
+
+	private static Node balance(Node node) {
+		update(node);
+		int skew = height(node.left) - height(node.right);
+		if (skew > 1) {
+			if (height(node.left.left) < height(node.left.right)) {
+				node.left = rotateLeft(node.left);
+			}
+			return rotateRight(node);
+		}
+		if (skew < -1) {
+			if (height(node.right.right) < height(node.right.left)) {
+				node.right = rotateRight(node.right);
+			}
+			return rotateLeft(node);
+		}
+		return node;
+	}
+
+	private static Node rotateRight(Node node) {
+		Node pivot = node.left;
+		node.left = pivot.right;
+		pivot.right = node;
+		update(node);
+		update(pivot);
+		return pivot;
+	}
+
+	private static Node rotateLeft(Node node) {
+		Node pivot = node.right;
+		node.right = pivot.left;
+		pivot.left = node;
+		update(node);
+		update(pivot);
+		return pivot;
+	}
+}
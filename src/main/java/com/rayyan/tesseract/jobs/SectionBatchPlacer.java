@@ -0,0 +1,283 @@
+package com.rayyan.tesseract.jobs;
+
+import it.unimi.dsi.fastutil.shorts.ShortOpenHashSet;
+import it.unimi.dsi.fastutil.shorts.ShortSet;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.network.packet.s2c.play.ChunkDeltaUpdateS2CPacket;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.WorldChunk;
+
+import java.util.Arrays;
+
+/**
+ * Writes blocks one chunk section at a time.
+ *
+ * Callers feed positions in section order (see {@link #sectionKey}); the chunk and section are looked up
+ * once per run of positions in the same section, and every touched section is synced to watching players
+ * with a single {@link ChunkDeltaUpdateS2CPacket} on {@link #flush()} instead of one packet per block.
+ *
+ * In the default {@link Mode#DEFERRED} mode a write only touches the chunk. Light checks, neighbor updates
+ * and shape updates are collected per section and run once, in a single fixup pass, when the section is
+ * flushed. By then the rest of the section's blocks are in place, so stairs, panes and fences settle on
+ * their final shape in one go, and torches and doors find their support instead of popping off.
+ * {@link Mode#IMMEDIATE} queues the light check and runs those updates right after each write.
+ * {@link Mode#LEGACY} is one {@code setBlockState(NOTIFY_ALL)} per block. TESSERACT_PLACEMENT picks the
+ * mode (legacy, immediate or deferred; TESSERACT_LEGACY_PLACEMENT=true still selects legacy), and the
+ * per-tick figures logged when a build finishes let the modes be compared, as does the dev-only
+ * {@code /tesseract bench} (src/dev).
+ */
+final class SectionBatchPlacer {
+	static final Mode DEFAULT_MODE = Boolean.parseBoolean(System.getenv("TESSERACT_LEGACY_PLACEMENT"))
+		? Mode.LEGACY
+		: Mode.parse(System.getenv("TESSERACT_PLACEMENT"), Mode.DEFERRED);
+
+	enum Mode {
+		LEGACY,
+		IMMEDIATE,
+		DEFERRED;
+
+		static Mode parse(String value, Mode fallback) {
+			if (value == null || value.isBlank()) {
+				return fallback;
+			}
+			for (Mode mode : values()) {
+				if (mode.name().equalsIgnoreCase(value.trim())) {
+					return mode;
+				}
+			}
+			return fallback;
+		}
+	}
+
+	private final ServerWorld world;
+	private final Mode mode;
+	private final ShortSet dirty = new ShortOpenHashSet();
+	// Deferred mode: every changed position in the current section and the state it replaced.
+	private short[] fixupLocal = new short[64];
+	private BlockState[] fixupPrevious = new BlockState[64];
+	private int fixups;
+	private final BlockPos.Mutable fixupPos = new BlockPos.Mutable();
+	private long currentKey = Long.MIN_VALUE;
+	private WorldChunk chunk;
+	private ChunkSection section;
+	private int sectionsFlushed;
+	private int placed;
+	private long placeNanos;
+	private long tickStartNanos;
+	private int ticks;
+	private long maxTickNanos;
+	private UndoJournal journal;
+
+	SectionBatchPlacer(ServerWorld world) {
+		this(world, DEFAULT_MODE);
+	}
+
+	SectionBatchPlacer(ServerWorld world, Mode mode) {
+		this.world = world;
+		this.mode = mode;
+	}
+
+	/**
+	 * Records every write that changes a block into {@code journal}.
+	 */
+	void setJournal(UndoJournal journal) {
+		this.journal = journal;
+	}
+
+	static long sectionKey(int x, int y, int z) {
+		return ChunkSectionPos.asLong(
+			ChunkSectionPos.getSectionCoord(x),
+			ChunkSectionPos.getSectionCoord(y),
+			ChunkSectionPos.getSectionCoord(z)
+		);
+	}
+
+	/**
+	 * Places a single block. Returns false if the target chunk is not loaded; nothing is written in that case.
+	 * A position outside the world's build height is dropped and counts as handled, as
+	 * {@code world.setBlockState} would refuse it anyway.
+	 */
+	boolean place(BlockPos pos, BlockState state) {
+		if (world.isOutOfHeightLimit(pos)) {
+			return true;
+		}
+		long start = System.nanoTime();
+		if (mode == Mode.LEGACY) {
+			if (!world.isChunkLoaded(pos)) {
+				return false;
+			}
+			BlockState previous = world.getBlockState(pos);
+			if (world.setBlockState(pos, state, Block.NOTIFY_ALL) && journal != null) {
+				journal.record(pos, previous, state);
+			}
+			placed++;
+			placeNanos += System.nanoTime() - start;
+			return true;
+		}
+		long key = sectionKey(pos.getX(), pos.getY(), pos.getZ());
+		if (key != currentKey) {
+			flush();
+			// getWorldChunk never loads or generates; null means the chunk is not ready.
+			chunk = world.getChunkManager().getWorldChunk(
+				ChunkSectionPos.getSectionCoord(pos.getX()),
+				ChunkSectionPos.getSectionCoord(pos.getZ())
+			);
+			if (chunk == null) {
+				return false;
+			}
+			currentKey = key;
+		}
+		BlockState previous = chunk.setBlockState(pos, state, false);
+		if (previous != null) {
+			// Look the section up after the write: the chunk creates it if it was empty before.
+			section = chunk.getSection(chunk.getSectionIndex(pos.getY()));
+			short local = ChunkSectionPos.packLocal(pos);
+			boolean first = dirty.add(local);
+			if (journal != null) {
+				journal.record(pos, previous, state);
+			}
+			if (mode == Mode.DEFERRED) {
+				// A second write to the same block keeps the first previous state; the fixup reads the final one.
+				if (first) {
+					deferFixup(local, previous);
+				}
+			} else {
+				if (needsLightCheck(pos, previous, state)) {
+					world.getChunkManager().getLightingProvider().checkBlock(pos);
+				}
+				applyUpdates(pos, previous, state);
+			}
+		}
+		placed++;
+		placeNanos += System.nanoTime() - start;
+		return true;
+	}
+
+	private void deferFixup(short local, BlockState previous) {
+		if (fixups == fixupLocal.length) {
+			fixupLocal = Arrays.copyOf(fixupLocal, fixups * 2);
+			fixupPrevious = Arrays.copyOf(fixupPrevious, fixups * 2);
+		}
+		fixupLocal[fixups] = local;
+		fixupPrevious[fixups] = previous;
+		fixups++;
+	}
+
+	private void applyUpdates(BlockPos pos, BlockState previous, BlockState state) {
+		world.updateNeighbors(pos, previous.getBlock());
+		previous.prepare(world, pos, Block.NOTIFY_LISTENERS);
+		state.updateNeighbors(world, pos, Block.NOTIFY_LISTENERS);
+		state.prepare(world, pos, Block.NOTIFY_LISTENERS);
+		world.onBlockChanged(pos, previous, state);
+	}
+
+	/**
+	 * The deferred fixup pass for the current section: queues light checks for every changed block first,
+	 * then runs neighbor and shape updates against the section's final contents.
+	 */
+	private void runFixups(ChunkSectionPos sectionPos) {
+		for (int i = 0; i < fixups; i++) {
+			BlockPos pos = fixupPos(sectionPos, fixupLocal[i]);
+			if (needsLightCheck(pos, fixupPrevious[i], chunk.getBlockState(pos))) {
+				world.getChunkManager().getLightingProvider().checkBlock(pos);
+			}
+		}
+		for (int i = 0; i < fixups; i++) {
+			BlockPos pos = fixupPos(sectionPos, fixupLocal[i]);
+			// Read the state back: an earlier fixup in this pass may have reshaped it.
+			applyUpdates(pos, fixupPrevious[i], chunk.getBlockState(pos));
+		}
+		clearFixups();
+	}
+
+	private BlockPos fixupPos(ChunkSectionPos sectionPos, short local) {
+		return fixupPos.set(
+			sectionPos.getMinX() + ChunkSectionPos.unpackLocalX(local),
+			sectionPos.getMinY() + ChunkSectionPos.unpackLocalY(local),
+			sectionPos.getMinZ() + ChunkSectionPos.unpackLocalZ(local)
+		);
+	}
+
+	private void clearFixups() {
+		Arrays.fill(fixupPrevious, 0, fixups, null);
+		fixups = 0;
+	}
+
+	/**
+	 * Runs the fixup pass and sends the pending delta packet for the current section, if any.
+	 */
+	void flush() {
+		if (dirty.isEmpty() || chunk == null || section == null) {
+			dirty.clear();
+			clearFixups();
+			currentKey = Long.MIN_VALUE;
+			return;
+		}
+		long start = System.nanoTime();
+		chunk.setShouldSave(true);
+		ChunkSectionPos sectionPos = ChunkSectionPos.from(currentKey);
+		if (fixups > 0) {
+			runFixups(sectionPos);
+		}
+		ChunkPos chunkPos = chunk.getPos();
+		ChunkDeltaUpdateS2CPacket packet = new ChunkDeltaUpdateS2CPacket(sectionPos, dirty, section, false);
+		for (ServerPlayerEntity player : world.getChunkManager().threadedAnvilChunkStorage.getPlayersWatchingChunk(chunkPos, false)) {
+			player.networkHandler.sendPacket(packet);
+		}
+		// The packet copies positions and states in its constructor, so the set can be reused.
+		dirty.clear();
+		section = null;
+		currentKey = Long.MIN_VALUE;
+		sectionsFlushed++;
+		placeNanos += System.nanoTime() - start;
+	}
+
+	int getPlaced() {
+		return placed;
+	}
+
+	int getSectionsFlushed() {
+		return sectionsFlushed;
+	}
+
+	long getPlaceNanos() {
+		return placeNanos;
+	}
+
+	Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Closes one tick's worth of placement for the per-tick figures. Call after the tick's {@link #flush()}.
+	 */
+	void endTick() {
+		long spent = placeNanos - tickStartNanos;
+		if (spent > 0) {
+			ticks++;
+			maxTickNanos = Math.max(maxTickNanos, spent);
+		}
+		tickStartNanos = placeNanos;
+	}
+
+	int getTicks() {
+		return ticks;
+	}
+
+	long getMaxTickNanos() {
+		return maxTickNanos;
+	}
+
+	private boolean needsLightCheck(BlockPos pos, BlockState previous, BlockState state) {
+		return previous.getOpacity(world, pos) != state.getOpacity(world, pos)
+			|| previous.getLuminance() != state.getLuminance()
+			|| previous.hasSidedTransparency()
+			|| state.hasSidedTransparency();
+	}
+}
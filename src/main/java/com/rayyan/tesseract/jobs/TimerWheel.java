@@ -0,0 +1,151 @@
+package com.rayyan.tesseract.jobs;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timer wheel that counts server ticks.
+ *
+ * {@link #LEVELS} wheels of {@link #SLOTS} slots each. Level 0 has one slot per tick; every slot of level n
+ * spans a whole turn of level n - 1. A timer goes into the coarsest level whose span it needs, and drops a
+ * level each time the finer wheel comes round to it, so it is moved at most {@link #LEVELS} times. Each
+ * {@link #advance} therefore does O(1) work plus the timers that fire, however many are waiting.
+ * Scheduling and cancelling are O(1): slots are intrusive doubly-linked lists.
+ *
+ * Deadlines past the last level's span (about 9 days at 20 tps) are clamped to it. Not thread-safe.
+ */
+final class TimerWheel<T> {
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+	private static final long MAX_DELAY = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+	@SuppressWarnings("unchecked")
+	private final Timer<T>[][] wheels = new Timer[LEVELS][SLOTS];
+	private long now;
+	private int size;
+
+	static final class Timer<T> {
+		private final T value;
+		private long deadline;
+		private Timer<T> prev;
+		private Timer<T> next;
+		private int level = -1;
+		private int slot;
+
+		private Timer(T value, long deadline) {
+			this.value = value;
+			this.deadline = deadline;
+		}
+
+		T value() {
+			return value;
+		}
+
+		boolean isPending() {
+			return level >= 0;
+		}
+	}
+
+	/**
+	 * The current tick: how many times {@link #advance} has run.
+	 */
+	long now() {
+		return now;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Fires {@code value} once {@code delayTicks} more ticks have passed (at least one).
+	 */
+	Timer<T> schedule(T value, long delayTicks) {
+		Timer<T> timer = new Timer<>(value, now + Math.max(1L, Math.min(delayTicks, MAX_DELAY)));
+		place(timer);
+		size++;
+		return timer;
+	}
+
+	/**
+	 * Stops a pending timer; a timer that already fired or was cancelled is left alone.
+	 */
+	void cancel(Timer<T> timer) {
+		if (timer == null || !timer.isPending()) {
+			return;
+		}
+		unlink(timer);
+		size--;
+	}
+
+	/**
+	 * Moves on one tick and hands every timer due by then to {@code expired}.
+	 */
+	void advance(Consumer<T> expired) {
+		now++;
+		// Each time a finer wheel wraps, pull the next slot of the coarser one down. Coarsest first, so
+		// timers it drops into a finer wheel's current slot are pulled down again on this same tick.
+		int wrapped = 0;
+		while (wrapped < LEVELS - 1 && (now & ((1L << (SLOT_BITS * (wrapped + 1))) - 1)) == 0) {
+			wrapped++;
+		}
+		for (int level = wrapped; level >= 1; level--) {
+			int slot = (int) (now >>> (SLOT_BITS * level)) & SLOT_MASK;
+			Timer<T> timer = wheels[level][slot];
+			wheels[level][slot] = null;
+			while (timer != null) {
+				Timer<T> next = timer.next;
+				timer.level = -1;
+				timer.prev = null;
+				timer.next = null;
+				place(timer);
+				timer = next;
+			}
+		}
+		int slot = (int) now & SLOT_MASK;
+		Timer<T> timer = wheels[0][slot];
+		wheels[0][slot] = null;
+		while (timer != null) {
+			Timer<T> next = timer.next;
+			timer.level = -1;
+			timer.prev = null;
+			timer.next = null;
+			size--;
+			expired.accept(timer.value);
+			timer = next;
+		}
+	}
+
+	private void place(Timer<T> timer) {
+		long delay = Math.max(0L, timer.deadline - now);
+		int level = 0;
+		while (level < LEVELS - 1 && delay >= 1L << (SLOT_BITS * (level + 1))) {
+			level++;
+		}
+		// A timer pulled down on its own tick lands in the level 0 slot that is about to fire.
+		long deadline = now + delay;
+		int slot = (int) (deadline >>> (SLOT_BITS * level)) & SLOT_MASK;
+		timer.level = level;
+		timer.slot = slot;
+		timer.next = wheels[level][slot];
+		if (timer.next != null) {
+			timer.next.prev = timer;
+		}
+		wheels[level][slot] = timer;
+	}
+
+	private void unlink(Timer<T> timer) {
+		if (timer.prev != null) {
+			timer.prev.next = timer.next;
+		} else {
+			wheels[timer.level][timer.slot] = timer.next;
+		}
+		if (timer.next != null) {
+			timer.next.prev = timer.prev;
+		}
+		timer.level = -1;
+		timer.prev = null;
+		timer.next = null;
+	}
+}
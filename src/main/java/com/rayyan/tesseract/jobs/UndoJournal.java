@@ -0,0 +1,357 @@
+package com.rayyan.tesseract.jobs;
+
+import com.rayyan.tesseract.TesseractMod;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.block.BlockState;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What one build overwrote, compressed per chunk section so several can be kept per player.
+ *
+ * Writes arrive in section order. The writes to the section being placed are held as they come; once the
+ * next section starts, they are packed into bytes: the number of writes, a section palette (indexes into
+ * the journal palette of every state the build replaced there), each write's 12-bit position inside the
+ * section as a varint delta from the one before, and the replaced states as runs of section palette
+ * indexes. Builds place blocks in storage order and in long runs of one state, so a block usually costs
+ * one or two bytes instead of a BlockPos and a state reference. Only the replaced state is kept: undo
+ * needs nothing else, and the undo's own journal records what redo puts back. The section keys stay on
+ * the heap; once the packed bytes pass {@link #SPILL_BYTES} they are appended to a temp file instead, so a
+ * 100k-block step costs the heap only its section keys and palette.
+ *
+ * Undo does not replay the journal directly: {@link #toRestorePlan} turns the previous states of one or
+ * more journals into an ordinary {@link CompiledPlan}, which goes through the normal diff, scheduler and
+ * batched placer, and whose own journal becomes the redo step.
+ */
+final class UndoJournal {
+	private static final int SPILL_BYTES = 64 * 1024;
+	private static final int MAX_PALETTE = 0xFFFF;
+
+	private final ServerWorld world;
+	private final Map<BlockState, Integer> paletteIndex = new IdentityHashMap<>();
+	private final List<BlockState> palette = new ArrayList<>();
+	private long[] sectionKeys = new long[16];
+	private int sections;
+	// Writes to the section being placed: position inside it and journal palette index of the replaced state.
+	private short[] openLocal = new short[256];
+	private int[] openState = new int[256];
+	private int openCount;
+	// Packed sections, on the heap until they spill to the file.
+	private byte[] packed;
+	private int packedLength;
+	private FileChannel channel;
+	private long fileLength;
+	private int size;
+	private boolean overflowed;
+
+	private UndoJournal(ServerWorld world, int initialBytes) {
+		this.world = world;
+		this.packed = new byte[initialBytes];
+	}
+
+	/**
+	 * Creates a journal for about {@code expectedWrites} writes.
+	 */
+	static UndoJournal create(ServerWorld world, int expectedWrites) {
+		// Around two bytes a block once packed; the buffer grows if that is not enough.
+		return new UndoJournal(world, Math.max(64, Math.min(SPILL_BYTES, expectedWrites * 2)));
+	}
+
+	/**
+	 * Records one write. Once the palette overflows it stops recording and {@link #isComplete()} turns false.
+	 */
+	void record(BlockPos pos, BlockState previous, BlockState next) {
+		if (overflowed) {
+			return;
+		}
+		int before = indexOf(previous);
+		if (before < 0) {
+			overflowed = true;
+			return;
+		}
+		long key = SectionBatchPlacer.sectionKey(pos.getX(), pos.getY(), pos.getZ());
+		if (sections == 0 || sectionKeys[sections - 1] != key) {
+			if (!sealSection()) {
+				return;
+			}
+			if (sections == sectionKeys.length) {
+				sectionKeys = Arrays.copyOf(sectionKeys, sections * 2);
+			}
+			sectionKeys[sections++] = key;
+		}
+		if (openCount == openLocal.length) {
+			openLocal = Arrays.copyOf(openLocal, openCount * 2);
+			openState = Arrays.copyOf(openState, openCount * 2);
+		}
+		openLocal[openCount] = ChunkSectionPos.packLocal(pos);
+		openState[openCount] = before;
+		openCount++;
+		size++;
+	}
+
+	private int indexOf(BlockState state) {
+		Integer index = paletteIndex.get(state);
+		if (index == null) {
+			if (palette.size() >= MAX_PALETTE) {
+				return -1;
+			}
+			index = palette.size();
+			palette.add(state);
+			paletteIndex.put(state, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Packs the open section's writes and starts an empty one. Returns false if they could not be kept.
+	 */
+	private boolean sealSection() {
+		if (openCount == 0) {
+			return true;
+		}
+		Int2IntOpenHashMap local = new Int2IntOpenHashMap();
+		IntArrayList sectionPalette = new IntArrayList();
+		for (int i = 0; i < openCount; i++) {
+			if (!local.containsKey(openState[i])) {
+				local.put(openState[i], sectionPalette.size());
+				sectionPalette.add(openState[i]);
+			}
+		}
+		ensureRoom(10 + 3 * sectionPalette.size() + 8 * openCount);
+		writeVarInt(openCount);
+		writeVarInt(sectionPalette.size());
+		for (int p = 0; p < sectionPalette.size(); p++) {
+			writeVarInt(sectionPalette.getInt(p));
+		}
+		int previous = 0;
+		for (int i = 0; i < openCount; i++) {
+			int position = openLocal[i] & 0xFFFF;
+			int delta = position - previous;
+			writeVarInt((delta << 1) ^ (delta >> 31));
+			previous = position;
+		}
+		int i = 0;
+		while (i < openCount) {
+			int state = openState[i];
+			int run = 1;
+			while (i + run < openCount && openState[i + run] == state) {
+				run++;
+			}
+			writeVarInt(run);
+			writeVarInt(local.get(state));
+			i += run;
+		}
+		openCount = 0;
+		if (packedLength >= SPILL_BYTES && !spill()) {
+			overflowed = true;
+			return false;
+		}
+		return true;
+	}
+
+	private void ensureRoom(int bytes) {
+		if (packedLength + bytes > packed.length) {
+			packed = Arrays.copyOf(packed, Math.max(packed.length * 2, packedLength + bytes));
+		}
+	}
+
+	private void writeVarInt(int value) {
+		while ((value & ~0x7F) != 0) {
+			packed[packedLength++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		packed[packedLength++] = (byte) value;
+	}
+
+	/**
+	 * Appends the packed bytes to the journal's temp file, opening it on first use. Returns false if the file
+	 * could not be written.
+	 */
+	private boolean spill() {
+		try {
+			if (channel == null) {
+				Path file = Files.createTempFile("tesseract-undo", ".bin");
+				channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(packed, 0, packedLength);
+			while (buffer.hasRemaining()) {
+				fileLength += channel.write(buffer, fileLength);
+			}
+			packedLength = 0;
+			return true;
+		} catch (IOException ex) {
+			TesseractMod.LOGGER.warn("Could not write undo journal file: {}", ex.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * Every packed section, file part first. Packs the open section first.
+	 */
+	private ByteBuffer packedBytes() throws IOException {
+		if (!sealSection()) {
+			throw new IOException("Undo journal file could not be written");
+		}
+		if (channel == null) {
+			return ByteBuffer.wrap(packed, 0, packedLength);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) fileLength + packedLength);
+		while (buffer.position() < fileLength) {
+			if (channel.read(buffer, buffer.position()) < 0) {
+				throw new IOException("Undo journal file ended early");
+			}
+		}
+		buffer.put(packed, 0, packedLength);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static int readVarInt(ByteBuffer buffer) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	ServerWorld getWorld() {
+		return world;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	boolean isComplete() {
+		return !overflowed;
+	}
+
+	/**
+	 * Bytes held on the heap: section keys, palette, packed sections not yet spilled and the open section.
+	 */
+	long heapBytes() {
+		long bytes = (long) sectionKeys.length * Long.BYTES + packed.length;
+		bytes += (long) palette.size() * 2 * Long.BYTES;
+		bytes += (long) openLocal.length * Short.BYTES + (long) openState.length * Integer.BYTES;
+		return bytes;
+	}
+
+	long fileBytes() {
+		return fileLength;
+	}
+
+	/**
+	 * Builds a plan that puts back every position recorded by {@code journals}, which are in the order they
+	 * were written, to its state from before the first write to it. Returns the plan's origin through
+	 * {@code originOut}, or null if a journal file could not be read back.
+	 */
+	static CompiledPlan toRestorePlan(List<UndoJournal> journals, BlockPos.Mutable originOut) {
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int minZ = Integer.MAX_VALUE;
+		int total = 0;
+		for (UndoJournal journal : journals) {
+			for (int s = 0; s < journal.sections; s++) {
+				ChunkSectionPos section = ChunkSectionPos.from(journal.sectionKeys[s]);
+				minX = Math.min(minX, section.getMinX());
+				minY = Math.min(minY, section.getMinY());
+				minZ = Math.min(minZ, section.getMinZ());
+			}
+			total += journal.size;
+		}
+		Map<BlockState, Integer> paletteIndex = new IdentityHashMap<>();
+		List<BlockState> palette = new ArrayList<>();
+		LongSet seen = new LongOpenHashSet(total);
+		long[] ops = new long[total];
+		int count = 0;
+		short[] locals = new short[256];
+		for (UndoJournal journal : journals) {
+			ByteBuffer bytes;
+			try {
+				bytes = journal.packedBytes();
+			} catch (IOException ex) {
+				TesseractMod.LOGGER.warn("Could not read undo journal file: {}", ex.toString());
+				return null;
+			}
+			for (int s = 0; s < journal.sections; s++) {
+				ChunkSectionPos section = ChunkSectionPos.from(journal.sectionKeys[s]);
+				int writes = readVarInt(bytes);
+				int[] sectionPalette = new int[readVarInt(bytes)];
+				for (int p = 0; p < sectionPalette.length; p++) {
+					sectionPalette[p] = readVarInt(bytes);
+				}
+				if (locals.length < writes) {
+					locals = new short[writes];
+				}
+				int position = 0;
+				for (int i = 0; i < writes; i++) {
+					int zigzag = readVarInt(bytes);
+					position += (zigzag >>> 1) ^ -(zigzag & 1);
+					locals[i] = (short) position;
+				}
+				int i = 0;
+				while (i < writes) {
+					int run = readVarInt(bytes);
+					BlockState before = journal.palette.get(sectionPalette[readVarInt(bytes)]);
+					for (int end = i + run; i < end; i++) {
+						short local = locals[i];
+						int x = section.getMinX() + ChunkSectionPos.unpackLocalX(local);
+						int y = section.getMinY() + ChunkSectionPos.unpackLocalY(local);
+						int z = section.getMinZ() + ChunkSectionPos.unpackLocalZ(local);
+						// A plan may write the same block twice; only the first write saw the original state.
+						if (!seen.add(BlockPos.asLong(x, y, z))) {
+							continue;
+						}
+						Integer index = paletteIndex.get(before);
+						if (index == null) {
+							index = palette.size();
+							palette.add(before);
+							paletteIndex.put(before, index);
+						}
+						ops[count++] = CompiledPlan.pack(x - minX, y - minY, z - minZ, index);
+					}
+				}
+			}
+		}
+		originOut.set(minX, minY, minZ);
+		return CompiledPlan.ofStates(palette.toArray(new BlockState[0]), Arrays.copyOf(ops, count));
+	}
+
+	/**
+	 * Deletes the journal's temp file, if any. The journal must not be used afterwards.
+	 */
+	void discard() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			TesseractMod.LOGGER.warn("Failed to close undo journal file: {}", ex.toString());
+		}
+	}
+}
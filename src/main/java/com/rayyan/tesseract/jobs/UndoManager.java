@@ -0,0 +1,232 @@
+package com.rayyan.tesseract.jobs;
+
+import com.rayyan.tesseract.TesseractMod;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.text.Text;
+import net.minecraft.util.math.BlockPos;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-player undo and redo stacks of steps, each made of one or more {@link UndoJournal}s.
+ *
+ * Every finished build, paste, undo and redo leaves a journal. A build or paste pushes onto the undo stack
+ * and clears redo; an undo pushes its journal onto redo, and a redo pushes onto undo. The tiles of a large
+ * build each leave a journal but join the step of the job they belong to, so one undo takes the whole build
+ * back even if the player's other builds finished in between. At most
+ * {@link #MAX_STEPS} steps are kept per stack, so memory per player stays bounded. A player who has left
+ * keeps their history for TESSERACT_UNDO_IDLE_MINUTES (default 30) after it was last used, so a quick
+ * reconnect can still undo; after that {@link #tick} drops it and closes its journal files.
+ */
+public final class UndoManager {
+	private static final int MAX_STEPS = 5;
+	private static final long IDLE_MS = idleMinutes() * 60_000L;
+	private static final long SWEEP_INTERVAL_MS = 60_000L;
+	private static final Map<UUID, History> HISTORIES = new ConcurrentHashMap<>();
+	// Only touched on the server thread.
+	private static long nextSweepAt;
+
+	private UndoManager() {}
+
+	/**
+	 * TESSERACT_UNDO_IDLE_MINUTES, default 30.
+	 */
+	private static long idleMinutes() {
+		String value = System.getenv("TESSERACT_UNDO_IDLE_MINUTES");
+		if (value != null) {
+			try {
+				return Math.max(1L, Long.parseLong(value.trim()));
+			} catch (NumberFormatException ex) {
+				TesseractMod.LOGGER.warn("Ignoring invalid TESSERACT_UNDO_IDLE_MINUTES={}", value);
+			}
+		}
+		return 30L;
+	}
+
+	enum Kind {
+		BUILD,
+		UNDO,
+		REDO
+	}
+
+	/**
+	 * Starts undoing the player's last build as job {@code jobId}. Returns false (after telling the player
+	 * why) if nothing was started.
+	 */
+	public static boolean undo(ServerPlayerEntity player, UUID jobId) {
+		return replay(player, jobId, history(player.getUuid()).undo, Kind.UNDO, "undo");
+	}
+
+	/**
+	 * Starts redoing the player's last undone build. Returns false if nothing was started.
+	 */
+	public static boolean redo(ServerPlayerEntity player, UUID jobId) {
+		return replay(player, jobId, history(player.getUuid()).redo, Kind.REDO, "redo");
+	}
+
+	private static boolean replay(ServerPlayerEntity player, UUID jobId, Deque<Step> stack, Kind kind, String label) {
+		Step step;
+		synchronized (stack) {
+			step = stack.pollFirst();
+		}
+		if (step == null) {
+			player.sendMessage(Text.of("Nothing to " + label + "."), false);
+			return false;
+		}
+		BlockPos.Mutable origin = new BlockPos.Mutable();
+		CompiledPlan plan = UndoJournal.toRestorePlan(step.journals, origin);
+		if (plan == null) {
+			player.sendMessage(Text.of("Error: that step's undo journal could not be read back."), false);
+			discard(step);
+			return false;
+		}
+		boolean started = false;
+		if (BuildJobManager.claimPlan(jobId, step.world(), origin, plan) != null) {
+			player.sendMessage(Text.of("Error: another build is in progress over that region. Try again once it finishes."), false);
+		} else {
+			started = BuildQueueManager.startRestore(player, jobId, step.world(), origin.toImmutable(), plan, kind);
+		}
+		if (!started) {
+			synchronized (stack) {
+				stack.addFirst(step);
+			}
+			return false;
+		}
+		discard(step);
+		player.sendMessage(Text.of("Tesseract " + label + ": restoring " + plan.size() + " blocks."), false);
+		return true;
+	}
+
+	/**
+	 * Files the journal of a finished job under the right stack. A build's journal is added to the undo step
+	 * already kept for the same job, as the tiles of a large build are, instead of starting a new one.
+	 */
+	static void recordFinished(UUID playerId, UUID jobId, UndoJournal journal, Kind kind) {
+		if (journal == null) {
+			return;
+		}
+		if (journal.isEmpty() || !journal.isComplete()) {
+			if (!journal.isComplete()) {
+				TesseractMod.LOGGER.warn("Undo journal for {} overflowed after {} blocks; step not kept.", playerId, journal.size());
+			}
+			journal.discard();
+			return;
+		}
+		TesseractMod.LOGGER.info("Undo journal for {} ({}) -> {} blocks, {} heap bytes, {} file bytes",
+			playerId,
+			kind,
+			journal.size(),
+			journal.heapBytes(),
+			journal.fileBytes());
+		History history = history(playerId);
+		if (kind == Kind.UNDO) {
+			push(history.redo, jobId, journal);
+			return;
+		}
+		if (kind == Kind.BUILD) {
+			clear(history.redo);
+			if (join(history.undo, jobId, journal)) {
+				return;
+			}
+		}
+		push(history.undo, jobId, journal);
+	}
+
+	private static boolean join(Deque<Step> stack, UUID jobId, UndoJournal journal) {
+		synchronized (stack) {
+			for (Step step : stack) {
+				if (step.jobId.equals(jobId) && step.world() == journal.getWorld()) {
+					step.journals.add(journal);
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static History history(UUID playerId) {
+		History history = HISTORIES.computeIfAbsent(playerId, id -> new History());
+		history.usedAt = System.currentTimeMillis();
+		return history;
+	}
+
+	/**
+	 * Drops the histories of players who are offline and have not used them for the idle timeout, discarding
+	 * their journals. Checks about once a minute; call every server tick.
+	 */
+	public static void tick(MinecraftServer server) {
+		long now = System.currentTimeMillis();
+		if (now < nextSweepAt || HISTORIES.isEmpty()) {
+			return;
+		}
+		nextSweepAt = now + SWEEP_INTERVAL_MS;
+		for (Iterator<Map.Entry<UUID, History>> it = HISTORIES.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<UUID, History> entry = it.next();
+			History history = entry.getValue();
+			if (now - history.usedAt < IDLE_MS || server.getPlayerManager().getPlayer(entry.getKey()) != null) {
+				continue;
+			}
+			it.remove();
+			clear(history.undo);
+			clear(history.redo);
+		}
+	}
+
+	private static void push(Deque<Step> stack, UUID jobId, UndoJournal journal) {
+		Step step = new Step(jobId, journal);
+		synchronized (stack) {
+			stack.addFirst(step);
+			while (stack.size() > MAX_STEPS) {
+				discard(stack.removeLast());
+			}
+		}
+	}
+
+	private static void clear(Deque<Step> stack) {
+		synchronized (stack) {
+			for (Step step : stack) {
+				discard(step);
+			}
+			stack.clear();
+		}
+	}
+
+	private static void discard(Step step) {
+		for (UndoJournal journal : step.journals) {
+			journal.discard();
+		}
+	}
+
+	private static final class History {
+		private final Deque<Step> undo = new ArrayDeque<>();
+		private final Deque<Step> redo = new ArrayDeque<>();
+		// Last undo, redo or recorded job; a build that finishes after its player left counts too.
+		private volatile long usedAt;
+	}
+
+	/**
+	 * One undo or redo step: the journals left by a single job.
+	 */
+	private static final class Step {
+		private final UUID jobId;
+		private final List<UndoJournal> journals = new ArrayList<>(1);
+
+		private Step(UUID jobId, UndoJournal journal) {
+			this.jobId = jobId;
+			this.journals.add(journal);
+		}
+
+		private ServerWorld world() {
+			return journals.get(0).getWorld();
+		}
+	}
+}
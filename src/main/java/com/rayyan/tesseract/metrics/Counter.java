@@ -0,0 +1,48 @@
+package com.rayyan.tesseract.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that only goes up. Counters that share a name are one Prometheus family told apart by a label.
+ */
+public final class Counter {
+	private final String name;
+	private final String help;
+	// The label as Prometheus writes it, like {outcome="done"}; empty for none.
+	private final String labels;
+	private final AtomicLong value = new AtomicLong();
+
+	Counter(String name, String help, String labels) {
+		this.name = name;
+		this.help = help;
+		this.labels = labels;
+	}
+
+	public void increment() {
+		value.incrementAndGet();
+	}
+
+	public void add(long delta) {
+		value.addAndGet(delta);
+	}
+
+	public long get() {
+		return value.get();
+	}
+
+	String name() {
+		return name;
+	}
+
+	String help() {
+		return help;
+	}
+
+	String labels() {
+		return labels;
+	}
+
+	void reset() {
+		value.set(0L);
+	}
+}
@@ -0,0 +1,125 @@
+package com.rayyan.tesseract.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A distribution of non-negative longs in log-linear buckets.
+ *
+ * Each power of two is split into {@link #SUB_BUCKETS} equal buckets, so a quantile read back is at most
+ * 1/8 above the true value, across the whole range of a long. Recording is a handful of atomic adds on
+ * preallocated arrays: no locks and no allocation, so it is safe on the server thread and the plan workers
+ * alike. Reads are not a consistent snapshot; a value recorded during a read may be half counted.
+ */
+public final class Histogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final String name;
+	private final String help;
+	private final boolean nanos;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	Histogram(String name, String help, boolean nanos) {
+		this.name = name;
+		this.help = help;
+		this.nanos = nanos;
+	}
+
+	public void record(long value) {
+		long v = Math.max(0L, value);
+		counts.incrementAndGet(bucket(v));
+		count.incrementAndGet();
+		sum.addAndGet(v);
+		long seen = max.get();
+		while (v > seen && !max.compareAndSet(seen, v)) {
+			seen = max.get();
+		}
+	}
+
+	/**
+	 * Records the nanoseconds since {@code startNanos}, a {@link System#nanoTime()} reading.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public String name() {
+		return name;
+	}
+
+	public String help() {
+		return help;
+	}
+
+	/**
+	 * Whether values are durations in nanoseconds.
+	 */
+	public boolean isNanos() {
+		return nanos;
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	public long sum() {
+		return sum.get();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * The value at quantile {@code q} (0 to 1): the upper edge of the bucket it falls in, capped at the
+	 * largest value seen. 0 when empty.
+	 */
+	public long quantile(double q) {
+		long total = count.get();
+		if (total == 0) {
+			return 0L;
+		}
+		long rank = Math.max(1L, (long) Math.ceil(q * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upper(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0L);
+		}
+		count.set(0L);
+		sum.set(0L);
+		max.set(0L);
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upper(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BITS);
+		return (SUB_BUCKETS + sub) * width + width - 1;
+	}
+}
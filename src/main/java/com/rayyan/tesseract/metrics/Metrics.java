@@ -0,0 +1,170 @@
+package com.rayyan.tesseract.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+
+/**
+ * Every stage of a build, timed and counted, for {@code /tesseract stats} and {@link MetricsServer}.
+ *
+ * The histograms and counters are fixed fields, so a hot path records with one field read and a few
+ * atomic adds. Gauges are read only when the figures are shown, from suppliers the owning classes register
+ * at startup. All figures run from server start or the last {@link #reset()}.
+ */
+public final class Metrics {
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+	private static final List<Histogram> HISTOGRAMS = new ArrayList<>();
+	private static final List<Counter> COUNTERS = new ArrayList<>();
+	private static final List<Gauge> GAUGES = new CopyOnWriteArrayList<>();
+	private static volatile long sinceMillis = System.currentTimeMillis();
+
+	public static final Histogram CONTEXT_CAPTURE = latency("tesseract_context_capture", "Copying the context selection's sections on the server thread.");
+	public static final Histogram REQUEST_BUILD = latency("tesseract_request_build", "Scanning the context and building a Gumloop request.");
+	public static final Histogram QUEUE_WAIT = latency("tesseract_queue_wait", "Time a draft waited for admission.");
+	public static final Histogram HTTP_ROUND_TRIP = latency("tesseract_http_round_trip", "A Gumloop request or paste fetch, from send to response headers, retries included.");
+	public static final Histogram POLL_COUNT = values("tesseract_poll_count", "Polls a Gumloop run needed before it settled or timed out.");
+	public static final Histogram POLL_WAIT = latency("tesseract_poll_wait", "Time from a Gumloop run id to its settled outcome.");
+	public static final Histogram PARSE = latency("tesseract_parse", "Reading and decoding a plan body, per-op checks included.");
+	public static final Histogram VALIDATE = latency("tesseract_validate", "Whole-plan checks and compiling a decoded plan.");
+	public static final Histogram PLACEMENT_TICK = latency("tesseract_placement_tick", "Build queue work per server tick with jobs queued.");
+	public static final Histogram BLOCKS_PER_SECOND = values("tesseract_placement_blocks_per_second", "Placement rate of each finished build, over its placing time.");
+
+	public static final Counter BLOCKS_PLACED = counter("tesseract_blocks_placed_total", "Blocks written by builds.", "");
+	public static final Counter JOBS_DONE = counter("tesseract_jobs_total", "Build jobs by outcome.", "{outcome=\"done\"}");
+	public static final Counter JOBS_FAILED = counter("tesseract_jobs_total", "Build jobs by outcome.", "{outcome=\"failed\"}");
+	public static final Counter JOBS_TIMED_OUT = counter("tesseract_jobs_total", "Build jobs by outcome.", "{outcome=\"timed_out\"}");
+	public static final Counter JOBS_CANCELLED = counter("tesseract_jobs_total", "Build jobs by outcome.", "{outcome=\"cancelled\"}");
+
+	private Metrics() {}
+
+	/**
+	 * Adds a value read when the figures are shown. Call once per name, at startup.
+	 */
+	public static void gauge(String name, String help, LongSupplier value) {
+		GAUGES.add(new Gauge(name, help, value));
+	}
+
+	/**
+	 * Zeroes the histograms and counters; gauges are live values and are left alone.
+	 */
+	public static void reset() {
+		for (Histogram histogram : HISTOGRAMS) {
+			histogram.reset();
+		}
+		for (Counter counter : COUNTERS) {
+			counter.reset();
+		}
+		sinceMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * One chat line per stage that has seen anything, then job outcomes and the live gauges.
+	 */
+	public static List<String> summary() {
+		List<String> lines = new ArrayList<>();
+		lines.add("Tesseract stats for the last " + (System.currentTimeMillis() - sinceMillis) / 60_000L + " min:");
+		for (Histogram histogram : HISTOGRAMS) {
+			long count = histogram.count();
+			if (count == 0) {
+				continue;
+			}
+			StringBuilder line = new StringBuilder(label(histogram.name())).append(": n=").append(count);
+			for (double q : QUANTILES) {
+				line.append(" p").append((int) Math.round(q * 100)).append('=').append(format(histogram, histogram.quantile(q)));
+			}
+			line.append(" max=").append(format(histogram, histogram.max()));
+			lines.add(line.toString());
+		}
+		lines.add("jobs: done=" + JOBS_DONE.get()
+			+ " failed=" + JOBS_FAILED.get()
+			+ " timed out=" + JOBS_TIMED_OUT.get()
+			+ " cancelled=" + JOBS_CANCELLED.get()
+			+ " blocks=" + BLOCKS_PLACED.get());
+		if (!GAUGES.isEmpty()) {
+			StringBuilder line = new StringBuilder("now:");
+			for (Gauge gauge : GAUGES) {
+				line.append(' ').append(label(gauge.name).replace(' ', '_')).append('=').append(gauge.value.getAsLong());
+			}
+			lines.add(line.toString());
+		}
+		return lines;
+	}
+
+	/**
+	 * Every metric in the Prometheus text format. Histograms are written as summaries in seconds or plain
+	 * values.
+	 */
+	public static String prometheus() {
+		StringBuilder out = new StringBuilder(4096);
+		for (Histogram histogram : HISTOGRAMS) {
+			String name = histogram.isNanos() ? histogram.name() + "_seconds" : histogram.name();
+			header(out, name, histogram.help(), "summary");
+			for (double q : QUANTILES) {
+				out.append(name).append("{quantile=\"").append(q).append("\"} ").append(scaled(histogram, histogram.quantile(q))).append('\n');
+			}
+			out.append(name).append("_sum ").append(scaled(histogram, histogram.sum())).append('\n');
+			out.append(name).append("_count ").append(histogram.count()).append('\n');
+		}
+		String family = null;
+		for (Counter counter : COUNTERS) {
+			if (!counter.name().equals(family)) {
+				family = counter.name();
+				header(out, family, counter.help(), "counter");
+			}
+			out.append(counter.name()).append(counter.labels()).append(' ').append(counter.get()).append('\n');
+		}
+		for (Gauge gauge : GAUGES) {
+			header(out, gauge.name, gauge.help, "gauge");
+			out.append(gauge.name).append(' ').append(gauge.value.getAsLong()).append('\n');
+		}
+		return out.toString();
+	}
+
+	private static Histogram latency(String name, String help) {
+		Histogram histogram = new Histogram(name, help, true);
+		HISTOGRAMS.add(histogram);
+		return histogram;
+	}
+
+	private static Histogram values(String name, String help) {
+		Histogram histogram = new Histogram(name, help, false);
+		HISTOGRAMS.add(histogram);
+		return histogram;
+	}
+
+	private static Counter counter(String name, String help, String labels) {
+		Counter counter = new Counter(name, help, labels);
+		COUNTERS.add(counter);
+		return counter;
+	}
+
+	private static void header(StringBuilder out, String name, String help, String type) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static String label(String name) {
+		return name.substring("tesseract_".length()).replace('_', ' ');
+	}
+
+	private static String format(Histogram histogram, long value) {
+		return histogram.isNanos() ? String.format("%.1fms", value / 1_000_000.0) : Long.toString(value);
+	}
+
+	private static String scaled(Histogram histogram, long value) {
+		return histogram.isNanos() ? Double.toString(value / 1_000_000_000.0) : Long.toString(value);
+	}
+
+	private static final class Gauge {
+		private final String name;
+		private final String help;
+		private final LongSupplier value;
+
+		private Gauge(String name, String help, LongSupplier value) {
+			this.name = name;
+			this.help = help;
+			this.value = value;
+		}
+	}
+}
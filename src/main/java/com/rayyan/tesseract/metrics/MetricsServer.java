@@ -0,0 +1,68 @@
+package com.rayyan.tesseract.metrics;
+
+import com.rayyan.tesseract.TesseractMod;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves {@link Metrics#prometheus()} at {@code http://127.0.0.1:<port>/metrics} for a local Prometheus
+ * scraper. Off unless TESSERACT_METRICS_PORT is set, and bound to loopback only.
+ */
+public final class MetricsServer {
+	private static HttpServer server;
+
+	private MetricsServer() {}
+
+	public static synchronized void start() {
+		String value = System.getenv("TESSERACT_METRICS_PORT");
+		if (value == null || value.isBlank() || server != null) {
+			return;
+		}
+		int port;
+		try {
+			port = Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			TesseractMod.LOGGER.warn("Ignoring invalid TESSERACT_METRICS_PORT={}", value);
+			return;
+		}
+		try {
+			HttpServer created = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			created.createContext("/metrics", MetricsServer::handle);
+			created.start();
+			server = created;
+			TesseractMod.LOGGER.info("Metrics served at http://127.0.0.1:{}/metrics", port);
+		} catch (IOException | IllegalArgumentException ex) {
+			TesseractMod.LOGGER.error("Failed to start metrics endpoint on port {}: {}", port, ex.toString());
+		}
+	}
+
+	public static synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	private static void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = Metrics.prometheus().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.rayyan.tesseract.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for Tesseract's hot paths, so a recording shows what Tesseract did during a
+ * slow tick next to the JVM's own events.
+ *
+ * Every event carries the request id that the log lines use, or null for work with no request behind it.
+ * Synchronous work creates its event and checks {@link Event#shouldCommit()} on the same path; while no
+ * recording has the event enabled that check is a constant false, and the JIT drops the allocation along
+ * with it. Events that span an asynchronous HTTP exchange are allocated per exchange, which is nothing next
+ * to the exchange. Stack traces are off: the event type already says where it came from.
+ */
+public final class TesseractEvents {
+	private TesseractEvents() {}
+
+	@Category("Tesseract")
+	@StackTrace(false)
+	public abstract static class TesseractEvent extends Event {
+		@Label("Request Id")
+		public String requestId;
+	}
+
+	@Name("tesseract.Placement")
+	@Label("Build Placement")
+	@Description("One build job's share of a server tick in the build queue.")
+	public static final class Placement extends TesseractEvent {
+		@Label("Player")
+		public String player;
+
+		@Label("Ops Placed")
+		public int opsPlaced;
+
+		@Label("Placing Time")
+		@Timespan(Timespan.NANOSECONDS)
+		public long placeNanos;
+
+		@Label("Chunk Misses")
+		@Description("Chunks of the footprint still loading, or 1 if a block landed in an unloaded chunk.")
+		public int chunkMisses;
+	}
+
+	@Name("tesseract.Http")
+	@Label("Plan HTTP Call")
+	@Description("A Gumloop request or a paste fetch, from send to response headers, retries included.")
+	public static final class Http extends TesseractEvent {
+		@Label("Kind")
+		public String kind;
+
+		@Label("Status")
+		public int status;
+
+		@Label("Failure")
+		public String failure;
+
+		/**
+		 * Ends the call and commits it if a recording wants it. {@code status} is 0 when no response came.
+		 */
+		public void finish(String requestId, String kind, int status, Throwable failure) {
+			end();
+			if (shouldCommit()) {
+				this.requestId = requestId;
+				this.kind = kind;
+				this.status = status;
+				this.failure = failure == null ? null : failure.toString();
+				commit();
+			}
+		}
+	}
+
+	@Name("tesseract.Poll")
+	@Label("Gumloop Poll")
+	@Description("One poll of a Gumloop run for its outputs.")
+	public static final class Poll extends TesseractEvent {
+		@Label("Run Id")
+		public String runId;
+
+		@Label("Poll")
+		public int poll;
+
+		@Label("Status")
+		public int status;
+
+		@Label("Outcome")
+		public String outcome;
+
+		/**
+		 * Ends the poll and commits it if a recording wants it. {@code outcome} is null when the poll failed.
+		 */
+		public void finish(String requestId, String runId, int poll, int status, Object outcome) {
+			end();
+			if (shouldCommit()) {
+				this.requestId = requestId;
+				this.runId = runId;
+				this.poll = poll;
+				this.status = status;
+				this.outcome = outcome == null ? null : outcome.toString();
+				commit();
+			}
+		}
+	}
+
+	@Name("tesseract.PlanDecode")
+	@Label("Plan Parse and Validate")
+	@Description("Streaming a plan body: parsing with per-op checks, then whole-plan checks and compile.")
+	public static final class PlanDecode extends TesseractEvent {
+		@Label("Parse Time")
+		@Timespan(Timespan.NANOSECONDS)
+		public long parseNanos;
+
+		@Label("Validate Time")
+		@Timespan(Timespan.NANOSECONDS)
+		public long validateNanos;
+
+		@Label("Characters Read")
+		public int charsRead;
+
+		@Label("Ops")
+		public int ops;
+
+		@Label("Error")
+		public String error;
+	}
+
+	@Name("tesseract.ContextCapture")
+	@Label("Context Capture")
+	@Description("Copying the context selection's sections on the server thread, or scanning them into a request.")
+	public static final class ContextCapture extends TesseractEvent {
+		@Label("Stage")
+		public String stage;
+
+		@Label("Sections")
+		public int sections;
+
+		@Label("Blocks")
+		public int blocks;
+	}
+
+	@Name("tesseract.SelectionSync")
+	@Label("Selection Packet")
+	@Description("A selection update sent to a client.")
+	public static final class SelectionSync extends TesseractEvent {
+		@Label("Player")
+		public String player;
+
+		@Label("Build Selection")
+		public boolean build;
+
+		@Label("Size")
+		@DataAmount
+		public int bytes;
+	}
+}
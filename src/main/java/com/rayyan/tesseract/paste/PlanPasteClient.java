@@ -2,89 +2,202 @@ package com.rayyan.tesseract.paste;
 
 import com.rayyan.tesseract.TesseractMod;
 import com.rayyan.tesseract.gumloop.GumloopClient;
-import com.rayyan.tesseract.gumloop.GumloopPayload;
+import com.rayyan.tesseract.gumloop.HttpTransport;
+import com.rayyan.tesseract.gumloop.PlanCache;
+import com.rayyan.tesseract.gumloop.PlanWorkers;
+import com.rayyan.tesseract.gumloop.SingleFlight;
 import com.rayyan.tesseract.jobs.BuildJobManager;
 import com.rayyan.tesseract.jobs.BuildQueueManager;
+import com.rayyan.tesseract.jobs.CancelToken;
+import com.rayyan.tesseract.jobs.CompiledPlan;
+import com.rayyan.tesseract.metrics.Metrics;
+import com.rayyan.tesseract.metrics.TesseractEvents;
 import com.rayyan.tesseract.selection.Selection;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.text.Text;
+import net.minecraft.util.math.BlockPos;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public final class PlanPasteClient {
-	private static final HttpClient CLIENT = HttpClient.newHttpClient();
 	private static final int LOG_BODY_PREVIEW = 240;
 
 	private PlanPasteClient() {}
 
-	public static void fetchAndBuild(ServerPlayerEntity player, Selection selection, String source) {
+	public static void fetchAndBuild(ServerPlayerEntity player, UUID jobId, Selection selection, String source) {
 		if (player == null || player.getServer() == null) {
 			return;
 		}
 		URI uri = parseSource(source);
 		if (uri == null) {
 			player.sendMessage(Text.of("Error: paste source must be a valid http(s) URL."), false);
-			BuildJobManager.finish(player.getUuid());
+			BuildJobManager.fail(jobId);
 			return;
 		}
-		String requestId = "paste-" + System.currentTimeMillis() + "-" + player.getUuid().toString().substring(0, 8);
+		String requestId = "paste-" + System.currentTimeMillis() + "-" + jobId.toString().substring(0, 8);
+		BuildJobManager.setRequestId(jobId, requestId);
 		player.sendMessage(Text.of("Tesseract fetching plan..."), false);
 		TesseractMod.LOGGER.info("Paste {} -> fetching plan from {}", requestId, uri);
 
-		HttpRequest request = HttpRequest.newBuilder()
+		BlockPos size = GumloopClient.effectiveBuildSize(selection);
+		if (size == null) {
+			player.sendMessage(Text.of("Error: Invalid build selection size."), false);
+			BuildJobManager.fail(jobId);
+			return;
+		}
+		CancelToken token = BuildJobManager.token(jobId);
+		PlanWorkers.executor().execute(() -> fetch(player, jobId, selection, uri, size, requestId, token));
+	}
+
+	/**
+	 * Runs on a plan worker. Players pasting the same URL at the same size at once share one fetch; see
+	 * {@link SingleFlight}. Cancelling {@code token} drops this player's share of it.
+	 */
+	private static void fetch(ServerPlayerEntity player, UUID jobId, Selection selection, URI uri, BlockPos size, String requestId, CancelToken token) {
+		if (token.isCancelled()) {
+			return;
+		}
+		String cacheKey = PlanCache.key("paste", uri + "@" + size.getX() + "x" + size.getY() + "x" + size.getZ());
+		SingleFlight.join(cacheKey, requestId, token, flightToken -> fetchPlan(jobId, uri, size, cacheKey, requestId, flightToken))
+			.whenComplete((result, error) -> {
+				if (token.isCancelled()) {
+					TesseractMod.LOGGER.info("Paste {} -> cancelled.", requestId);
+					return;
+				}
+				if (error != null) {
+					TesseractMod.LOGGER.error("Paste {} -> fetch failed: {}", requestId, error.toString());
+					failOnServer(player, jobId, "Error: failed to fetch plan (request " + requestId + ").");
+					return;
+				}
+				if (result.error != null) {
+					failOnServer(player, jobId, result.error);
+					return;
+				}
+				startOnServer(player, jobId, selection, requestId, token, result.plan);
+			});
+	}
+
+	/**
+	 * Fetches, parses and validates the plan. A cached plan for this URL and size is revalidated with its
+	 * ETag / Last-Modified, so an unchanged paste costs a 304 instead of a download and a re-validation.
+	 * Cancelling {@code token} aborts the fetch, or the read of its body. {@code jobId} is the job that asked
+	 * first; only it moves on to validating.
+	 */
+	private static CompletableFuture<GumloopClient.PlanValidationResult> fetchPlan(UUID jobId, URI uri, BlockPos size, String cacheKey, String requestId, CancelToken token) {
+		PlanCache.Entry cached = PlanCache.peek(cacheKey);
+		HttpRequest.Builder builder = HttpRequest.newBuilder()
 			.uri(uri)
 			.timeout(Duration.ofSeconds(15))
-			.GET()
-			.build();
+			.GET();
+		if (cached != null && cached.etag != null) {
+			builder.header("If-None-Match", cached.etag);
+		}
+		if (cached != null && cached.lastModified != null) {
+			builder.header("If-Modified-Since", cached.lastModified);
+		}
 
-		CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString())
-			.whenComplete((response, error) -> {
-				if (player.getServer() == null) {
-					return;
+		long sentNanos = System.nanoTime();
+		TesseractEvents.Http http = new TesseractEvents.Http();
+		http.begin();
+		return HttpTransport.sendIdempotent(builder.build(), HttpResponse.BodyHandlers.ofInputStream(), token)
+			.handleAsync((response, error) -> {
+				http.finish(requestId, "paste", response == null ? 0 : response.statusCode(), error);
+				// Runs on a plan worker: parsing and validation stay off the server thread.
+				if (token.isCancelled()) {
+					if (response != null) {
+						closeQuietly(response.body());
+					}
+					return GumloopClient.PlanValidationResult.error("Error: plan fetch cancelled (request " + requestId + ").");
 				}
-				player.getServer().execute(() -> {
-					if (error != null) {
-						TesseractMod.LOGGER.error("Paste {} -> request failed: {}", requestId, error.toString());
-						player.sendMessage(Text.of("Error: failed to fetch plan (request " + requestId + ")."), false);
-						BuildJobManager.finish(player.getUuid());
-						return;
+				if (error != null) {
+					TesseractMod.LOGGER.error("Paste {} -> request failed: {}", requestId, error.toString());
+					if (HttpTransport.isHostDown(error)) {
+						return GumloopClient.PlanValidationResult.error("Error: plan server is unreachable right now, try again shortly (request " + requestId + ").");
 					}
-					if (response == null) {
-						player.sendMessage(Text.of("Error: plan response was empty (request " + requestId + ")."), false);
-						BuildJobManager.finish(player.getUuid());
-						return;
+					return GumloopClient.PlanValidationResult.error("Error: failed to fetch plan (request " + requestId + ").");
+				}
+				if (response == null) {
+					return GumloopClient.PlanValidationResult.error("Error: plan response was empty (request " + requestId + ").");
+				}
+				Metrics.HTTP_ROUND_TRIP.recordSince(sentNanos);
+				int status = response.statusCode();
+				BuildJobManager.advance(jobId, BuildJobManager.State.VALIDATING);
+				try (InputStream body = response.body()) {
+					token.onCancel(() -> closeQuietly(body));
+					if (status == 304 && cached != null) {
+						PlanCache.countRevalidated();
+						TesseractMod.LOGGER.info("Paste {} -> not modified, reusing cached plan ({} ops).", requestId, cached.plan.size());
+						return GumloopClient.PlanValidationResult.success(cached.plan);
 					}
-					int status = response.statusCode();
-					String body = response.body();
 					if (status < 200 || status >= 300) {
 						TesseractMod.LOGGER.warn("Paste {} -> non-2xx response: {}", requestId, preview(body));
-						player.sendMessage(Text.of("Error: plan server returned status " + status + " (request " + requestId + ")."), false);
-						BuildJobManager.finish(player.getUuid());
-						return;
+						return GumloopClient.PlanValidationResult.error("Error: plan server returned status " + status + " (request " + requestId + ").");
 					}
-					GumloopClient.PlanValidationResult result = GumloopClient.parsePlanForSelection(body, selection, requestId);
+					PlanCache.countMiss();
+					GumloopClient.PlanValidationResult result = GumloopClient.parsePlanForSize(body, size, requestId);
 					if (result.error != null) {
-						player.sendMessage(Text.of("Error: " + result.error + " (request " + requestId + ")."), false);
-						BuildJobManager.finish(player.getUuid());
-						return;
+						return GumloopClient.PlanValidationResult.error("Error: " + result.error + " (request " + requestId + ").");
 					}
-					GumloopPayload.Response plan = result.plan;
-					if (plan == null || plan.ops == null) {
-						player.sendMessage(Text.of("Error: plan response missing ops (request " + requestId + ")."), false);
-						BuildJobManager.finish(player.getUuid());
-						return;
+					if (result.plan == null) {
+						return GumloopClient.PlanValidationResult.error("Error: plan response missing ops (request " + requestId + ").");
 					}
-					boolean built = BuildQueueManager.startInstantBuild(player, selection, plan);
-					if (!built) {
-						player.sendMessage(Text.of("Error: failed to place plan blocks (request " + requestId + ")."), false);
+					String etag = response.headers().firstValue("ETag").orElse(null);
+					String lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+					if (etag != null || lastModified != null) {
+						PlanCache.put(cacheKey, new PlanCache.Entry(result.plan, etag, lastModified));
 					}
-					BuildJobManager.finish(player.getUuid());
-				});
-			});
+					return result;
+				} catch (IOException ex) {
+					TesseractMod.LOGGER.error("Paste {} -> failed reading body: {}", requestId, ex.toString());
+					return GumloopClient.PlanValidationResult.error("Error: failed to fetch plan (request " + requestId + ").");
+				}
+			}, PlanWorkers.executor());
+	}
+
+	private static void startOnServer(ServerPlayerEntity player, UUID jobId, Selection selection, String requestId, CancelToken token, CompiledPlan plan) {
+		if (player.getServer() == null || token.isCancelled()) {
+			return;
+		}
+		player.getServer().execute(() -> {
+			if (token.isCancelled()) {
+				TesseractMod.LOGGER.warn("Paste {} -> plan arrived after the job ended; dropped.", requestId);
+				return;
+			}
+			boolean built = BuildQueueManager.startInstantBuild(player, jobId, selection, plan);
+			if (!built) {
+				player.sendMessage(Text.of("Error: failed to place plan blocks (request " + requestId + ")."), false);
+				BuildJobManager.fail(jobId);
+			} else if (!BuildQueueManager.hasJob(jobId)) {
+				// A paste over unloaded chunks becomes a queued job, which ends the job when it is placed.
+				BuildJobManager.finish(jobId);
+			}
+		});
+	}
+
+	private static void failOnServer(ServerPlayerEntity player, UUID jobId, String message) {
+		if (player.getServer() == null) {
+			return;
+		}
+		player.getServer().execute(() -> {
+			player.sendMessage(Text.of(message), false);
+			BuildJobManager.fail(jobId);
+		});
+	}
+
+	private static void closeQuietly(InputStream body) {
+		try {
+			body.close();
+		} catch (IOException ex) {
+			// nothing to do
+		}
 	}
 
 	private static URI parseSource(String source) {
@@ -110,13 +223,9 @@ public final class PlanPasteClient {
 		}
 	}
 
-	private static String preview(String body) {
-		if (body == null) {
-			return "<null>";
-		}
-		if (body.length() <= LOG_BODY_PREVIEW) {
-			return body;
-		}
-		return body.substring(0, LOG_BODY_PREVIEW) + "...";
+	private static String preview(InputStream body) throws IOException {
+		byte[] head = body.readNBytes(LOG_BODY_PREVIEW + 1);
+		String text = new String(head, 0, Math.min(head.length, LOG_BODY_PREVIEW), StandardCharsets.UTF_8);
+		return head.length > LOG_BODY_PREVIEW ? text + "..." : text;
 	}
 }
@@ -0,0 +1,128 @@
+package com.rayyan.tesseract.jobs;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RegionIndexTest {
+	private static final UUID OWNER = new UUID(0L, 1L);
+	private static final int JOBS = 500;
+	private static final int ROUNDS_PER_JOB = 50;
+	private static final int AREA = 4096;
+	private static final int MIN_Y = -64;
+	private static final int HEIGHT = 384;
+
+	@Test
+	void boxesOverlapOnlyWhenEveryAxisMeets() {
+		RegionIndex index = new RegionIndex();
+		RegionIndex.Region region = index.add(OWNER, 0, 0, 0, 9, 9, 9);
+
+		assertSame(region, index.findOverlap(5, 5, 5, 20, 20, 20));
+		assertNull(index.findOverlap(5, 10, 5, 20, 20, 20));
+		assertNull(index.findOverlap(10, 0, 0, 20, 9, 9));
+		assertNull(index.findOverlap(0, 0, -5, 9, 9, -1));
+	}
+
+	@Test
+	void boundsAreInclusive() {
+		RegionIndex index = new RegionIndex();
+		RegionIndex.Region region = index.add(OWNER, 0, 0, 0, 9, 9, 9);
+
+		assertSame(region, index.findOverlap(9, 9, 9, 9, 9, 9));
+		assertSame(region, index.findOverlap(-3, -3, -3, 0, 0, 0));
+	}
+
+	@Test
+	void removedRegionsNoLongerOverlap() {
+		RegionIndex index = new RegionIndex();
+		RegionIndex.Region first = index.add(OWNER, 0, 0, 0, 9, 9, 9);
+		RegionIndex.Region second = index.add(OWNER, 20, 0, 0, 29, 9, 9);
+
+		index.remove(first);
+
+		assertEquals(1, index.size());
+		assertNull(index.findOverlap(0, 0, 0, 9, 9, 9));
+		assertSame(second, index.findOverlap(25, 5, 5, 25, 5, 5));
+		assertThrows(IllegalStateException.class, () -> index.remove(first));
+	}
+
+	@Test
+	void queriesMatchABruteForceScanUnderChurn() {
+		Random random = new Random(42L);
+		RegionIndex index = new RegionIndex();
+		RegionIndex.Region[] held = new RegionIndex.Region[JOBS];
+		List<RegionIndex.Region> live = new ArrayList<>();
+		int claimed = 0;
+		int refused = 0;
+		for (int round = 0; round < JOBS * ROUNDS_PER_JOB; round++) {
+			int job = random.nextInt(JOBS);
+			if (held[job] != null) {
+				// The job finishes and releases its region.
+				index.remove(held[job]);
+				live.remove(held[job]);
+				held[job] = null;
+				continue;
+			}
+			int sizeX = size(random);
+			int sizeY = Math.min(HEIGHT, size(random));
+			int sizeZ = size(random);
+			int minX = random.nextInt(AREA) - AREA / 2;
+			int minY = MIN_Y + random.nextInt(HEIGHT - sizeY + 1);
+			int minZ = random.nextInt(AREA) - AREA / 2;
+			int maxX = minX + sizeX - 1;
+			int maxY = minY + sizeY - 1;
+			int maxZ = minZ + sizeZ - 1;
+
+			RegionIndex.Region overlap = index.findOverlap(minX, minY, minZ, maxX, maxY, maxZ);
+			RegionIndex.Region expected = scan(live, minX, minY, minZ, maxX, maxY, maxZ);
+			assertEquals(expected == null, overlap == null, "round " + round);
+			if (overlap != null) {
+				assertTrue(overlap.overlaps(minX, minY, minZ, maxX, maxY, maxZ), "round " + round);
+				refused++;
+				continue;
+			}
+			held[job] = index.add(new UUID(0L, job), minX, minY, minZ, maxX, maxY, maxZ);
+			live.add(held[job]);
+			claimed++;
+		}
+
+		assertEquals(live.size(), index.size());
+		assertTrue(claimed > 0 && refused > 0, "both outcomes exercised");
+		for (int i = 0; i < live.size(); i++) {
+			RegionIndex.Region a = live.get(i);
+			for (int j = i + 1; j < live.size(); j++) {
+				assertFalse(live.get(j).overlaps(a.minX, a.minY, a.minZ, a.maxX, a.maxY, a.maxZ));
+			}
+		}
+		for (RegionIndex.Region region : live) {
+			assertNotNull(index.findOverlap(region.minX, region.minY, region.minZ, region.minX, region.minY, region.minZ));
+		}
+	}
+
+	/**
+	 * Build sizes as players pick them: mostly single-request builds, some large tiled ones.
+	 */
+	private static int size(Random random) {
+		return random.nextInt(8) == 0 ? 33 + random.nextInt(224) : 1 + random.nextInt(32);
+	}
+
+	private static RegionIndex.Region scan(List<RegionIndex.Region> live, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		for (RegionIndex.Region region : live) {
+			if (region.overlaps(minX, minY, minZ, maxX, maxY, maxZ)) {
+				return region;
+			}
+		}
+		return null;
+	}
+}
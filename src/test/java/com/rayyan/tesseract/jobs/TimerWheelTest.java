@@ -0,0 +1,113 @@
+package com.rayyan.tesseract.jobs;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTest {
+	@Test
+	void firesOnItsDeadlineTick() {
+		TimerWheel<String> wheel = new TimerWheel<>();
+		List<String> fired = new ArrayList<>();
+		wheel.schedule("a", 3);
+
+		wheel.advance(fired::add);
+		wheel.advance(fired::add);
+		assertTrue(fired.isEmpty());
+		wheel.advance(fired::add);
+
+		assertEquals(List.of("a"), fired);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	void delaysBelowOneFireOnTheNextTick() {
+		TimerWheel<String> wheel = new TimerWheel<>();
+		List<String> fired = new ArrayList<>();
+		wheel.schedule("a", 0);
+		wheel.schedule("b", -5);
+
+		wheel.advance(fired::add);
+
+		assertEquals(2, fired.size());
+	}
+
+	@Test
+	void cancelledTimersNeverFire() {
+		TimerWheel<String> wheel = new TimerWheel<>();
+		List<String> fired = new ArrayList<>();
+		TimerWheel.Timer<String> timer = wheel.schedule("a", 100);
+		wheel.schedule("b", 100);
+
+		wheel.cancel(timer);
+		wheel.cancel(timer);
+		for (int i = 0; i < 100; i++) {
+			wheel.advance(fired::add);
+		}
+
+		assertFalse(timer.isPending());
+		assertEquals(List.of("b"), fired);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	void timersOnEveryLevelFireOnTime() {
+		TimerWheel<Long> wheel = new TimerWheel<>();
+		long[] delays = {1, 63, 64, 65, 4095, 4096, 4097, 262_143, 262_144, 262_145, 1_000_000};
+		for (long delay : delays) {
+			wheel.schedule(delay, delay);
+		}
+		Map<Long, Long> firedAt = new HashMap<>();
+		while (firedAt.size() < delays.length && wheel.now() <= 1_000_000) {
+			wheel.advance(value -> firedAt.put(value, wheel.now()));
+		}
+
+		for (long delay : delays) {
+			assertEquals(Long.valueOf(delay), firedAt.get(delay), "delay " + delay);
+		}
+	}
+
+	@Test
+	void randomSchedulesFireOnTheirDeadline() {
+		Random random = new Random(7L);
+		TimerWheel<long[]> wheel = new TimerWheel<>();
+		List<TimerWheel.Timer<long[]>> cancelled = new ArrayList<>();
+		int scheduled = 0;
+		int[] fired = {0};
+		for (int tick = 0; tick < 300_000; tick++) {
+			if (random.nextInt(4) == 0) {
+				long delay = 1 + random.nextInt(random.nextBoolean() ? 100 : 100_000);
+				TimerWheel.Timer<long[]> timer = wheel.schedule(new long[] {wheel.now() + delay}, delay);
+				if (random.nextInt(10) == 0) {
+					wheel.cancel(timer);
+					cancelled.add(timer);
+				} else {
+					scheduled++;
+				}
+			}
+			wheel.advance(deadline -> {
+				assertEquals(deadline[0], wheel.now());
+				fired[0]++;
+			});
+		}
+		while (wheel.size() > 0) {
+			wheel.advance(deadline -> {
+				assertEquals(deadline[0], wheel.now());
+				fired[0]++;
+			});
+		}
+
+		assertEquals(scheduled, fired[0]);
+		for (TimerWheel.Timer<long[]> timer : cancelled) {
+			assertFalse(timer.isPending());
+		}
+	}
+}
@@ -1,8 +1,10 @@
 #!/usr/bin/env python3
+import hashlib
 import json
 import os
 import secrets
 import string
+from email.utils import formatdate
 from http.server import BaseHTTPRequestHandler, HTTPServer
 from urllib.parse import urlparse
 
@@ -26,12 +28,12 @@ def store_plan(plan_id, plan_data):
     return path
 
 
-def load_plan(plan_id):
+def load_plan_bytes(plan_id):
     path = os.path.join(STORE_DIR, f"{plan_id}.json")
     if not os.path.exists(path):
-        return None
-    with open(path, "r", encoding="utf-8") as handle:
-        return json.load(handle)
+        return None, None
+    with open(path, "rb") as handle:
+        return handle.read(), os.path.getmtime(path)
 
 
 class PlanHandler(BaseHTTPRequestHandler):
@@ -98,11 +100,27 @@ class PlanHandler(BaseHTTPRequestHandler):
         if not plan_id:
             self._send_text(400, "Missing plan id")
             return
-        plan = load_plan(plan_id)
-        if plan is None:
+        body, mtime = load_plan_bytes(plan_id)
+        if body is None:
             self._send_text(404, "Plan not found")
             return
-        self._send_json(200, plan)
+        # Validators let the mod reuse its cached copy of an unchanged plan.
+        etag = '"' + hashlib.sha256(body).hexdigest()[:32] + '"'
+        last_modified = formatdate(mtime, usegmt=True)
+        if self.headers.get("If-None-Match") == etag:
+            self.send_response(304)
+            self.send_header("ETag", etag)
+            self.send_header("Last-Modified", last_modified)
+            self.end_headers()
+            return
+        self.send_response(200)
+        self.send_header("Content-Type", "application/json")
+        self.send_header("Access-Control-Allow-Origin", "*")
+        self.send_header("ETag", etag)
+        self.send_header("Last-Modified", last_modified)
+        self.send_header("Content-Length", str(len(body)))
+        self.end_headers()
+        self.wfile.write(body)
 
 
 def main():